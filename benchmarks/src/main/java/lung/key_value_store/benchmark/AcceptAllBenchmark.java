@@ -0,0 +1,73 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.KeysAndValuesImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a bulk load of many batches: acceptAll() with each BulkUndo
+ * against calling accept() once per batch, into a new KeysAndValuesImpl.
+ *
+ * The score is per bulk load of numberOfBatches batches.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class AcceptAllBenchmark {
+
+    @Param({"INTEGER_ACCUMULATE", "STRING_OVERWRITE"})
+    public Workload workload;
+
+    @Param({"16"})
+    public int batchSize;
+
+    @Param({"10000"})
+    public int numberOfBatches;
+
+    @Param({"65536"})
+    public int keyCardinality;
+
+    private List<String> batches;
+
+    private KeysAndValuesImpl kv;
+
+    @Setup(Level.Trial)
+    public void setUpBatches() {
+        batches = Arrays.asList(workload.batches(numberOfBatches, batchSize, keyCardinality, 42L));
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        kv = new KeysAndValuesImpl(new NoOpErrorListener());
+    }
+
+    @Benchmark
+    public KeysAndValuesImpl acceptEach() {
+        for (final String batch : batches) {
+            kv.accept(batch);
+        }
+        return kv;
+    }
+
+    @Benchmark
+    public KeysAndValuesImpl acceptAllOneStep() {
+        kv.acceptAll(batches, KeysAndValuesImpl.BulkUndo.ONE_STEP);
+        return kv;
+    }
+
+    @Benchmark
+    public KeysAndValuesImpl acceptAllWithoutUndo() {
+        kv.acceptAll(batches, KeysAndValuesImpl.BulkUndo.NONE);
+        return kv;
+    }
+}
@@ -0,0 +1,60 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.KeysAndValuesImpl;
+import lung.key_value_store.api.KeysAndValues;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of accept() with different batch sizes, key cardinalities and
+ * kinds of values.
+ *
+ * The score is per accept() call i.e. per batch. Divide
+ * "gc.alloc.rate.norm" by batchSize to get the allocation per pair.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcceptBenchmark {
+
+    /**
+     * Number of pre-generated batches which are accepted in turn.
+     */
+    private static final int NUMBER_OF_BATCHES = 1 << 10;
+
+    @Param({"INTEGER_ACCUMULATE", "STRING_OVERWRITE", "ATOMIC_GROUP_HEAVY"})
+    public Workload workload;
+
+    @Param({"1", "16", "256"})
+    public int batchSize;
+
+    @Param({"64", "65536"})
+    public int keyCardinality;
+
+    private String[] batches;
+
+    private KeysAndValues kv;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        batches = workload.batches(NUMBER_OF_BATCHES, batchSize, keyCardinality, 42L);
+        kv = new KeysAndValuesImpl(new NoOpErrorListener());
+        next = 0;
+    }
+
+    @Benchmark
+    public void accept() {
+        kv.accept(batches[next]);
+        next = (next + 1) & (NUMBER_OF_BATCHES - 1);
+    }
+}
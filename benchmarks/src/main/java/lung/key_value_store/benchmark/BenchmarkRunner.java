@@ -0,0 +1,37 @@
+package lung.key_value_store.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.
+ *
+ * It's the same as the JMH main class but the GC profiler (-prof gc) is
+ * always added, so that the allocation rate is reported along with the
+ * throughput and the average time. All the JMH command line options can
+ * still be used e.g. to select benchmarks by a regex or to override the
+ * parameters:
+ *
+ *   java -jar target/benchmarks.jar AcceptBenchmark -p batchSize=16
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,111 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.ConcurrentKeysAndValues;
+import lung.key_value_store.KeysAndValuesImpl;
+import lung.key_value_store.SingleWriterKeysAndValues;
+import lung.key_value_store.api.KeysAndValues;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of accept() called by many threads with disjoint keys, to see
+ * how it scales with the number of threads. Run with different "-t", e.g.
+ *
+ *   java -jar target/benchmarks.jar ConcurrentAcceptBenchmark -t 16
+ *
+ * SYNCHRONIZED is KeysAndValuesImpl behind one external lock, as the
+ * baseline. SINGLE_WRITER hands each batch over to one writer thread and
+ * waits for it to be applied.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentAcceptBenchmark {
+
+    private static final int NUMBER_OF_BATCHES = 1 << 10;
+
+    public enum Implementation {
+        CONCURRENT,
+        SYNCHRONIZED,
+        SINGLE_WRITER
+    }
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        @Param({"CONCURRENT", "SYNCHRONIZED", "SINGLE_WRITER"})
+        public Implementation implementation;
+
+        private KeysAndValues kv;
+
+        private boolean isExternallyLocked;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            isExternallyLocked = implementation == Implementation.SYNCHRONIZED;
+            switch (implementation) {
+                case CONCURRENT:
+                    kv = new ConcurrentKeysAndValues(new NoOpErrorListener());
+                    break;
+                case SINGLE_WRITER:
+                    kv = new SingleWriterKeysAndValues(new NoOpErrorListener());
+                    break;
+                default:
+                    kv = new KeysAndValuesImpl(new NoOpErrorListener());
+                    break;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (kv instanceof SingleWriterKeysAndValues) {
+                ((SingleWriterKeysAndValues) kv).close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batches {
+
+        @Param({"1", "16"})
+        public int batchSize;
+
+        private String[] batches;
+
+        private int next;
+
+        /**
+         * Each thread has its own key prefix, so the keys are disjoint.
+         */
+        @Setup(Level.Trial)
+        public void setUp(final ThreadParams threadParams) {
+            final String[] generated = Workload.INTEGER_ACCUMULATE.batches(NUMBER_OF_BATCHES, batchSize, 1 << 10, threadParams.getThreadIndex());
+            final String prefix = "t" + threadParams.getThreadIndex();
+            batches = new String[generated.length];
+            for (int i = 0; i < generated.length; ++i) {
+                batches[i] = generated[i].replace("k", prefix);
+            }
+        }
+    }
+
+    @Benchmark
+    public void accept(final Store store, final Batches batches) {
+        final String batch = batches.batches[batches.next];
+        if (store.isExternallyLocked) {
+            synchronized (store) {
+                store.kv.accept(batch);
+            }
+        } else {
+            store.kv.accept(batch);
+        }
+        batches.next = (batches.next + 1) & (NUMBER_OF_BATCHES - 1);
+    }
+}
@@ -0,0 +1,130 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.KeysAndValuesImpl;
+import lung.key_value_store.api.KeysAndValues;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the read operations, display(), the streaming display(), the
+ * range queries and the point lookups, with different numbers of keys. The streaming ones write to a Writer and a channel which discard
+ * everything, so only the work (and the garbage) of display() is measured.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class DisplayBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int numberOfKeys;
+
+    private KeysAndValues kv;
+
+    /**
+     * 100 keys of which half do not exist.
+     */
+    private List<String> keysToGet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        kv = new KeysAndValuesImpl(new NoOpErrorListener());
+        for (final String batch : Workload.distinctKeyBatches(numberOfKeys, 1000)) {
+            kv.accept(batch);
+        }
+
+        keysToGet = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            keysToGet.add((i % 2 == 0 ? "k" : "missing") + i * 7);
+        }
+    }
+
+    @Benchmark
+    public String display() {
+        return kv.display();
+    }
+
+    /**
+     * A page of 100 keys from the middle of the key space.
+     */
+    @Benchmark
+    public String displayPage() {
+        return kv.displayPage("k5", 100);
+    }
+
+    @Benchmark
+    public String displayPrefix() {
+        return kv.display("k12345");
+    }
+
+    @Benchmark
+    public String get() {
+        return kv.get("k777");
+    }
+
+    @Benchmark
+    public Map<String, String> multiGet() {
+        return kv.multiGet(keysToGet);
+    }
+
+    @Benchmark
+    public void displayToWriter() throws IOException {
+        kv.display(NULL_WRITER);
+    }
+
+    @Benchmark
+    public void displayToChannel() throws IOException {
+        kv.display(NULL_CHANNEL);
+    }
+
+    private static final Writer NULL_WRITER = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final WritableByteChannel NULL_CHANNEL = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            final int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
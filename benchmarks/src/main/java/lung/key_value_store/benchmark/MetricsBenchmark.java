@@ -0,0 +1,69 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.KeysAndValuesImpl;
+import lung.key_value_store.StoreMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the cost of StoreMetrics: accept() and display() of the same
+ * batches without metrics and with them.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    /**
+     * Number of pre-generated batches which are accepted in turn.
+     */
+    private static final int NUMBER_OF_BATCHES = 1 << 10;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    @Param({"1", "256"})
+    public int batchSize;
+
+    private String[] batches;
+
+    private KeysAndValuesImpl kv;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        batches = Workload.INTEGER_ACCUMULATE.batches(NUMBER_OF_BATCHES, batchSize, 64, 42L);
+        kv = new KeysAndValuesImpl(new NoOpErrorListener());
+
+        /**
+         * All the 64 keys exist, so display() has something to show.
+         */
+        for (final String batch : batches) {
+            kv.accept(batch);
+        }
+        if (metrics) {
+            kv.setMetrics(new StoreMetrics());
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public void accept() {
+        kv.accept(batches[next]);
+        next = (next + 1) & (NUMBER_OF_BATCHES - 1);
+    }
+
+    @Benchmark
+    public StringBuilder display() {
+        return kv.displayWithStringBuilder();
+    }
+}
@@ -0,0 +1,22 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.api.ErrorListener;
+
+/**
+ * An ErrorListener which ignores all errors, so that no listener work is
+ * measured by the benchmarks.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class NoOpErrorListener implements ErrorListener {
+
+    @Override
+    public void onError(String msg) {
+    }
+
+    @Override
+    public void onError(String msg, Exception e) {
+    }
+}
@@ -0,0 +1,61 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.KeysAndValuesImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of one very large accept() call, parsed in parallel by
+ * acceptParallel() with the common ForkJoinPool against accept(), into a new
+ * KeysAndValuesImpl.
+ *
+ * The score is per input of numberOfPairs pairs.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ParallelAcceptBenchmark {
+
+    @Param({"INTEGER_ACCUMULATE", "STRING_OVERWRITE", "ATOMIC_GROUP_HEAVY"})
+    public Workload workload;
+
+    @Param({"500000"})
+    public int numberOfPairs;
+
+    @Param({"64", "65536"})
+    public int keyCardinality;
+
+    private String kvPairs;
+
+    private KeysAndValuesImpl kv;
+
+    @Setup(Level.Trial)
+    public void setUpInput() {
+        kvPairs = workload.batches(1, numberOfPairs, keyCardinality, 42L)[0];
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        kv = new KeysAndValuesImpl(new NoOpErrorListener());
+    }
+
+    @Benchmark
+    public KeysAndValuesImpl accept() {
+        kv.accept(kvPairs);
+        return kv;
+    }
+
+    @Benchmark
+    public KeysAndValuesImpl acceptParallel() {
+        kv.acceptParallel(kvPairs);
+        return kv;
+    }
+}
@@ -0,0 +1,170 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.ConcurrentKeysAndValues;
+import lung.key_value_store.KeysAndValuesImpl;
+import lung.key_value_store.PersistentKeysAndValues;
+import lung.key_value_store.api.KeysAndValues;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the reads while one writer keeps calling accept(), to see how
+ * the read throughput scales with the number of reader threads. Each group
+ * has one writer and some readers; run with different "-tg", e.g. 1 writer
+ * and 8 readers:
+ *
+ *   java -jar target/benchmarks.jar ReadWhileWriteBenchmark -tg 1,8
+ *
+ * PERSISTENT publishes an immutable root for each accept(), so its readers
+ * never lock. CONCURRENT locks the stripe of a key for get() and all stripes
+ * for displayPage(). SYNCHRONIZED is KeysAndValuesImpl behind one external
+ * lock, as the baseline.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ReadWhileWriteBenchmark {
+
+    private static final int NUMBER_OF_KEYS = 100000;
+
+    private static final int NUMBER_OF_BATCHES = 1 << 10;
+
+    public enum Implementation {
+        PERSISTENT,
+        CONCURRENT,
+        SYNCHRONIZED
+    }
+
+    @State(Scope.Group)
+    public static class Store {
+
+        @Param({"PERSISTENT", "CONCURRENT", "SYNCHRONIZED"})
+        public Implementation implementation;
+
+        private KeysAndValues kv;
+
+        private boolean isExternallyLocked;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            isExternallyLocked = implementation == Implementation.SYNCHRONIZED;
+            switch (implementation) {
+                case PERSISTENT:
+                    kv = new PersistentKeysAndValues(new NoOpErrorListener());
+                    break;
+                case CONCURRENT:
+                    kv = new ConcurrentKeysAndValues(new NoOpErrorListener());
+                    break;
+                default:
+                    kv = new KeysAndValuesImpl(new NoOpErrorListener());
+                    break;
+            }
+            for (final String batch : Workload.distinctKeyBatches(NUMBER_OF_KEYS, 1000)) {
+                kv.accept(batch);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batches {
+
+        @Param({"16"})
+        public int batchSize;
+
+        private String[] batches;
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(final ThreadParams threadParams) {
+            batches = Workload.INTEGER_ACCUMULATE.batches(NUMBER_OF_BATCHES, batchSize, NUMBER_OF_KEYS, threadParams.getThreadIndex());
+        }
+    }
+
+    /**
+     * The keys looked up by a reader, in a different order for each thread.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private final String[] keys = new String[1 << 10];
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(final ThreadParams threadParams) {
+            final Random random = new Random(threadParams.getThreadIndex());
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = "k" + random.nextInt(NUMBER_OF_KEYS);
+            }
+        }
+
+        private String next() {
+            final String key = keys[next];
+            next = (next + 1) & (keys.length - 1);
+            return key;
+        }
+    }
+
+    @Benchmark
+    @Group("get")
+    @GroupThreads(1)
+    public void getWriter(final Store store, final Batches batches) {
+        accept(store, batches);
+    }
+
+    @Benchmark
+    @Group("get")
+    @GroupThreads(4)
+    public String getReader(final Store store, final Keys keys) {
+        if (store.isExternallyLocked) {
+            synchronized (store) {
+                return store.kv.get(keys.next());
+            }
+        }
+        return store.kv.get(keys.next());
+    }
+
+    @Benchmark
+    @Group("displayPage")
+    @GroupThreads(1)
+    public void displayPageWriter(final Store store, final Batches batches) {
+        accept(store, batches);
+    }
+
+    /**
+     * A page of 100 keys from a random position.
+     */
+    @Benchmark
+    @Group("displayPage")
+    @GroupThreads(4)
+    public String displayPageReader(final Store store, final Keys keys) {
+        if (store.isExternallyLocked) {
+            synchronized (store) {
+                return store.kv.displayPage(keys.next(), 100);
+            }
+        }
+        return store.kv.displayPage(keys.next(), 100);
+    }
+
+    private static void accept(final Store store, final Batches batches) {
+        final String batch = batches.batches[batches.next];
+        if (store.isExternallyLocked) {
+            synchronized (store) {
+                store.kv.accept(batch);
+            }
+        } else {
+            store.kv.accept(batch);
+        }
+        batches.next = (batches.next + 1) & (NUMBER_OF_BATCHES - 1);
+    }
+}
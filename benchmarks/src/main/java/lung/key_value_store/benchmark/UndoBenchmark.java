@@ -0,0 +1,63 @@
+package lung.key_value_store.benchmark;
+
+import lung.key_value_store.KeysAndValuesImpl;
+import lung.key_value_store.api.KeysAndValues;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a chain of undo() calls which reverts the whole Undo
+ * History.
+ *
+ * The Undo History is filled again before each invocation, which is not
+ * measured. The score is per whole chain.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UndoBenchmark {
+
+    @Param({"16", "256"})
+    public int depth;
+
+    @Param({"16", "256"})
+    public int batchSize;
+
+    @Param({"INTEGER_ACCUMULATE", "STRING_OVERWRITE"})
+    public Workload workload;
+
+    private String[] batches;
+
+    private KeysAndValues kv;
+
+    @Setup(Level.Trial)
+    public void setUpBatches() {
+        batches = workload.batches(depth, batchSize, 1 << 12, 42L);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpUndoHistory() {
+        kv = new KeysAndValuesImpl(new NoOpErrorListener());
+        for (final String batch : batches) {
+            kv.accept(batch);
+        }
+    }
+
+    @Benchmark
+    public void undoChain(final Blackhole blackhole) {
+        final KeysAndValues kv = this.kv;
+        for (int i = 0; i < depth; ++i) {
+            kv.undo();
+        }
+        blackhole.consume(kv);
+    }
+}
@@ -0,0 +1,112 @@
+package lung.key_value_store.benchmark;
+
+import java.util.Random;
+
+/**
+ * The kinds of accept() input used by the benchmarks.
+ *
+ * Each workload generates the batches (the "kvPairs" input of accept())
+ * deterministically from a seed, so that runs can be compared with each
+ * other.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public enum Workload {
+
+    /**
+     * Integer values only, so most of the pairs accumulate into counters.
+     */
+    INTEGER_ACCUMULATE {
+        @Override
+        void appendPair(final StringBuilder sb, final Random random, final int keyCardinality) {
+            sb.append('k').append(random.nextInt(keyCardinality))
+                    .append('=').append(random.nextInt(1000));
+        }
+    },
+
+    /**
+     * Non-integer values only, so all the pairs overwrite.
+     */
+    STRING_OVERWRITE {
+        @Override
+        void appendPair(final StringBuilder sb, final Random random, final int keyCardinality) {
+            sb.append('k').append(random.nextInt(keyCardinality))
+                    .append('=').append("value-").append(random.nextInt(1000));
+        }
+    },
+
+    /**
+     * Half of the pairs are complete atomic groups (441,442,500), the other
+     * half are integer counters.
+     */
+    ATOMIC_GROUP_HEAVY {
+        @Override
+        void appendPair(final StringBuilder sb, final Random random, final int keyCardinality) {
+            if (random.nextBoolean()) {
+                sb.append("441=").append(random.nextInt(1000))
+                        .append(",442=g").append(random.nextInt(1000))
+                        .append(",500=").append(random.nextInt(1000));
+            } else {
+                INTEGER_ACCUMULATE.appendPair(sb, random, keyCardinality);
+            }
+        }
+    };
+
+    abstract void appendPair(StringBuilder sb, Random random, int keyCardinality);
+
+    /**
+     * Generate batches for accept().
+     *
+     * @param numberOfBatches number of batches to generate
+     * @param batchSize number of entries (pairs or atomic groups) per batch
+     * @param keyCardinality number of distinct (non-atomic) keys
+     * @param seed seed of the random generator
+     * @return the batches
+     */
+    public String[] batches(final int numberOfBatches, final int batchSize, final int keyCardinality, final long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(batchSize * 16);
+        final String[] batches = new String[numberOfBatches];
+
+        for (int i = 0; i < numberOfBatches; ++i) {
+            sb.setLength(0);
+            for (int j = 0; j < batchSize; ++j) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                appendPair(sb, random, keyCardinality);
+            }
+            batches[i] = sb.toString();
+        }
+
+        return batches;
+    }
+
+    /**
+     * Generate batches which together define exactly the keys
+     * k0, k1, ..., k(numberOfKeys - 1) once.
+     *
+     * @param numberOfKeys number of distinct keys
+     * @param batchSize number of pairs per batch
+     * @return the batches
+     */
+    public static String[] distinctKeyBatches(final int numberOfKeys, final int batchSize) {
+        final String[] batches = new String[(numberOfKeys + batchSize - 1) / batchSize];
+        final StringBuilder sb = new StringBuilder(batchSize * 16);
+
+        for (int i = 0, key = 0; i < batches.length; ++i) {
+            sb.setLength(0);
+            for (int j = 0; j < batchSize && key < numberOfKeys; ++j, ++key) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append('k').append(key).append('=').append(key);
+            }
+            batches[i] = sb.toString();
+        }
+
+        return batches;
+    }
+}
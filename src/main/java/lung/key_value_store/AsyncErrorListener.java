@@ -0,0 +1,258 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An ErrorListener which never makes the store wait for the listener behind
+ * it, e.g. one logging to a remote sink.
+ *
+ * Given to a store like any ErrorListener, the errors of the store are
+ * recorded as ErrorEvents, without building their messages, into a bounded
+ * MpscRing, and a background thread delivers them in order. When the ring
+ * is full, an error is dropped and counted instead of waiting. An error
+ * whose listener throws is counted as failed rather than delivered.
+ *
+ * Identical errors queued one after another, e.g. a storm of invalid parts
+ * while the listener is slow, are coalesced into one event, delivered with
+ * the number of repeats.
+ *
+ * close() delivers the errors already queued and stops the thread.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class AsyncErrorListener implements ErrorListener, AutoCloseable {
+
+    /**
+     * The default max number of errors waiting in the ring.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 12;
+
+    /**
+     * The max time the thread parks when the ring is empty, in case a wake up
+     * is missed.
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Consumer<ErrorEvent> sink;
+
+    private final MpscRing<ErrorEvent> ring;
+
+    private final Thread dispatchThread;
+
+    /**
+     * Set by the thread before it parks, so the producers know they have to
+     * wake it up.
+     */
+    private volatile boolean isDispatcherParked;
+
+    private volatile boolean isClosed;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Constructor with the default capacity.
+     *
+     * @param errorListener the ErrorListener to deliver the messages to
+     */
+    public AsyncErrorListener(final ErrorListener errorListener) {
+        this(errorListener, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param errorListener the ErrorListener to deliver the messages to; a
+     *                      coalesced error has " (repeated n times)" appended
+     * @param capacity the max number of errors waiting, a power of 2
+     */
+    public AsyncErrorListener(final ErrorListener errorListener, final int capacity) {
+        this(toSink(errorListener), capacity);
+    }
+
+    /**
+     * Constructor with a sink of the ErrorEvents themselves, e.g. to count
+     * them by code.
+     *
+     * @param sink receives the events, one at a time, on the background
+     *             thread
+     * @param capacity the max number of errors waiting, a power of 2
+     */
+    public AsyncErrorListener(final Consumer<ErrorEvent> sink, final int capacity) {
+        this.sink = Objects.requireNonNull(sink, "Sink cannot be null.");
+        this.ring = new MpscRing<ErrorEvent>(capacity);
+
+        dispatchThread = new Thread(this::runDispatcher, "kv-error-dispatch");
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+    }
+
+    private static Consumer<ErrorEvent> toSink(final ErrorListener errorListener) {
+        Objects.requireNonNull(errorListener, "Error listener cannot be null.");
+        return event -> event.deliverTo(errorListener);
+    }
+
+    @Override
+    public final void onError(final String msg) {
+        offer(ErrorEvent.other(msg, null));
+    }
+
+    @Override
+    public final void onError(final String msg, final Exception e) {
+        offer(ErrorEvent.other(msg, e));
+    }
+
+    /**
+     * Queue an error. Called by any thread, and never waits.
+     */
+    final void offer(final ErrorEvent event) {
+        if (isClosed || !ring.offer(event)) {
+            dropped.increment();
+            return;
+        }
+        if (isDispatcherParked) {
+            LockSupport.unpark(dispatchThread);
+        }
+    }
+
+    /**
+     * @return the number of errors dropped as the ring was full or this was
+     * closed
+     */
+    public final long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of errors coalesced into an identical one before
+     * them
+     */
+    public final long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of events delivered
+     */
+    public final long deliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of events whose listener threw a RuntimeException,
+     * which are not counted as delivered
+     */
+    public final long failedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Deliver the errors already queued, then stop the thread. The errors
+     * reported afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        LockSupport.unpark(dispatchThread);
+
+        if (Thread.currentThread() != dispatchThread) {
+            boolean isInterrupted = false;
+            while (dispatchThread.isAlive()) {
+                try {
+                    dispatchThread.join();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The loop of the background thread. An event is held back until the
+     * next one is taken, so the identical ones right after it are coalesced
+     * into it; it's delivered as soon as the ring is empty.
+     */
+    private void runDispatcher() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final MpscRing<ErrorEvent> ring = this.ring;
+
+        ErrorEvent pending = null;
+        while (true) {
+            final ErrorEvent event = ring.poll();
+            if (event == null) {
+                if (pending != null) {
+                    deliver(pending);
+                    pending = null;
+                    continue;
+                }
+
+                /**
+                 * The producers which have not seen isClosed may still put
+                 * an event, so the ring is checked again after it.
+                 */
+                if (isClosed) {
+                    if (ring.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                waitForEvent();
+
+            } else if (pending != null && pending.isSameError(event)) {
+                pending.addRepeat();
+                coalesced.increment();
+
+            } else {
+                if (pending != null) {
+                    deliver(pending);
+                }
+                pending = event;
+            }
+        }
+    }
+
+    private void deliver(final ErrorEvent event) {
+        try {
+            sink.accept(event);
+        } catch (RuntimeException e) {
+            /**
+             * A failing listener must not stop the delivery of the other
+             * errors, but it's counted so it does not look healthy.
+             */
+            failed.increment();
+            return;
+        }
+        delivered.increment();
+    }
+
+    /**
+     * Park until an event is put. The flag is set before the ring is checked
+     * again, so a producer putting an event after the check sees the flag
+     * and wakes the thread up.
+     */
+    private void waitForEvent() {
+        isDispatcherParked = true;
+        if (ring.isEmpty() && !isClosed) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        isDispatcherParked = false;
+    }
+}
@@ -0,0 +1,223 @@
+package lung.key_value_store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable registry of atomic groups. The keys of an atomic group are
+ * only stored when all of them are found in the same accept() call.
+ *
+ * A key of the input is looked up with one probe of an open addressing hash
+ * table, hashed and compared directly on the region of the input, so no
+ * String is created for the lookup. A key in no group, i.e. the common case,
+ * pays that probe only, and nothing at all if there is no group.
+ *
+ * Each group has up to MAX_GROUP_SIZE keys, so the keys found of a group are
+ * kept as a bit set in a long, and a group is complete when all its bits are
+ * set.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class AtomicGroups {
+
+    /**
+     * The max number of keys in a group. The keys found of a group are kept
+     * as a bit set in a long.
+     */
+    public static final int MAX_GROUP_SIZE = 64;
+
+    /**
+     * The atomic group (441,442,500) of the question.
+     */
+    public static final AtomicGroups DEFAULT = new AtomicGroups(Collections.singletonList(Arrays.asList("441", "442", "500")));
+
+    /**
+     * No atomic group at all.
+     */
+    public static final AtomicGroups NONE = new AtomicGroups(Collections.<List<String>>emptyList());
+
+    /**
+     * The keys of each group, in the order of registration, which is also the
+     * order they are stored.
+     */
+    private final String[][] groups;
+
+    /**
+     * The keys of each group joined with "," and ", ", for the error
+     * messages.
+     */
+    private final String[] joinedKeys;
+    private final String[] joinedKeysWithSpace;
+
+    /**
+     * The open addressing hash table from a key to its group and its index in
+     * the group, with linear probing. The capacity is a power of 2 of at least
+     * twice the number of keys, so the table is never full.
+     */
+    private final String[] tableKeys;
+    private final int[] tableGroups;
+    private final int[] tableIndexes;
+    private final int tableMask;
+
+    /**
+     * Constructor
+     *
+     * @param groups the keys of each group; a key can only be in one group
+     * @throws IllegalArgumentException if a group is empty or has more than
+     *                                  MAX_GROUP_SIZE keys, or a key is
+     *                                  registered twice
+     */
+    public AtomicGroups(final Collection<? extends List<String>> groups) {
+        final int numberOfGroups = groups.size();
+        this.groups = new String[numberOfGroups][];
+        this.joinedKeys = new String[numberOfGroups];
+        this.joinedKeysWithSpace = new String[numberOfGroups];
+
+        final Set<String> allKeys = new HashSet<>();
+        int g = 0;
+        for (final List<String> group : groups) {
+            if (group.isEmpty() || group.size() > MAX_GROUP_SIZE) {
+                throw new IllegalArgumentException("An atomic group must have 1 to " + MAX_GROUP_SIZE + " keys.");
+            }
+            for (final String key : group) {
+                if (!allKeys.add(key)) {
+                    throw new IllegalArgumentException("Key " + key + " is registered twice in the atomic groups.");
+                }
+            }
+            this.groups[g] = group.toArray(new String[0]);
+            this.joinedKeys[g] = String.join(",", group);
+            this.joinedKeysWithSpace[g] = String.join(", ", group);
+            ++g;
+        }
+
+        int capacity = 2;
+        while (capacity < allKeys.size() * 2) {
+            capacity <<= 1;
+        }
+        this.tableKeys = new String[capacity];
+        this.tableGroups = new int[capacity];
+        this.tableIndexes = new int[capacity];
+        this.tableMask = capacity - 1;
+
+        for (g = 0; g < numberOfGroups; ++g) {
+            final String[] keys = this.groups[g];
+            for (int i = 0; i < keys.length; ++i) {
+                int slot = spread(keys[i].hashCode()) & tableMask;
+                while (tableKeys[slot] != null) {
+                    slot = (slot + 1) & tableMask;
+                }
+                tableKeys[slot] = keys[i];
+                tableGroups[slot] = g;
+                tableIndexes[slot] = i;
+            }
+        }
+    }
+
+    /**
+     * @return the keys of each group
+     */
+    public final List<List<String>> groups() {
+        final List<List<String>> result = new ArrayList<>(groups.length);
+        for (final String[] keys : groups) {
+            result.add(Collections.unmodifiableList(Arrays.asList(keys)));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    final int size() {
+        return groups.length;
+    }
+
+    /**
+     * Find the slot of a key given as a region of a CharSequence.
+     *
+     * @param input the CharSequence containing the key
+     * @param start start position of the key (inclusive)
+     * @param end end position of the key (exclusive)
+     * @return the slot of the key, to be used with groupOf() and indexOf(),
+     * or -1 if the key is in no group
+     */
+    final int slotOf(final CharSequence input, final int start, final int end) {
+        if (groups.length == 0) {
+            return -1;
+        }
+
+        /**
+         * The same hash as String.hashCode().
+         */
+        int h = 0;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + input.charAt(i);
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final String[] tableKeys = this.tableKeys;
+        final int tableMask = this.tableMask;
+
+        int slot = spread(h) & tableMask;
+        String key;
+        while ((key = tableKeys[slot]) != null) {
+            if (key.hashCode() == h && KeyValuePairTokenizer.regionEquals(input, start, end, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the group of the key in the slot
+     */
+    final int groupOf(final int slot) {
+        return tableGroups[slot];
+    }
+
+    /**
+     * @return the index of the key in the slot in its group
+     */
+    final int indexOf(final int slot) {
+        return tableIndexes[slot];
+    }
+
+    /**
+     * @return the keys of a group
+     */
+    final String[] keys(final int group) {
+        return groups[group];
+    }
+
+    /**
+     * @return the bit set of a complete group
+     */
+    final long completeBits(final int group) {
+        final int n = groups[group].length;
+        return n == MAX_GROUP_SIZE ? -1L : (1L << n) - 1;
+    }
+
+    /**
+     * @return the keys of a group joined with ","
+     */
+    final String joinedKeys(final int group) {
+        return joinedKeys[group];
+    }
+
+    /**
+     * @return the keys of a group joined with ", "
+     */
+    final String joinedKeysWithSpace(final int group) {
+        return joinedKeysWithSpace[group];
+    }
+
+    private static int spread(final int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,208 @@
+package lung.key_value_store;
+
+import java.util.Arrays;
+
+/**
+ * The PairAggregate of each key of one batch, in the order of the first pair
+ * of each key, so the batch can be applied with one update per key.
+ *
+ * It's a PairConsumer of BatchParser, folding each pair into the aggregate
+ * of its key, found by a small open-addressing table of the keys of the
+ * batch, so nothing is created for a key but its aggregate. The table and
+ * the aggregates are reused for the next batch after clear(), which only
+ * empties the slots used, so a batch of one pair costs one slot.
+ *
+ * It's not thread-safe.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class BatchAggregation implements BatchParser.PairConsumer {
+
+    /**
+     * After a batch with more keys than this, the buffers are dropped rather
+     * than kept for the next batch, so a single huge batch does not pin them.
+     */
+    private static final int MAX_RETAINED_KEYS = 1 << 12;
+
+    private final int expectedNumberOfKeys;
+
+    /**
+     * The open-addressing table of the index of each key, with linear
+     * probing. It's kept at most half full.
+     */
+    private String[] table;
+    private int[] tableIndexes;
+
+    /**
+     * The keys in order, with their aggregates and their slots in the table.
+     */
+    private String[] keys;
+    private PairAggregate[] values;
+    private int[] slots;
+    private int size;
+
+    /**
+     * The aggregates cleared for reuse.
+     */
+    private PairAggregate[] free;
+    private int freeSize;
+
+    /**
+     * Constructor
+     *
+     * @param expectedNumberOfKeys expected number of unique keys per batch
+     */
+    BatchAggregation(final int expectedNumberOfKeys) {
+        this.expectedNumberOfKeys = Math.max(expectedNumberOfKeys, 16);
+        allocate();
+    }
+
+    private void allocate() {
+        final int capacity = Integer.highestOneBit(expectedNumberOfKeys - 1) << 2;
+        this.table = new String[capacity];
+        this.tableIndexes = new int[capacity];
+        this.keys = new String[expectedNumberOfKeys];
+        this.values = new PairAggregate[expectedNumberOfKeys];
+        this.slots = new int[expectedNumberOfKeys];
+        this.free = new PairAggregate[expectedNumberOfKeys];
+        this.freeSize = 0;
+    }
+
+    /**
+     * Fold a pair into the aggregate of its key.
+     */
+    @Override
+    public final void accept(final String key, final CharSequence input, final int valueStart, final int valueEnd) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final String[] table = this.table;
+        final int mask = table.length - 1;
+
+        int slot = spread(key.hashCode()) & mask;
+        String k;
+        while ((k = table[slot]) != null) {
+            if (k.equals(key)) {
+                values[tableIndexes[slot]].add(input, valueStart, valueEnd);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        final PairAggregate aggregate;
+        if (freeSize > 0) {
+            aggregate = free[--freeSize];
+            free[freeSize] = null;
+        } else {
+            aggregate = new PairAggregate();
+        }
+        aggregate.add(input, valueStart, valueEnd);
+
+        table[slot] = key;
+        tableIndexes[slot] = size;
+        append(key, aggregate, slot);
+
+        if (size << 1 > table.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Add the aggregate of a key which is not in the batch yet, without
+     * putting it into the table, so the key cannot be folded into any more.
+     */
+    final void add(final String key, final PairAggregate aggregate) {
+        append(key, aggregate, -1);
+    }
+
+    private void append(final String key, final PairAggregate aggregate, final int slot) {
+        final int n = size;
+        if (n == keys.length) {
+            keys = Arrays.copyOf(keys, n << 1);
+            values = Arrays.copyOf(values, n << 1);
+            slots = Arrays.copyOf(slots, n << 1);
+        }
+        keys[n] = key;
+        values[n] = aggregate;
+        slots[n] = slot;
+        size = n + 1;
+    }
+
+    /**
+     * Double the table, putting the keys in again.
+     */
+    private void rehash() {
+        final String[] table = new String[this.table.length << 1];
+        final int[] tableIndexes = new int[table.length];
+        final int mask = table.length - 1;
+
+        for (int i = 0; i < size; ++i) {
+            if (slots[i] < 0) {
+                continue;
+            }
+            int slot = spread(keys[i].hashCode()) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = keys[i];
+            tableIndexes[slot] = i;
+            slots[i] = slot;
+        }
+        this.table = table;
+        this.tableIndexes = tableIndexes;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    final int size() {
+        return size;
+    }
+
+    final String key(final int i) {
+        return keys[i];
+    }
+
+    final PairAggregate aggregate(final int i) {
+        return values[i];
+    }
+
+    /**
+     * Clear the batch, keeping the aggregates for the next one.
+     */
+    final void clear() {
+        final int n = size;
+        size = 0;
+        if (n > MAX_RETAINED_KEYS) {
+            allocate();
+            return;
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final String[] table = this.table;
+        final String[] keys = this.keys;
+        final PairAggregate[] values = this.values;
+        final int[] slots = this.slots;
+
+        if (free.length < freeSize + n) {
+            free = Arrays.copyOf(free, Math.max(free.length << 1, freeSize + n));
+        }
+        for (int i = 0; i < n; ++i) {
+            if (slots[i] >= 0) {
+                table[slots[i]] = null;
+            }
+            values[i].clear();
+            free[freeSize++] = values[i];
+            keys[i] = null;
+            values[i] = null;
+        }
+    }
+
+    private static int spread(final int h) {
+        return h ^ (h >>> 16);
+    }
+}
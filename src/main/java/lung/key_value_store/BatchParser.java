@@ -0,0 +1,279 @@
+package lung.key_value_store;
+
+/**
+ * Parses the "kvPairs" input of one accept() call, validates the atomic
+ * groups (by default only (441,442,500)), and passes every key-value pair
+ * which should be stored to a PairConsumer, in order.
+ *
+ * All the buffers are reused for every batch, so an instance is not
+ * thread-safe. ConcurrentKeysAndValues keeps one instance per thread.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class BatchParser {
+
+    /**
+     * Receives the key-value pairs to be stored. The value is given as a
+     * region of a CharSequence which is only valid during the call.
+     */
+    interface PairConsumer {
+        void accept(String key, CharSequence input, int valueStart, int valueEnd);
+    }
+
+    /**
+     * Receives the errors of the batches, e.g. to pass them to an
+     * ErrorListener by ErrorEvent.report().
+     */
+    interface ErrorSink {
+        void onError(ErrorEvent event);
+    }
+
+    private final ErrorSink errorSink;
+
+    /**
+     * The registry of the atomic groups.
+     */
+    private final AtomicGroups atomicGroups;
+
+    /**
+     * Reusable tokenizer to walk the input of accept() once without
+     * creating garbage for the key-value pairs.
+     */
+    private final KeyValuePairTokenizer tokenizer = new KeyValuePairTokenizer();
+
+    /**
+     * The values of the keys of each atomic group found in the current
+     * batch, one reusable StringBuilder per key.
+     */
+    private final StringBuilder[][] groupValues;
+
+    /**
+     * The bit set of the keys found of each atomic group in the current
+     * batch.
+     */
+    private final long[] groupBits;
+
+    /**
+     * The groups with any key found in the current batch, in the order of
+     * the first key found, so that only they are checked and reset at the
+     * end of the batch.
+     */
+    private final int[] touchedGroups;
+    private final boolean[] isTouched;
+    private int touchedSize;
+
+    /**
+     * The number of atomic groups completed, and left incomplete, since the
+     * last clearGroupCounts(), for StoreMetrics.
+     */
+    private int completedGroups;
+    private int failedGroups;
+
+    /**
+     * @param errorSink receives the errors, or null to ignore them
+     * @param atomicGroups the registry of the atomic groups
+     */
+    BatchParser(final ErrorSink errorSink, final AtomicGroups atomicGroups) {
+        this.errorSink = errorSink;
+        this.atomicGroups = atomicGroups;
+
+        final int numberOfGroups = atomicGroups.size();
+        this.groupValues = new StringBuilder[numberOfGroups][];
+        for (int g = 0; g < numberOfGroups; ++g) {
+            final int n = atomicGroups.keys(g).length;
+            this.groupValues[g] = new StringBuilder[n];
+            for (int i = 0; i < n; ++i) {
+                /**
+                 * Initial size is 64-char.
+                 */
+                this.groupValues[g][i] = new StringBuilder(1 << 6);
+            }
+        }
+        this.groupBits = new long[numberOfGroups];
+        this.touchedGroups = new int[numberOfGroups];
+        this.isTouched = new boolean[numberOfGroups];
+    }
+
+    /**
+     * Parse one batch.
+     *
+     * @param kvPairs the input of accept()
+     * @param consumer receives the key-value pairs to be stored
+     */
+    final void parse(final String kvPairs, final PairConsumer consumer) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final AtomicGroups atomicGroups = this.atomicGroups;
+
+        /**
+         * Walk the input once with the reusable tokenizer instead of
+         * splitting it with regex, so no String is created for a key-value
+         * pair until it is really stored.
+         */
+        final KeyValuePairTokenizer tokenizer = this.tokenizer;
+        tokenizer.reset(kvPairs);
+
+        while (tokenizer.next()) {
+            if (tokenizer.isValid()) {
+                final CharSequence input = tokenizer.input();
+                final int valueStart = tokenizer.valueStart();
+                final int valueEnd = tokenizer.valueEnd();
+
+                final int slot = atomicGroups.slotOf(input, tokenizer.keyStart(), tokenizer.keyEnd());
+                if (slot < 0) {
+                    /**
+                     * Not a key in any atomic group
+                     */
+                    consumer.accept(tokenizer.key(), input, valueStart, valueEnd);
+                } else {
+                    acceptGroupKey(slot, input, valueStart, valueEnd, tokenizer.partIndex(), consumer);
+                }
+
+            } else {
+                invalidFormat(tokenizer.partIndex());
+            }
+        }
+
+        /**
+         * Release the input, it may be large.
+         */
+        tokenizer.reset("");
+
+        endBatch();
+    }
+
+    /**
+     * Take a key of an atomic group found in the current batch. Called by
+     * parse(), or in the order of the input for a batch parsed elsewhere,
+     * e.g. in chunks by ParallelIngest.
+     *
+     * @param slot the slot of the key in the AtomicGroups
+     * @param input the CharSequence containing the value
+     * @param valueStart start position of the value (inclusive)
+     * @param valueEnd end position of the value (exclusive)
+     * @param partIndex the index of the part of the key in the batch
+     * @param consumer receives the key-value pairs of a completed group
+     */
+    final void acceptGroupKey(final int slot, final CharSequence input, final int valueStart, final int valueEnd,
+                              final int partIndex, final PairConsumer consumer) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final AtomicGroups atomicGroups = this.atomicGroups;
+        final long[] groupBits = this.groupBits;
+
+        final int group = atomicGroups.groupOf(slot);
+        final int index = atomicGroups.indexOf(slot);
+        final long bit = 1L << index;
+        final long bits = groupBits[group];
+
+        /**
+         * Previously matched the key already, so now overlapping.
+         */
+        if ((bits & bit) != 0) {
+            if (errorSink != null) {
+                errorSink.onError(ErrorEvent.overlappingKey(atomicGroups.keys(group)[index], partIndex,
+                        atomicGroups.joinedKeysWithSpace(group)));
+            }
+            return;
+        }
+
+        /**
+         * An empty value does not count as the key found, so the group is
+         * still missing it, and the key may be given again without
+         * overlapping.
+         */
+        if (valueStart == valueEnd) {
+            return;
+        }
+
+        if (!isTouched[group]) {
+            isTouched[group] = true;
+            touchedGroups[touchedSize++] = group;
+        }
+        final StringBuilder[] values = groupValues[group];
+        values[index].setLength(0);
+        values[index].append(input, valueStart, valueEnd);
+        groupBits[group] = bits | bit;
+
+        /**
+         * If the whole atomic group is found, save all of them to the
+         * data store and then reset the group.
+         */
+        if ((bits | bit) == atomicGroups.completeBits(group)) {
+            final String[] keys = atomicGroups.keys(group);
+            for (int i = 0; i < keys.length; ++i) {
+                consumer.accept(keys[i], values[i], 0, values[i].length());
+            }
+            groupBits[group] = 0L;
+            ++completedGroups;
+        }
+    }
+
+    /**
+     * Invalid format found.
+     *
+     * @param partIndex the index of the part in the batch
+     */
+    final void invalidFormat(final int partIndex) {
+        if (errorSink != null) {
+            errorSink.onError(ErrorEvent.invalidFormat(partIndex));
+        }
+    }
+
+    /**
+     * End the current batch. If any key of an atomic group was found, the
+     * group is in an incomplete state.
+     */
+    final void endBatch() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final AtomicGroups atomicGroups = this.atomicGroups;
+        final long[] groupBits = this.groupBits;
+
+        for (int t = 0; t < touchedSize; ++t) {
+            final int group = touchedGroups[t];
+            final long bits = groupBits[group];
+            isTouched[group] = false;
+            if (bits == 0) {
+                continue;
+            }
+            groupBits[group] = 0L;
+            ++failedGroups;
+
+            /**
+             * The message listing the missing keys is only built when it's
+             * delivered.
+             */
+            if (errorSink != null) {
+                errorSink.onError(ErrorEvent.incompleteAtomicGroup(atomicGroups.joinedKeys(group), atomicGroups.keys(group), bits));
+            }
+        }
+        touchedSize = 0;
+    }
+
+    final int completedGroups() {
+        return completedGroups;
+    }
+
+    final int failedGroups() {
+        return failedGroups;
+    }
+
+    final void clearGroupCounts() {
+        completedGroups = 0;
+        failedGroups = 0;
+    }
+
+    /**
+     * @return the index of the current part of the batch being parsed, e.g.
+     * for an error of a PairConsumer
+     */
+    final int partIndex() {
+        return tokenizer.partIndex();
+    }
+}
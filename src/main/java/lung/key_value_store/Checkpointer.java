@@ -0,0 +1,185 @@
+package lung.key_value_store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the checkpoints of a KeysAndValues as snapshot files
+ * "snapshot-<sequence>.snap" (see SnapshotFile) in a directory, with one
+ * background thread, and loads the latest one on startup.
+ *
+ * A checkpoint is taken in two steps:
+ *
+ * 1. The KeysAndValues copies its sorted key-value pairs and starts a new
+ *    segment of its write-ahead log, if any. The sequence number of the new
+ *    segment is the sequence number of the snapshot, so the snapshot covers
+ *    exactly the segments before it.
+ *
+ * 2. The copy is written to a temporary file in the background, forced and
+ *    renamed atomically. Then the older snapshots and the segments of the
+ *    write-ahead log covered by the snapshot are deleted.
+ *
+ * On startup, the latest snapshot is loaded and only the segments of the
+ * write-ahead log from its sequence number are replayed.
+ *
+ * It's thread-safe. A Checkpointer must only be used by one KeysAndValues
+ * instance.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class Checkpointer implements Closeable {
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    private final ExecutorService executor;
+
+    /**
+     * The sequence number of the latest snapshot, taken or loaded. Guarded by
+     * "this".
+     */
+    private long lastSequence;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory of the snapshot files
+     */
+    public Checkpointer(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        final List<Long> sequences = snapshotSequences();
+        this.lastSequence = sequences.isEmpty() ? 0L : sequences.get(sequences.size() - 1);
+
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "kv-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Load the latest snapshot, if any.
+     *
+     * @return the first segment of the write-ahead log to replay after the
+     * snapshot, or 0 if there is no snapshot
+     */
+    final synchronized long load(final SnapshotFile.Loader loader) throws IOException {
+        if (lastSequence == 0L) {
+            return 0L;
+        }
+        return SnapshotFile.load(snapshotPath(lastSequence), loader);
+    }
+
+    /**
+     * @return the sequence number of the next snapshot when there is no
+     * write-ahead log
+     */
+    final synchronized long nextSequence() {
+        return lastSequence + 1;
+    }
+
+    /**
+     * Write a copy of the key-value pairs in the background.
+     *
+     * @param parts the copy, e.g. by DataStore.copy()
+     * @param sequence the sequence number of the snapshot
+     * @param writeAheadLog the log whose segments before the sequence number
+     *                      are deleted after the snapshot is written, or null
+     * @return completed with the snapshot file when it's written, or
+     * completed exceptionally if it cannot be written
+     */
+    final CompletableFuture<Path> submit(final SnapshotFile.Part[] parts, final long sequence, final WriteAheadLog writeAheadLog) {
+        synchronized (this) {
+            lastSequence = Math.max(lastSequence, sequence);
+        }
+
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(write(parts, sequence, writeAheadLog));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private Path write(final SnapshotFile.Part[] parts, final long sequence, final WriteAheadLog writeAheadLog) throws IOException {
+        final Path snapshot = snapshotPath(sequence);
+        final Path temp = directory.resolve(snapshot.getFileName() + TEMP_SUFFIX);
+
+        SnapshotFile.write(temp, parts, sequence);
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        /**
+         * Only delete what the new snapshot covers once it's safely renamed.
+         */
+        for (final long s : snapshotSequences()) {
+            if (s < sequence) {
+                Files.deleteIfExists(snapshotPath(s));
+            }
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.deleteSegmentsBefore(sequence);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Wait for the submitted checkpoints to be written and stop the
+     * background thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Path snapshotPath(final long sequence) {
+        return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * @return the sequence numbers of the existing snapshots in ascending
+     * order
+     */
+    private List<Long> snapshotSequences() throws IOException {
+        final List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (final Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    /**
+                     * Not a snapshot file.
+                     */
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+}
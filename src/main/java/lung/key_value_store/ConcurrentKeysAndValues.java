@@ -0,0 +1,1107 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+import lung.key_value_store.api.UndoHistory;
+import lung.key_value_store.api.UndoSnapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe KeysAndValues which allows accept() to be called by many
+ * threads in parallel.
+ *
+ * The keys are spread over a number of stripes by their hash. Each stripe
+ * has its own DataStore guarded by its own lock, so batches touching
+ * disjoint stripes are applied in parallel.
+ *
+ * Each accept() is done in two phases:
+ *
+ * 1. The input is parsed and the atomic groups are validated
+ *    without any lock, with the parse buffers of the calling thread. The
+ *    pairs to be stored are collected into the batch buffer of the thread,
+ *    together with the set of stripes they touch.
+ *
+ * 2. The locks of those stripes are acquired in ascending order (so no
+ *    deadlock is possible), the undo snapshot is queued, the pairs are
+ *    applied, and then the locks are released. So the whole batch,
+ *    including the atomic groups, is atomic to the other callers. No other
+ *    lock is taken: the queued snapshots are saved into the Undo History in
+ *    order by undo(), redo() and the like, or by every
+ *    PENDING_SNAPSHOTS_TO_SAVE-th accept() after releasing its locks.
+ *
+ * undo() and display() acquire the locks of all stripes.
+ *
+ * With a WriteAheadLog, the batch is appended to the log in phase 2 before
+ * it's applied, and the caller waits for the record to be durable after the
+ * locks are released, so that concurrent batches share the group commit.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class ConcurrentKeysAndValues implements KeysAndValues {
+
+    /**
+     * The max number of stripes. The set of stripes touched by a batch is
+     * kept as a bit set in a long.
+     */
+    public static final int MAX_NUMBER_OF_STRIPES = 64;
+
+    private final ErrorListener errorListener;
+
+    /**
+     * The registry of the atomic groups, (441,442,500) by default.
+     */
+    private final AtomicGroups atomicGroups;
+
+    /**
+     * The data store of each stripe. A key always goes to the stripe of
+     * stripeOf(key).
+     */
+    private final DataStore[] stripes;
+
+    /**
+     * The lock of each stripe.
+     */
+    private final ReentrantLock[] locks;
+
+    private final int stripeMask;
+
+    /**
+     * The snapshots of all stripes in the order of the accept() calls.
+     * Guarded by itself.
+     */
+    private final UndoHistory undoHistory;
+
+    /**
+     * The inverses of the snapshots undone, for redo(), with the same limits
+     * as the Undo History. It's cleared by the next accept(). Guarded by the
+     * monitor of the Undo History.
+     */
+    private final UndoHistory redoHistory;
+
+    /**
+     * The snapshots of the accept() calls not saved into the Undo History yet,
+     * in the order of the write-ahead log if any. accept() only queues its
+     * snapshot, so it never takes the monitor of the Undo History but once
+     * every PENDING_SNAPSHOTS_TO_SAVE calls, to save the queue. undo(),
+     * redo(), a rollback and checkpoint() save it first as well.
+     */
+    private final ConcurrentLinkedQueue<UndoSnapshot> pendingSnapshots = new ConcurrentLinkedQueue<>();
+
+    static final int PENDING_SNAPSHOTS_TO_SAVE = 1 << 8;
+
+    /**
+     * Applies the snapshots of undo() and redo() to the stripes. Guarded by
+     * the locks of all stripes.
+     */
+    private final UndoCoalescer undoCoalescer = new UndoCoalescer();
+
+    /**
+     * The stripe of every key, for the undoCoalescer.
+     */
+    private final UndoCoalescer.Stores stores;
+
+    /**
+     * The named savepoints of the stripes, and the reusable UndoSnapshot of a
+     * rollback. Guarded by the locks of all stripes.
+     */
+    private final Savepoints savepoints;
+    private final UndoSnapshot rollbackSnapshot = new UndoSnapshot();
+
+    /**
+     * The ids of the accept() calls, to mark the values saved into their undo
+     * snapshots.
+     */
+    private final AtomicLong acceptIds = new AtomicLong();
+
+    /**
+     * The optional write-ahead log. Null if the store is not durable.
+     */
+    private final WriteAheadLog writeAheadLog;
+
+    /**
+     * The optional Checkpointer. Null if checkpoint() is not supported.
+     */
+    private final Checkpointer checkpointer;
+
+    /**
+     * The parse and batch buffers of each thread.
+     */
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * Constructor with MAX_NUMBER_OF_STRIPES stripes.
+     *
+     * @param errorListener
+     */
+    public ConcurrentKeysAndValues(final ErrorListener errorListener) {
+        this(errorListener, MAX_NUMBER_OF_STRIPES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param errorListener
+     * @param numberOfStripes a power of 2, from 1 to MAX_NUMBER_OF_STRIPES
+     */
+    public ConcurrentKeysAndValues(final ErrorListener errorListener, final int numberOfStripes) {
+        this(errorListener, numberOfStripes, null);
+    }
+
+    /**
+     * Constructor of a durable store.
+     *
+     * The write-ahead log is replayed to rebuild the data store and the Undo
+     * History, and then each accept() and undo() is appended to it before it's
+     * applied. The log is not closed by this class.
+     *
+     * @param errorListener
+     * @param numberOfStripes a power of 2, from 1 to MAX_NUMBER_OF_STRIPES
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @throws UncheckedIOException if the log cannot be replayed
+     */
+    public ConcurrentKeysAndValues(final ErrorListener errorListener, final int numberOfStripes, final WriteAheadLog writeAheadLog) {
+        this(errorListener, numberOfStripes, writeAheadLog, null);
+    }
+
+    /**
+     * Constructor of a durable store with checkpoints.
+     *
+     * The latest snapshot of the Checkpointer is loaded first, and then only
+     * the part of the write-ahead log after it is replayed. Neither the log
+     * nor the Checkpointer is closed by this class.
+     *
+     * @param errorListener
+     * @param numberOfStripes a power of 2, from 1 to MAX_NUMBER_OF_STRIPES
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @param checkpointer the Checkpointer for checkpoint(), or null
+     * @throws UncheckedIOException if the snapshot or the log cannot be read
+     */
+    public ConcurrentKeysAndValues(final ErrorListener errorListener, final int numberOfStripes,
+                                   final WriteAheadLog writeAheadLog, final Checkpointer checkpointer) {
+        this(errorListener, numberOfStripes, AtomicGroups.DEFAULT, writeAheadLog, checkpointer);
+    }
+
+    /**
+     * Constructor with all the options.
+     *
+     * @param errorListener
+     * @param numberOfStripes a power of 2, from 1 to MAX_NUMBER_OF_STRIPES
+     * @param atomicGroups the registry of the atomic groups
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @param checkpointer the Checkpointer for checkpoint(), or null
+     * @throws UncheckedIOException if the snapshot or the log cannot be read
+     */
+    public ConcurrentKeysAndValues(final ErrorListener errorListener, final int numberOfStripes, final AtomicGroups atomicGroups,
+                                   final WriteAheadLog writeAheadLog, final Checkpointer checkpointer) {
+        Objects.requireNonNull(atomicGroups, "Atomic groups cannot be null.");
+
+        if (numberOfStripes < 1 || numberOfStripes > MAX_NUMBER_OF_STRIPES || Integer.bitCount(numberOfStripes) != 1) {
+            throw new IllegalArgumentException("The number of stripes must be a power of 2 from 1 to " + MAX_NUMBER_OF_STRIPES + ".");
+        }
+
+        this.errorListener = errorListener;
+        this.atomicGroups = atomicGroups;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(errorListener));
+        this.stripeMask = numberOfStripes - 1;
+        this.stripes = new DataStore[numberOfStripes];
+        this.locks = new ReentrantLock[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; ++i) {
+            this.stripes[i] = new DataStore(KeysAndValuesImpl.EXPECTED_NUMBER_OF_UNIQUE_KEYS / numberOfStripes);
+            this.locks[i] = new ReentrantLock();
+        }
+        this.undoHistory = new UndoHistoryImpl(KeysAndValuesImpl.UNDO_HISTORY_SIZE, KeysAndValuesImpl.UNDO_HISTORY_BUDGET);
+        this.redoHistory = UndoHistoryImpl.redoHistoryOf(undoHistory);
+        this.stores = key -> stripes[stripeOf(key)];
+        this.savepoints = new Savepoints(stripes);
+
+        this.writeAheadLog = writeAheadLog;
+        this.checkpointer = checkpointer;
+
+        long walSequence = 0L;
+        if (checkpointer != null) {
+            walSequence = loadSnapshot(checkpointer);
+        }
+        if (writeAheadLog != null) {
+            replay(writeAheadLog, walSequence);
+        }
+    }
+
+    @Override
+    public final void accept(final String kvPairs) {
+        // Input "numbers" cannot be null.
+        Objects.requireNonNull(kvPairs, "Input cannot be null.");
+
+        final Scratch scratch = this.scratch.get();
+        final long position;
+        try {
+            /**
+             * Phase 1: parse without any lock.
+             */
+            scratch.parser.parse(kvPairs, scratch);
+
+            /**
+             * Phase 2: apply with the locks of the touched stripes. A batch
+             * touching no stripe still takes the first lock, so it's logged
+             * and queued in the same order as the calls locking all stripes.
+             */
+            final long stripeBits = scratch.stripeBits == 0L ? 1L : scratch.stripeBits;
+            lock(stripeBits);
+            try {
+                position = apply(kvPairs, scratch, writeAheadLog);
+            } finally {
+                unlock(stripeBits);
+            }
+
+            /**
+             * Save the queued snapshots without the locks of the stripes, so
+             * the other threads are not held up meanwhile.
+             */
+            if (scratch.isSaveDue) {
+                synchronized (undoHistory) {
+                    savePendingSnapshots();
+                }
+            }
+
+        } finally {
+            scratch.clear();
+        }
+
+        /**
+         * Wait for the group commit without any lock, so the batches of the
+         * other threads can join the same fsync.
+         */
+        awaitDurable(position);
+    }
+
+    /**
+     * Apply the parsed batch of the thread. The locks of the touched stripes
+     * must have been acquired.
+     *
+     * @param writeAheadLog the log to append the batch to before applying it,
+     *                      or null
+     * @return the position of the record in the write-ahead log, or -1 if
+     * nothing is logged
+     */
+    private long apply(final String kvPairs, final Scratch scratch, final WriteAheadLog writeAheadLog) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore[] stripes = this.stripes;
+        final UndoSnapshot snapshot = scratch.snapshot;
+        final String[] keys = scratch.keys;
+        final String[] values = scratch.values;
+        final int size = scratch.size;
+        final long acceptId = acceptIds.incrementAndGet();
+
+        /**
+         * Save how to undo each key in this batch into the snapshot before
+         * any modification, once per key: a new key is deleted and an
+         * existing one is restored. The batch is only applied after the
+         * snapshot is saved, so an integer is restored as its previous long
+         * instead of a delta.
+         */
+        for (int i = 0; i < size; ++i) {
+            final String key = keys[i];
+            final Value value = stripes[stripeOf(key)].value(key);
+            if (value == null) {
+                snapshot.addDelete(key);
+            } else if (value.markUndoSaved(acceptId)) {
+                if (value.isLong()) {
+                    snapshot.addRestore(key, value.longValue());
+                } else {
+                    snapshot.addRestore(key, value.toString());
+                }
+            }
+        }
+
+        /**
+         * Logged and queued together before the locks are released, so the
+         * records in the write-ahead log and the snapshots in the Undo
+         * History are in the same order, and the batches touching the same
+         * key are in the order of applying. The log is locked by its own
+         * monitor, which appendAccept() takes anyway, and without the log
+         * nothing is locked but the stripes.
+         */
+        final UndoSnapshot pending = copyOf(snapshot);
+        long position = -1L;
+        if (writeAheadLog != null) {
+            synchronized (writeAheadLog) {
+                try {
+                    position = writeAheadLog.appendAccept(kvPairs);
+                } catch (IOException e) {
+                    /**
+                     * Write ahead: a batch which cannot be logged is not
+                     * applied.
+                     */
+                    throwError(scratch.errorListener, ErrorEvent.writeAheadLogWriteFailure(e));
+                    return -1L;
+                }
+                pendingSnapshots.offer(pending);
+            }
+        } else {
+            pendingSnapshots.offer(pending);
+        }
+        scratch.isSaveDue = (acceptId & (PENDING_SNAPSHOTS_TO_SAVE - 1)) == 0;
+
+        for (int i = 0; i < size; ++i) {
+            final String key = keys[i];
+            final String value = values[i];
+
+            try {
+                stripes[stripeOf(key)].put(key, value, 0, value.length());
+
+            } catch (NumberFormatException | ArithmeticException e) {
+                /**
+                 * Integer value > Long.MAX_VALUE, or the sum overflows a long.
+                 * The pairs are put after the batch is parsed, so the part is
+                 * not known any more.
+                 */
+                throwError(scratch.errorListener, ErrorEvent.integerOverflow(key, ErrorEvent.NO_OFFSET, e));
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * @return a copy of the reusable snapshot of a thread, of its own size
+     */
+    private static UndoSnapshot copyOf(final UndoSnapshot snapshot) {
+        final int size = snapshot.size();
+        final UndoSnapshot copy = new UndoSnapshot(size);
+        for (int i = 0; i < size; ++i) {
+            copy.add(snapshot, i);
+        }
+        return copy;
+    }
+
+    /**
+     * Save the queued snapshots into the Undo History in order. Any of them
+     * is an accept() after the latest undo() or redo(), which saved the queue
+     * first, so the Redo History is cleared. The monitor of the Undo History
+     * must have been acquired.
+     */
+    private void savePendingSnapshots() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final UndoHistory undoHistory = this.undoHistory;
+
+        UndoSnapshot pending = pendingSnapshots.poll();
+        if (pending == null) {
+            return;
+        }
+
+        if (redoHistory.hasSnapshot()) {
+            redoHistory.clear();
+        }
+        do {
+            undoHistory.saveSnapshot(pending);
+            pending = pendingSnapshots.poll();
+        } while (pending != null);
+    }
+
+    /**
+     * Clear the Undo History, with the queued snapshots, and the Redo
+     * History. The monitor of the Undo History or the only thread must have
+     * been acquired.
+     */
+    private void clearHistories() {
+        pendingSnapshots.clear();
+        undoHistory.clear();
+        redoHistory.clear();
+    }
+
+    @Override
+    public final void undo() {
+        undo(1);
+    }
+
+    @Override
+    public final void undo(final int n) {
+        apply(undoHistory, redoHistory, n, false);
+    }
+
+    @Override
+    public final void redo() {
+        redo(1);
+    }
+
+    @Override
+    public final void redo(final int n) {
+        apply(redoHistory, undoHistory, n, true);
+    }
+
+    private void apply(final UndoHistory from, final UndoHistory to, final int n, final boolean isRedo) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The number of steps cannot be negative.");
+        }
+
+        final long position;
+        lockAll();
+        try {
+            position = applyHistory(from, to, n, isRedo, writeAheadLog);
+        } finally {
+            unlockAll();
+        }
+
+        awaitDurable(position);
+    }
+
+    /**
+     * Recover the latest n snapshots of one history, if any, and save their
+     * inverses into the other one. The locks of all stripes must have been
+     * acquired.
+     *
+     * @param isRedo whether it's logged as a redo() or an undo()
+     * @param writeAheadLog the log to append the call to before applying it,
+     *                      or null
+     * @return the position of the record in the write-ahead log, or -1 if
+     * nothing is logged
+     */
+    private long applyHistory(final UndoHistory from, final UndoHistory to, final int n, final boolean isRedo,
+                              final WriteAheadLog writeAheadLog) {
+        long position = -1L;
+        synchronized (undoHistory) {
+            savePendingSnapshots();
+
+            /**
+             * Nothing is logged when there is nothing to undo or redo.
+             */
+            if (n == 0 || !from.hasSnapshot()) {
+                return -1L;
+            }
+            if (writeAheadLog != null) {
+                try {
+                    position = isRedo ? writeAheadLog.appendRedo(n) : writeAheadLog.appendUndo(n);
+                } catch (IOException e) {
+                    throwError(errorListener, ErrorEvent.writeAheadLogWriteFailure(e));
+                    return -1L;
+                }
+            }
+            undoCoalescer.apply(from, to, n, stores);
+        }
+        return position;
+    }
+
+    @Override
+    public final void savepoint(final String name) {
+        applySavepoint(WriteAheadLog.SAVEPOINT, name);
+    }
+
+    @Override
+    public final void rollbackTo(final String name) {
+        applySavepoint(WriteAheadLog.ROLLBACK_TO, name);
+    }
+
+    @Override
+    public final void releaseSavepoint(final String name) {
+        applySavepoint(WriteAheadLog.RELEASE_SAVEPOINT, name);
+    }
+
+    /**
+     * Log and apply a savepoint call with the locks of all stripes, so the
+     * savepoint is at the same point of every stripe.
+     *
+     * @param type SAVEPOINT, ROLLBACK_TO or RELEASE_SAVEPOINT
+     */
+    private void applySavepoint(final byte type, final String name) {
+        Objects.requireNonNull(name, "The name of a savepoint cannot be null.");
+
+        long position = -1L;
+        lockAll();
+        try {
+            synchronized (undoHistory) {
+                if (type == WriteAheadLog.SAVEPOINT) {
+                    if (savepoints.contains(name)) {
+                        throw new IllegalArgumentException("Savepoint " + name + " exists already.");
+                    }
+                } else if (!savepoints.contains(name)) {
+                    throw new IllegalArgumentException("Savepoint " + name + " does not exist.");
+                }
+
+                if (writeAheadLog != null) {
+                    try {
+                        position = writeAheadLog.appendSavepoint(type, name);
+                    } catch (IOException e) {
+                        throwError(errorListener, ErrorEvent.writeAheadLogWriteFailure(e));
+                        return;
+                    }
+                }
+
+                if (type == WriteAheadLog.SAVEPOINT) {
+                    savepoints.create(name);
+                } else if (type == WriteAheadLog.ROLLBACK_TO) {
+                    applyRollbackTo(name);
+                } else {
+                    savepoints.release(name);
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+
+        awaitDurable(position);
+    }
+
+    /**
+     * Roll back to a savepoint, and save the rollback into the Undo History as
+     * one snapshot. The locks of all stripes and the monitor of the Undo
+     * History must have been acquired.
+     */
+    private void applyRollbackTo(final String name) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final UndoSnapshot rollbackSnapshot = this.rollbackSnapshot;
+
+        savePendingSnapshots();
+        savepoints.rollbackTo(name, rollbackSnapshot);
+        undoHistory.saveSnapshot(rollbackSnapshot);
+        rollbackSnapshot.clear();
+
+        if (redoHistory.hasSnapshot()) {
+            redoHistory.clear();
+        }
+    }
+
+    /**
+     * Wait until a record of the write-ahead log is durable according to its
+     * FsyncPolicy. The call has been applied already, so a failure is only
+     * reported.
+     *
+     * @param position the position of the record, or -1 if nothing is logged
+     */
+    private void awaitDurable(final long position) {
+        if (position < 0) {
+            return;
+        }
+        try {
+            writeAheadLog.awaitDurable(position);
+        } catch (IOException e) {
+            throwError(errorListener, ErrorEvent.writeAheadLogForceFailure(e));
+        }
+    }
+
+    /**
+     * Take a checkpoint: the key-value pairs of all stripes are copied with
+     * all the locks, a new segment of the write-ahead log is started, and the
+     * copy is merged and written to a snapshot file in the background without
+     * any lock. The older segments of the log are deleted after the snapshot
+     * is written.
+     *
+     * The snapshot keeps the key-value pairs only, so the Undo History, the
+     * Redo History and the savepoints are cleared: a checkpoint cannot be
+     * undone or rolled back.
+     *
+     * The copy blocks all the writers, as it holds every lock, so it matches
+     * the segment of the write-ahead log exactly. It takes about 20 ms per
+     * million keys, but the keys added since the last display() or
+     * checkpoint() are sorted into the index of each stripe first, e.g.
+     * about 0.8 s for a million new keys over 8 stripes. Only merging and
+     * writing the file is in the background, without any lock.
+     *
+     * @return completed with the snapshot file when it's written, or
+     * completed exceptionally if it cannot be written
+     * @throws IllegalStateException if no Checkpointer is given
+     */
+    public final CompletableFuture<Path> checkpoint() {
+        if (checkpointer == null) {
+            throw new IllegalStateException("No Checkpointer is given.");
+        }
+
+        final DataStore[] stripes = this.stripes;
+        final SnapshotFile.Part[] parts = new SnapshotFile.Part[stripes.length];
+        final long sequence;
+
+        lockAll();
+        try {
+            for (int i = 0; i < stripes.length; ++i) {
+                parts[i] = stripes[i].copy();
+            }
+
+            try {
+                sequence = writeAheadLog == null ? checkpointer.nextSequence() : writeAheadLog.rollSegmentForCheckpoint();
+            } catch (IOException e) {
+                throwError(errorListener, ErrorEvent.writeAheadLogWriteFailure(e));
+                final CompletableFuture<Path> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+
+            /**
+             * accept() saves the queued snapshots after releasing its locks.
+             */
+            synchronized (undoHistory) {
+                clearHistories();
+            }
+            savepoints.clear();
+        } finally {
+            unlockAll();
+        }
+
+        return checkpointer.submit(parts, sequence, writeAheadLog);
+    }
+
+    /**
+     * Load the latest snapshot straight into the sorted index of the stripes.
+     * Each stripe receives its keys in the sorted order as well.
+     *
+     * @return the first segment of the write-ahead log to replay
+     */
+    private long loadSnapshot(final Checkpointer checkpointer) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore[] stripes = this.stripes;
+
+        try {
+            return checkpointer.load(new SnapshotFile.Loader() {
+                @Override
+                public void loadLong(final String key, final long value) {
+                    stripes[stripeOf(key)].load(key).set(value);
+                }
+
+                @Override
+                public void loadText(final String key, final String value) {
+                    stripes[stripeOf(key)].load(key).set(value, 0, value.length());
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Apply the records of the write-ahead log in order, exactly as the
+     * original calls. Called by the constructor only.
+     */
+    private void replay(final WriteAheadLog writeAheadLog, final long fromSequence) {
+        /**
+         * The errors in the records were reported when they were accepted.
+         */
+        final Scratch replayScratch = new Scratch(null);
+
+        try {
+            writeAheadLog.replay(fromSequence, new WriteAheadLog.RecordHandler() {
+                @Override
+                public void onAccept(final String kvPairs) {
+                    try {
+                        replayScratch.parser.parse(kvPairs, replayScratch);
+                        apply(kvPairs, replayScratch, null);
+                    } finally {
+                        replayScratch.clear();
+                    }
+                }
+
+                @Override
+                public void onUndo(final int n) {
+                    applyHistory(undoHistory, redoHistory, n, false, null);
+                }
+
+                @Override
+                public void onRedo(final int n) {
+                    applyHistory(redoHistory, undoHistory, n, true, null);
+                }
+
+                @Override
+                public void onSavepoint(final String name) {
+                    savepoints.create(name);
+                }
+
+                @Override
+                public void onRollbackTo(final String name) {
+                    applyRollbackTo(name);
+                }
+
+                @Override
+                public void onReleaseSavepoint(final String name) {
+                    savepoints.release(name);
+                }
+
+                /**
+                 * The batches of a bulk load of KeysAndValuesImpl are
+                 * replayed as separate undo steps.
+                 */
+                @Override
+                public void onBeginBulk(final boolean isUndoable) {
+                    if (!isUndoable) {
+                        clearHistories();
+                    }
+                }
+
+                @Override
+                public void onBulkAccept(final String kvPairs) {
+                    onAccept(kvPairs);
+                }
+
+                @Override
+                public void onCheckpoint() {
+                    clearHistories();
+                    savepoints.clear();
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public final String display() {
+        return displayToString(ALL_KEYS, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public final String display(final String fromKey, final String toKey) {
+        return displayToString(new StripeRange() {
+            @Override
+            public int from(final DataStore dataStore) {
+                return dataStore.indexFrom(fromKey);
+            }
+
+            @Override
+            public int to(final DataStore dataStore, final int from) {
+                return Math.max(from, dataStore.indexTo(toKey));
+            }
+        }, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public final String display(final String prefix) {
+        Objects.requireNonNull(prefix, "Prefix cannot be null.");
+
+        return displayToString(new StripeRange() {
+            @Override
+            public int from(final DataStore dataStore) {
+                return dataStore.indexFrom(prefix);
+            }
+
+            @Override
+            public int to(final DataStore dataStore, final int from) {
+                return dataStore.indexAfterPrefix(from, prefix);
+            }
+        }, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public final String displayPage(final String afterKey, final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative.");
+        }
+
+        return displayToString(new StripeRange() {
+            @Override
+            public int from(final DataStore dataStore) {
+                return dataStore.indexAfter(afterKey);
+            }
+
+            @Override
+            public int to(final DataStore dataStore, final int from) {
+                return (int) Math.min((long) from + limit, dataStore.size());
+            }
+        }, limit);
+    }
+
+    /**
+     * A point lookup with the lock of the stripe of the key only.
+     *
+     * @param key key
+     * @return the current value of the key, or null if the key does not exist
+     */
+    @Override
+    public final String get(final String key) {
+        Objects.requireNonNull(key, "Key cannot be null.");
+
+        final int stripe = stripeOf(key);
+        final ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try {
+            return stripes[stripe].get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Look up many keys with the locks of their stripes acquired together,
+     * so the result is consistent with the batches of accept().
+     *
+     * @param keys keys
+     * @return the current values of the keys which exist
+     */
+    @Override
+    public final Map<String, String> multiGet(final Collection<String> keys) {
+        long stripeBits = 0L;
+        for (final String key : keys) {
+            stripeBits |= 1L << stripeOf(key);
+        }
+
+        final Map<String, String> result = new HashMap<String, String>((int)(keys.size() * 1.25));
+
+        lock(stripeBits);
+        try {
+            /**
+             * Make a shortcut to avoid frequent address redirection.
+             */
+            final DataStore[] stripes = this.stripes;
+
+            for (final String key : keys) {
+                final String value = stripes[stripeOf(key)].get(key);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+        } finally {
+            unlock(stripeBits);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stream the same output as display() to an Appendable in bounded
+     * chunks. All stripes are locked until the whole output is written, so a
+     * slow Appendable blocks accept().
+     *
+     * @param out the Appendable to write to; it's not closed
+     */
+    @Override
+    public final void display(final Appendable out) throws IOException {
+        final DisplayWriter displayWriter = scratch.get().displayWriter;
+        displayWriter.open(out);
+        writeSorted(displayWriter, ALL_KEYS, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stream the same output as display() to a channel in bounded chunks,
+     * encoded in UTF-8. All stripes are locked until the whole output is
+     * written, so a slow channel blocks accept().
+     *
+     * @param channel the channel to write to; it's not closed
+     */
+    @Override
+    public final void display(final WritableByteChannel channel) throws IOException {
+        final DisplayWriter displayWriter = scratch.get().displayWriter;
+        displayWriter.open(channel);
+        writeSorted(displayWriter, ALL_KEYS, Integer.MAX_VALUE);
+    }
+
+    private String displayToString(final StripeRange range, final int limit) {
+        final StringBuilder sb = new StringBuilder();
+        final DisplayWriter displayWriter = scratch.get().displayWriter;
+        displayWriter.open(sb);
+        try {
+            writeSorted(displayWriter, range, limit);
+        } catch (IOException e) {
+            /**
+             * A StringBuilder never throws IOException.
+             */
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Merge the keys in the range of all stripes into an opened
+     * DisplayWriter, and then close it. The range of each stripe is found by
+     * binary search, so it costs O(number of stripes x log n + number of keys
+     * written).
+     *
+     * @param limit max number of keys to write
+     */
+    private void writeSorted(final DisplayWriter displayWriter, final StripeRange range, final int limit) throws IOException {
+        lockAll();
+        try {
+            final DataStore[] stripes = this.stripes;
+            final PriorityQueue<StripeCursor> cursors = new PriorityQueue<>(stripes.length);
+            for (final DataStore dataStore : stripes) {
+                final StripeCursor cursor = new StripeCursor(dataStore, range);
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+
+            StripeCursor cursor;
+            for (int written = 0; written < limit && (cursor = cursors.poll()) != null; ++written) {
+                displayWriter.write(cursor.value);
+
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+
+        } finally {
+            try {
+                displayWriter.close();
+            } finally {
+                unlockAll();
+            }
+        }
+    }
+
+    private int stripeOf(final String key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+
+    /**
+     * Acquire the locks of the stripes in the bit set, in ascending order.
+     */
+    private void lock(long stripeBits) {
+        final ReentrantLock[] locks = this.locks;
+        while (stripeBits != 0) {
+            locks[Long.numberOfTrailingZeros(stripeBits)].lock();
+            stripeBits &= stripeBits - 1;
+        }
+    }
+
+    private void unlock(long stripeBits) {
+        final ReentrantLock[] locks = this.locks;
+        while (stripeBits != 0) {
+            locks[Long.numberOfTrailingZeros(stripeBits)].unlock();
+            stripeBits &= stripeBits - 1;
+        }
+    }
+
+    private void lockAll() {
+        for (final ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (final ReentrantLock lock : locks) {
+            lock.unlock();
+        }
+    }
+
+    private static void throwError(final ErrorListener errorListener, final ErrorEvent event) {
+        ErrorEvent.report(errorListener, event);
+    }
+
+    /**
+     * The reusable buffers of one thread: the BatchParser, the parsed pairs of
+     * the current batch and the undo snapshot being built.
+     */
+    private final class Scratch implements BatchParser.PairConsumer {
+
+        /**
+         * Receives the errors of the batches of this Scratch; null while the
+         * write-ahead log is replayed.
+         */
+        private final ErrorListener errorListener;
+
+        private final BatchParser parser;
+
+        private final DisplayWriter displayWriter = new DisplayWriter();
+
+        private String[] keys = new String[KeysAndValuesImpl.EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT];
+        private String[] values = new String[KeysAndValuesImpl.EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT];
+        private int size;
+
+        /**
+         * The bit set of the stripes touched by the current batch.
+         */
+        private long stripeBits;
+
+        /**
+         * Whether the queued snapshots are to be saved after the batch.
+         */
+        private boolean isSaveDue;
+
+        private final UndoSnapshot snapshot = new UndoSnapshot(KeysAndValuesImpl.EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT);
+
+        private Scratch(final ErrorListener errorListener) {
+            this.errorListener = errorListener;
+            this.parser = new BatchParser(errorListener == null ? null : event -> ErrorEvent.report(errorListener, event), atomicGroups);
+        }
+
+        @Override
+        public void accept(final String key, final CharSequence input, final int valueStart, final int valueEnd) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size << 1);
+                values = Arrays.copyOf(values, size << 1);
+            }
+            keys[size] = key;
+            values[size] = input.subSequence(valueStart, valueEnd).toString();
+            ++size;
+            stripeBits |= 1L << stripeOf(key);
+        }
+
+        private void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+            stripeBits = 0L;
+            isSaveDue = false;
+            snapshot.clear();
+        }
+    }
+
+    /**
+     * A range in the sorted index of a stripe. Both methods are called after
+     * the sorted index is sorted.
+     */
+    private interface StripeRange {
+
+        int from(DataStore dataStore);
+
+        int to(DataStore dataStore, int from);
+    }
+
+    private static final StripeRange ALL_KEYS = new StripeRange() {
+        @Override
+        public int from(final DataStore dataStore) {
+            return 0;
+        }
+
+        @Override
+        public int to(final DataStore dataStore, final int from) {
+            return dataStore.size();
+        }
+    };
+
+    /**
+     * The current position in the range of the sorted keys of a stripe, for
+     * merging the stripes in display().
+     */
+    private static final class StripeCursor implements Comparable<StripeCursor> {
+
+        private final DataStore dataStore;
+        private final int to;
+        private int index;
+        private Value value;
+
+        private StripeCursor(final DataStore dataStore, final StripeRange range) {
+            this.dataStore = dataStore;
+            dataStore.sort();
+            final int from = range.from(dataStore);
+            this.index = from - 1;
+            this.to = range.to(dataStore, from);
+        }
+
+        private boolean advance() {
+            if (++index < to) {
+                value = dataStore.sortedValue(index);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int compareTo(final StripeCursor o) {
+            return DataStore.KEY_ORDER.compare(value.key(), o.value.key());
+        }
+    }
+}
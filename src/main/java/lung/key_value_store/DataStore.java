@@ -0,0 +1,713 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.UndoSnapshot;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The data store of the accepted key-value pairs, with the accumulate and
+ * overwrite rules of accept().
+ *
+ * There is only one structure per key: its Value, which also keeps the key.
+ * It's reachable by the HashMap front-end for point updates, and from the
+ * sorted index (a compact array of Value's sorted by the keys) for ordered
+ * iteration, so display() is one sequential scan of the array without any
+ * lookup.
+ *
+ * New keys are appended to a pending array instead of being inserted into
+ * the sorted index one by one. Removed keys are only marked. The pending
+ * keys are sorted and merged into the sorted index, and the removed keys are
+ * dropped, in one pass when the sorted index is next read.
+ *
+ * It's not thread-safe. KeysAndValuesImpl uses one instance and
+ * ConcurrentKeysAndValues uses one instance per lock stripe.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class DataStore {
+
+    /**
+     * The order of the keys: alphabetically and case-insensitively. Keys
+     * which only differ in case (e.g. "A" and "a") are ordered by their
+     * natural order, so that they are different keys in the sorted index.
+     */
+    static final Comparator<String> KEY_ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private static final Comparator<Value> VALUE_ORDER = (a, b) -> KEY_ORDER.compare(a.key(), b.key());
+
+    /**
+     * The hash front-end of the data store. The Value of a key is updated in
+     * place.
+     */
+    private final Map<String, Value> dataStore;
+
+    /**
+     * The sorted index. Only the first sortedSize elements are used.
+     */
+    private Value[] sorted;
+    private int sortedSize;
+
+    /**
+     * The number of Value's in the sorted index marked as removed.
+     */
+    private int removedSize;
+
+    /**
+     * The new keys not merged into the sorted index yet, in the order of
+     * insertion. Only the first pendingSize elements are used.
+     */
+    private Value[] pending;
+    private int pendingSize;
+
+    /**
+     * The journal of the savepoints: the value of each key before its first
+     * modification since the latest savepoint, in the order of modification.
+     * Null if there is no savepoint, so a modification only pays a null check
+     * then.
+     */
+    private UndoSnapshot journal;
+
+    /**
+     * The id of the latest savepoint, to mark the keys saved into the journal.
+     */
+    private long savepointId;
+
+    /**
+     * Constructor
+     *
+     * @param expectedNumberOfUniqueKeys used for setting up the initial size
+     *                                   of the HashMap and the sorted index
+     */
+    DataStore(final int expectedNumberOfUniqueKeys) {
+        /**
+         * To initialize the data store with 25% larger than the expected data
+         * size.
+         */
+        this.dataStore = new HashMap<String, Value>((int)(expectedNumberOfUniqueKeys * 1.25));
+
+        this.sorted = new Value[Math.max(expectedNumberOfUniqueKeys, 16)];
+        this.pending = new Value[16];
+    }
+
+    /**
+     * @param key key
+     * @return the current value of the key, or null if the key does not exist
+     */
+    final String get(final String key) {
+        final Value value = dataStore.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @param key key
+     * @return the Value of the key, or null if the key does not exist
+     */
+    final Value value(final String key) {
+        return dataStore.get(key);
+    }
+
+    /**
+     * Look up many keys in one pass. Nothing is created for the keys which
+     * do not exist.
+     *
+     * @param keys keys
+     * @param result the Map to put the current values of the existing keys
+     */
+    final void getAll(final Collection<String> keys, final Map<String, String> result) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Map<String, Value> dataStore = this.dataStore;
+
+        for (final String key : keys) {
+            final Value value = dataStore.get(key);
+            if (value != null) {
+                result.put(key, value.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys
+     */
+    final int size() {
+        return dataStore.size();
+    }
+
+    /**
+     * Input a pair of key-value in the data store. The value is given as a
+     * region of a CharSequence, so that a String is only created for it when
+     * it's really stored.
+     *
+     * If both the input value and the existing value are integers, they
+     * accumulate as a primitive long. Otherwise, the input value overwrites.
+     *
+     * @param inputKey key
+     * @param input the CharSequence containing the value
+     * @param valueStart start position of the value (inclusive)
+     * @param valueEnd end position of the value (exclusive)
+     * @throws NumberFormatException if an integer to accumulate is larger
+     * than a long, in which case the data store is not changed
+     * @throws ArithmeticException if the accumulated integer overflows a
+     * long, in which case the data store is not changed
+     * @return the Value of the key
+     */
+    final Value put(final String inputKey, final CharSequence input, final int valueStart, final int valueEnd) {
+        final Value value = dataStore.get(inputKey);
+
+        if (journal != null) {
+            saveIntoJournal(inputKey, value);
+        }
+
+        if (value != null) {
+            /**
+             * If both the input value and the existing value of the key are
+             * integers
+             */
+            if (KeyValuePairTokenizer.isInteger(input, valueStart, valueEnd) && value.isInteger()) {
+                /**
+                 * Accumulate
+                 */
+                value.accumulate(input, valueStart, valueEnd);
+
+            } else {
+                /**
+                 * Overwrite
+                 */
+                value.set(input, valueStart, valueEnd);
+            }
+            return value;
+
+        } else {
+            final Value inserted = insert(inputKey);
+            inserted.set(input, valueStart, valueEnd);
+            return inserted;
+        }
+    }
+
+    /**
+     * Overwrite the value of a key with a text, whatever its current value
+     * is, e.g. with the result of a pre-aggregated batch.
+     *
+     * @param key key
+     * @param current the current Value of the key as given by value(), or
+     *                null if the key does not exist, to save a lookup
+     * @param input the CharSequence containing the value
+     * @param start start position of the value (inclusive)
+     * @param end end position of the value (exclusive)
+     * @return the Value of the key
+     */
+    final Value set(final String key, final Value current, final CharSequence input, final int start, final int end) {
+        final Value value = valueForSet(key, current);
+        value.set(input, start, end);
+        return value;
+    }
+
+    /**
+     * Overwrite the value of a key with an integer, whatever its current
+     * value is.
+     *
+     * @param key key
+     * @param current the current Value of the key as given by value(), or
+     *                null if the key does not exist, to save a lookup
+     * @param integer the new value
+     * @return the Value of the key
+     */
+    final Value set(final String key, final Value current, final long integer) {
+        final Value value = valueForSet(key, current);
+        value.set(integer);
+        return value;
+    }
+
+    private Value valueForSet(final String key, final Value current) {
+        if (journal != null) {
+            saveIntoJournal(key, current);
+        }
+        return current != null ? current : insert(key);
+    }
+
+    /**
+     * Recover a value saved in an undo snapshot.
+     *
+     * @param key key
+     * @param value the old value, or null if the key did not exist
+     */
+    final void restore(final String key, final String value) {
+        if (value == null) {
+            /**
+             * "null" value in the snapshot means the key did not exist
+             * in the data store, so the key should be removed for
+             * undoing.
+             */
+            final Value removed = dataStore.remove(key);
+            if (removed != null) {
+                removed.markRemoved();
+                ++removedSize;
+            }
+
+        } else {
+            /**
+             * Recover the old value
+             */
+            valueForRestore(key).set(value, 0, value.length());
+        }
+    }
+
+    /**
+     * Apply one inverse operation of an undo snapshot.
+     *
+     * @param snapshot the undo snapshot
+     * @param i the index of the operation
+     */
+    final void undo(final UndoSnapshot snapshot, final int i) {
+        final String key = snapshot.key(i);
+
+        if (journal != null) {
+            saveIntoJournal(key, dataStore.get(key));
+        }
+
+        switch (snapshot.type(i)) {
+            case UndoSnapshot.DELETE:
+                restore(key, null);
+                break;
+
+            case UndoSnapshot.RESTORE:
+                final String text = snapshot.text(i);
+                if (text != null) {
+                    restore(key, text);
+                } else {
+                    valueForRestore(key).set(snapshot.longValue(i));
+                }
+                break;
+
+            default:
+                /**
+                 * The undo snapshots are loaded in the reverse order of
+                 * accept(), so the key is the same long as right after the
+                 * accept() which saved the delta. The subtraction wraps
+                 * around the same as the delta did, so it always gives back
+                 * the previous long.
+                 */
+                final Value value = dataStore.get(key);
+                value.set(value.longValue() - snapshot.longValue(i));
+                break;
+        }
+    }
+
+    /**
+     * Apply one inverse operation of an undo snapshot, and save the inverse
+     * of that operation, i.e. how to apply it again, into another snapshot.
+     *
+     * @param snapshot the undo snapshot
+     * @param i the index of the operation
+     * @param inverse receives the inverse of the operation
+     */
+    final void undo(final UndoSnapshot snapshot, final int i, final UndoSnapshot inverse) {
+        final String key = snapshot.key(i);
+        final byte type = snapshot.type(i);
+
+        if (type == UndoSnapshot.DELTA) {
+            /**
+             * Negating Long.MIN_VALUE gives itself, which still wraps back
+             * to the same long.
+             */
+            inverse.addDelta(key, -snapshot.longValue(i));
+        } else {
+            final Value value = dataStore.get(key);
+            if (value == null) {
+                if (type != UndoSnapshot.DELETE) {
+                    inverse.addDelete(key);
+                }
+            } else if (value.isLong()) {
+                inverse.addRestore(key, value.longValue());
+            } else {
+                inverse.addRestore(key, value.toString());
+            }
+        }
+
+        undo(snapshot, i);
+    }
+
+    /**
+     * Start a savepoint: the keys modified from now on are saved into the
+     * journal before their first modification.
+     *
+     * @param id the id of the savepoint, never 0 and never reused
+     * @return the position of the savepoint in the journal
+     */
+    final int startSavepoint(final long id) {
+        if (journal == null) {
+            journal = new UndoSnapshot();
+        }
+        savepointId = id;
+        return journal.size();
+    }
+
+    /**
+     * Put back the values of all the keys modified since a savepoint, each
+     * one written once to its value at the savepoint, and save how to undo
+     * the rollback.
+     *
+     * @param position the position of the savepoint in the journal
+     * @param id a new id of the savepoint, since the values are the same as
+     *           when it was started
+     * @param inverse receives how to undo the rollback
+     */
+    final void rollbackToSavepoint(final int position, final long id, final UndoSnapshot inverse) {
+        final UndoSnapshot journal = this.journal;
+
+        /**
+         * A key may be saved more than once (e.g. removed by undo() and
+         * inserted again), and its value at the savepoint is the oldest one.
+         * Only that one is applied, so the rollback has each key once and
+         * can be undone and redone like any other snapshot. Nothing is
+         * journaled meanwhile.
+         */
+        this.journal = null;
+        final Set<String> keys = new HashSet<String>();
+        try {
+            final int len = journal.size();
+            for (int i = position; i < len; ++i) {
+                if (keys.add(journal.key(i))) {
+                    undo(journal, i, inverse);
+                }
+            }
+        } finally {
+            this.journal = journal;
+        }
+        journal.truncate(position);
+        savepointId = id;
+    }
+
+    /**
+     * Continue the journal for an older savepoint, after the latest ones are
+     * released.
+     *
+     * @param id a new id, since the keys may have been marked for the
+     *           released savepoints
+     */
+    final void continueSavepoint(final long id) {
+        savepointId = id;
+    }
+
+    /**
+     * Stop the journal when there is no savepoint any more.
+     */
+    final void stopSavepoints() {
+        journal = null;
+    }
+
+    /**
+     * Save the value of a key into the journal before its first modification
+     * since the latest savepoint. A new key is always saved as a DELETE,
+     * since it has no Value to be marked; applying it twice is harmless.
+     */
+    private void saveIntoJournal(final String key, final Value value) {
+        if (value == null) {
+            journal.addDelete(key);
+        } else if (value.markSavepointSaved(savepointId)) {
+            if (value.isLong()) {
+                journal.addRestore(key, value.longValue());
+            } else {
+                journal.addRestore(key, value.toString());
+            }
+        }
+    }
+
+    private Value valueForRestore(final String key) {
+        final Value v = dataStore.get(key);
+        return v == null ? insert(key) : v;
+    }
+
+    /**
+     * Merge the pending keys into the sorted index and drop the removed keys
+     * from it, so that the sorted index has exactly all the keys.
+     *
+     * @return the number of keys in the sorted index
+     */
+    final int sort() {
+        if (pendingSize == 0 && removedSize == 0) {
+            return sortedSize;
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] pending = this.pending;
+        final int pendingSize = this.pendingSize;
+        final int total = this.sortedSize + pendingSize;
+
+        Arrays.sort(pending, 0, pendingSize, VALUE_ORDER);
+
+        /**
+         * The sorted index is only reallocated when it's full.
+         */
+        Value[] sorted = this.sorted;
+        if (sorted.length < total) {
+            sorted = Arrays.copyOf(sorted, Math.max(total, sorted.length + (sorted.length >> 1)));
+        }
+
+        /**
+         * Merge from the end in place, skipping the removed ones. The write
+         * position never goes below the read position of the sorted index,
+         * so nothing unread is overwritten.
+         */
+        int i = this.sortedSize - 1;
+        int j = pendingSize - 1;
+        int w = total - 1;
+        while (i >= 0 || j >= 0) {
+            final Value next;
+            if (j < 0 || (i >= 0 && VALUE_ORDER.compare(sorted[i], pending[j]) > 0)) {
+                next = sorted[i--];
+            } else {
+                next = pending[j--];
+            }
+            if (!next.isRemoved()) {
+                sorted[w--] = next;
+            }
+        }
+
+        /**
+         * Move the result to the start if any removed one is skipped.
+         */
+        final int size = total - 1 - w;
+        if (w >= 0) {
+            System.arraycopy(sorted, w + 1, sorted, 0, size);
+            Arrays.fill(sorted, size, total, null);
+        }
+
+        Arrays.fill(pending, 0, pendingSize, null);
+        this.pendingSize = 0;
+        this.removedSize = 0;
+        this.sorted = sorted;
+        this.sortedSize = size;
+        return size;
+    }
+
+    /**
+     * @param index index in the sorted index; sort() must have been called
+     *              after the last change
+     * @return the Value at the index
+     */
+    final Value sortedValue(final int index) {
+        return sorted[index];
+    }
+
+    /**
+     * A binary search in the sorted index; sort() must have been called
+     * after the last change.
+     *
+     * @param fromKey the lower bound, compared case-insensitively; null for
+     *                no bound
+     * @return the index of the first key not less than fromKey
+     */
+    final int indexFrom(final String fromKey) {
+        return fromKey == null ? 0 : lowerBound(fromKey, String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * A binary search in the sorted index; sort() must have been called
+     * after the last change.
+     *
+     * @param toKey the upper bound (exclusive), compared case-insensitively;
+     *              null for no bound
+     * @return the index after the last key less than toKey
+     */
+    final int indexTo(final String toKey) {
+        return toKey == null ? sortedSize : lowerBound(toKey, String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * A binary search in the sorted index; sort() must have been called
+     * after the last change.
+     *
+     * @param afterKey a key returned before (e.g. the last key of a page); null
+     *                 for the start
+     * @return the index of the first key after afterKey in KEY_ORDER
+     */
+    final int indexAfter(final String afterKey) {
+        if (afterKey == null) {
+            return 0;
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] sorted = this.sorted;
+
+        int low = 0;
+        int high = sortedSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (KEY_ORDER.compare(sorted[mid].key(), afterKey) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param from the index of the first key starting with the prefix, i.e.
+     *             indexFrom(prefix)
+     * @param prefix the prefix, compared case-insensitively
+     * @return the index after the last key starting with the prefix
+     */
+    final int indexAfterPrefix(final int from, final String prefix) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] sorted = this.sorted;
+        final int size = this.sortedSize;
+        final int len = prefix.length();
+
+        int i = from;
+        while (i < size && sorted[i].key().regionMatches(true, 0, prefix, 0, len)) {
+            ++i;
+        }
+        return i;
+    }
+
+    private int lowerBound(final String key, final Comparator<String> order) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] sorted = this.sorted;
+
+        int low = 0;
+        int high = sortedSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (order.compare(sorted[mid].key(), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Append the key-value pairs from the index "from" (inclusive) to the
+     * index "to" (exclusive) of the sorted index, one pair per line. The last
+     * line is also ended with "\n". sort() must have been called after the
+     * last change.
+     *
+     * @param sb the StringBuilder to append to
+     */
+    final void appendTo(final StringBuilder sb, final int from, final int to) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] sorted = this.sorted;
+
+        for (int i = from; i < to; ++i) {
+            final Value value = sorted[i];
+            sb.append(value.key()).append("=");
+            value.appendTo(sb);
+            sb.append("\n");
+        }
+    }
+
+    /**
+     * Append all key-value pairs, one pair per line, sorted by the keys.
+     * The last line is also ended with "\n".
+     *
+     * @param sb the StringBuilder to append to
+     */
+    final void appendTo(final StringBuilder sb) {
+        appendTo(sb, 0, sort());
+    }
+
+    /**
+     * Write all key-value pairs, sorted by the keys.
+     *
+     * @param writer an opened DisplayWriter
+     */
+    final void writeTo(final DisplayWriter writer) throws IOException {
+        final int size = sort();
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] sorted = this.sorted;
+
+        for (int i = 0; i < size; ++i) {
+            writer.write(sorted[i]);
+        }
+    }
+
+    /**
+     * Copy all key-value pairs, sorted by the keys, for writing a snapshot
+     * file without holding any lock.
+     */
+    final SnapshotFile.Part copy() {
+        final int size = sort();
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final Value[] sorted = this.sorted;
+        final SnapshotFile.Part part = new SnapshotFile.Part(size);
+
+        for (int i = 0; i < size; ++i) {
+            final Value value = sorted[i];
+            part.keys[i] = value.key();
+            if (value.isLong()) {
+                part.longs[i] = value.longValue();
+            } else {
+                part.texts[i] = value.toString();
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Append a key loaded from a snapshot file straight to the end of the
+     * sorted index. The keys must be loaded in KEY_ORDER into an empty
+     * DataStore.
+     *
+     * @return the Value of the new key, which is not set yet
+     * @throws IllegalStateException if the key is not after the last key
+     */
+    final Value load(final String key) {
+        if (pendingSize > 0 || (sortedSize > 0 && KEY_ORDER.compare(sorted[sortedSize - 1].key(), key) >= 0)) {
+            throw new IllegalStateException("The keys are not loaded in order.");
+        }
+
+        final Value value = new Value(key);
+        dataStore.put(key, value);
+
+        if (sortedSize == sorted.length) {
+            sorted = Arrays.copyOf(sorted, sortedSize + (sortedSize >> 1));
+        }
+        sorted[sortedSize++] = value;
+        return value;
+    }
+
+    /**
+     * Add a new key into the HashMap front-end and the pending keys.
+     *
+     * @return the Value of the new key, which is not set yet
+     */
+    private Value insert(final String key) {
+        final Value value = new Value(key);
+        dataStore.put(key, value);
+
+        if (pendingSize == pending.length) {
+            pending = Arrays.copyOf(pending, pendingSize << 1);
+        }
+        pending[pendingSize++] = value;
+        return value;
+    }
+}
@@ -0,0 +1,184 @@
+package lung.key_value_store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the sorted key-value pairs of display() to an Appendable or a
+ * WritableByteChannel in bounded chunks, so that a very large data store
+ * can be dumped with constant memory.
+ *
+ * The lines are first put into a reusable chunk StringBuilder. When the
+ * chunk is full, it's appended to the Appendable, or encoded into UTF-8
+ * through a reusable ByteBuffer and written to the channel.
+ *
+ * The output is the same as display(): one pair per line, and the last line
+ * is not ended with "\n".
+ *
+ * An instance is reusable but not thread-safe.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class DisplayWriter {
+
+    /**
+     * The chunk is written out once it has at least this number of chars.
+     */
+    static final int CHUNK_SIZE = 1 << 13;
+
+    private final StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 128);
+
+    /**
+     * A copy of the chunk to be encoded. The UTF-8 encoder is much faster on
+     * an array-backed CharBuffer than on a wrapped StringBuilder.
+     */
+    private char[] chars = new char[CHUNK_SIZE + 128];
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Large enough for a whole chunk of ASCII, so usually a chunk is written
+     * to the channel with one write().
+     */
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(CHUNK_SIZE + 128);
+
+    private Appendable appendable;
+
+    private WritableByteChannel channel;
+
+    private boolean isFirstLine;
+
+    final void open(final Appendable appendable) {
+        this.appendable = appendable;
+        this.channel = null;
+        reset();
+    }
+
+    final void open(final WritableByteChannel channel) {
+        this.appendable = null;
+        this.channel = channel;
+        reset();
+    }
+
+    /**
+     * Write one key-value pair as a line.
+     */
+    final void write(final Value value) throws IOException {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final StringBuilder chunk = this.chunk;
+
+        if (isFirstLine) {
+            isFirstLine = false;
+        } else {
+            chunk.append("\n");
+        }
+        chunk.append(value.key()).append("=");
+        value.appendTo(chunk);
+
+        if (chunk.length() >= CHUNK_SIZE) {
+            flushChunk(false);
+        }
+    }
+
+    /**
+     * Write one key-value pair of a PersistentTree as a line.
+     */
+    final void write(final PersistentTree.Node node) throws IOException {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final StringBuilder chunk = this.chunk;
+
+        if (isFirstLine) {
+            isFirstLine = false;
+        } else {
+            chunk.append("\n");
+        }
+        chunk.append(node.key).append("=");
+        node.appendTo(chunk);
+
+        if (chunk.length() >= CHUNK_SIZE) {
+            flushChunk(false);
+        }
+    }
+
+    /**
+     * Write out everything left. The Appendable or the channel is not
+     * closed, and no reference to it is kept.
+     */
+    final void close() throws IOException {
+        try {
+            flushChunk(true);
+        } finally {
+            appendable = null;
+            channel = null;
+        }
+    }
+
+    private void reset() {
+        chunk.setLength(0);
+        byteBuffer.clear();
+        encoder.reset();
+        isFirstLine = true;
+    }
+
+    private void flushChunk(final boolean endOfInput) throws IOException {
+        if (appendable != null) {
+            appendable.append(chunk);
+
+        } else {
+            /**
+             * The chunk always ends at the end of a line, so no surrogate
+             * pair is split between two chunks.
+             */
+            final int length = chunk.length();
+            if (chars.length < length) {
+                chars = new char[length];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            chunk.getChars(0, length, chars, 0);
+
+            final CharBuffer in = charBuffer;
+            in.clear();
+            in.limit(length);
+            for (;;) {
+                final CoderResult result = encoder.encode(in, byteBuffer, endOfInput);
+                if (result.isOverflow()) {
+                    writeByteBuffer();
+                } else {
+                    break;
+                }
+            }
+
+            if (endOfInput) {
+                while (encoder.flush(byteBuffer).isOverflow()) {
+                    writeByteBuffer();
+                }
+            }
+            writeByteBuffer();
+        }
+
+        chunk.setLength(0);
+    }
+
+    private void writeByteBuffer() throws IOException {
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+        byteBuffer.clear();
+    }
+}
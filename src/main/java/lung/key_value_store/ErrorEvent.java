@@ -0,0 +1,252 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+
+/**
+ * An error of a store, recorded with its code, the key it's about and where
+ * it is in the batch, so the message is only built when it's delivered,
+ * e.g. by the background thread of an AsyncErrorListener.
+ *
+ * message() gives exactly the message passed to an ErrorListener.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class ErrorEvent {
+
+    public enum Code {
+        /**
+         * A part of the batch is not in the "key=value" format.
+         */
+        INVALID_FORMAT,
+
+        /**
+         * A key of an atomic group is found again before the group is
+         * complete.
+         */
+        OVERLAPPING_KEY,
+
+        /**
+         * An atomic group is left incomplete at the end of a batch.
+         */
+        INCOMPLETE_ATOMIC_GROUP,
+
+        /**
+         * An integer is larger than a long, or a sum overflows a long.
+         */
+        INTEGER_OVERFLOW,
+
+        WRITE_AHEAD_LOG_WRITE_FAILURE,
+
+        WRITE_AHEAD_LOG_FORCE_FAILURE,
+
+        /**
+         * A message passed to an ErrorListener as is.
+         */
+        OTHER
+    }
+
+    /**
+     * The batchOffset of an error of no particular part of a batch.
+     */
+    public static final int NO_OFFSET = -1;
+
+    private final Code code;
+    private final String key;
+    private final int batchOffset;
+    private final Exception exception;
+
+    /**
+     * For OVERLAPPING_KEY and INCOMPLETE_ATOMIC_GROUP: the keys of the group,
+     * joined as in the message, and the bit set of the keys found. For
+     * OTHER: the message.
+     */
+    private final String text;
+    private final String[] groupKeys;
+    private final long foundBits;
+
+    /**
+     * The number of identical events coalesced into this one.
+     */
+    private int repeats;
+
+    private ErrorEvent(final Code code, final String key, final int batchOffset, final Exception exception,
+                       final String text, final String[] groupKeys, final long foundBits) {
+        this.code = code;
+        this.key = key;
+        this.batchOffset = batchOffset;
+        this.exception = exception;
+        this.text = text;
+        this.groupKeys = groupKeys;
+        this.foundBits = foundBits;
+    }
+
+    static ErrorEvent invalidFormat(final int batchOffset) {
+        return new ErrorEvent(Code.INVALID_FORMAT, null, batchOffset, null, null, null, 0L);
+    }
+
+    static ErrorEvent overlappingKey(final String key, final int batchOffset, final String joinedKeysWithSpace) {
+        return new ErrorEvent(Code.OVERLAPPING_KEY, key, batchOffset, null, joinedKeysWithSpace, null, 0L);
+    }
+
+    /**
+     * @param groupKeys the keys of the group, not copied
+     * @param foundBits the bit set of the keys found
+     */
+    static ErrorEvent incompleteAtomicGroup(final String joinedKeys, final String[] groupKeys, final long foundBits) {
+        /**
+         * The key of the event is the first key missing.
+         */
+        final String key = groupKeys[Long.numberOfTrailingZeros(~foundBits)];
+        return new ErrorEvent(Code.INCOMPLETE_ATOMIC_GROUP, key, NO_OFFSET, null, joinedKeys, groupKeys, foundBits);
+    }
+
+    static ErrorEvent integerOverflow(final String key, final int batchOffset, final Exception exception) {
+        return new ErrorEvent(Code.INTEGER_OVERFLOW, key, batchOffset, exception, null, null, 0L);
+    }
+
+    static ErrorEvent writeAheadLogWriteFailure(final Exception exception) {
+        return new ErrorEvent(Code.WRITE_AHEAD_LOG_WRITE_FAILURE, null, NO_OFFSET, exception, null, null, 0L);
+    }
+
+    static ErrorEvent writeAheadLogForceFailure(final Exception exception) {
+        return new ErrorEvent(Code.WRITE_AHEAD_LOG_FORCE_FAILURE, null, NO_OFFSET, exception, null, null, 0L);
+    }
+
+    static ErrorEvent other(final String msg, final Exception exception) {
+        return new ErrorEvent(Code.OTHER, null, NO_OFFSET, exception, msg, null, 0L);
+    }
+
+    public final Code code() {
+        return code;
+    }
+
+    /**
+     * @return the key of the error: the overlapping key, the first missing
+     * key of an incomplete atomic group, or the key whose integer overflows;
+     * null otherwise
+     */
+    public final String key() {
+        return key;
+    }
+
+    /**
+     * @return the index of the comma separated part of the batch where the
+     * error is, from 0, or NO_OFFSET
+     */
+    public final int batchOffset() {
+        return batchOffset;
+    }
+
+    /**
+     * @return the cause, or null
+     */
+    public final Exception exception() {
+        return exception;
+    }
+
+    /**
+     * @return the number of identical events after this one which are
+     * coalesced into it
+     */
+    public final int repeats() {
+        return repeats;
+    }
+
+    final void addRepeat() {
+        ++repeats;
+    }
+
+    /**
+     * @return the message passed to an ErrorListener for this error
+     */
+    public final String message() {
+        switch (code) {
+            case INVALID_FORMAT:
+                return "Invalid format.";
+
+            case OVERLAPPING_KEY:
+                return "Key " + key + " is overlapping in the atomic group (" + text + ").";
+
+            case INCOMPLETE_ATOMIC_GROUP: {
+                final StringBuilder sb = new StringBuilder(64);
+                sb.append("atomic group(").append(text).append(") missing ");
+                for (int i = 0; i < groupKeys.length; ++i) {
+                    if ((foundBits & (1L << i)) == 0) {
+                        sb.append(groupKeys[i]).append(",");
+                    }
+                }
+
+                /**
+                 * Remove the last ","
+                 */
+                sb.setLength(sb.length() - 1);
+                return sb.toString();
+            }
+
+            case INTEGER_OVERFLOW:
+                return "The integer value overflows.";
+
+            case WRITE_AHEAD_LOG_WRITE_FAILURE:
+                return "Failed to write the write-ahead log.";
+
+            case WRITE_AHEAD_LOG_FORCE_FAILURE:
+                return "Failed to force the write-ahead log.";
+
+            default:
+                return text;
+        }
+    }
+
+    /**
+     * @return true/false of whether the other event is the same error, i.e.
+     * the same message about the same key, wherever it is in a batch
+     */
+    final boolean isSameError(final ErrorEvent other) {
+        if (code != other.code) {
+            return false;
+        }
+        if (key == null ? other.key != null : !key.equals(other.key)) {
+            return false;
+        }
+        if (code == Code.INCOMPLETE_ATOMIC_GROUP) {
+            return groupKeys == other.groupKeys && foundBits == other.foundBits;
+        }
+        return text == null ? other.text == null : text.equals(other.text);
+    }
+
+    /**
+     * Deliver this error to an ErrorListener, e.g. on the calling thread when
+     * no AsyncErrorListener is given. The repeats, if any, are appended to
+     * the message.
+     */
+    final void deliverTo(final ErrorListener errorListener) {
+        final String msg = repeats == 0 ? message() : message() + " (repeated " + (repeats + 1) + " times)";
+        if (exception == null) {
+            errorListener.onError(msg);
+        } else {
+            errorListener.onError(msg, exception);
+        }
+    }
+
+    /**
+     * Report an error to an ErrorListener: queued without building the
+     * message if it's an AsyncErrorListener, or delivered right away
+     * otherwise.
+     *
+     * @param errorListener the ErrorListener, or null to ignore the error
+     */
+    static void report(final ErrorListener errorListener, final ErrorEvent event) {
+        if (errorListener instanceof AsyncErrorListener) {
+            ((AsyncErrorListener) errorListener).offer(event);
+        } else if (errorListener != null) {
+            event.deliverTo(errorListener);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return code + (key == null ? "" : " " + key) + (batchOffset == NO_OFFSET ? "" : " @" + batchOffset) + ": " + message();
+    }
+}
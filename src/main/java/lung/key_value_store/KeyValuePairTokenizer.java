@@ -0,0 +1,327 @@
+package lung.key_value_store;
+
+/**
+ * A reusable, index-based tokenizer for the "kvPairs" input of accept().
+ *
+ * The input is walked once. Each call of next() moves to the next comma
+ * separated part and finds the boundaries of its key and value, with the
+ * leading & trailing whitespace trimmed in place. No String is created
+ * by the tokenizer itself; key() and value() only materialize a String when
+ * the caller really needs one (e.g. to store it).
+ *
+ * The splitting rules are the same as the previous
+ * Pattern.compile(",").splitAsStream(kvPairs) + line.split("=") approach:
+ *
+ * - an empty input has no part at all
+ * - trailing empty parts (e.g. "a=1,,,") are discarded
+ * - trailing "=" of a part are discarded (e.g. "a=1==" is "a" and "1")
+ * - a part is valid only when exactly one "=" is left, otherwise it is
+ *   an invalid format
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class KeyValuePairTokenizer {
+
+    private CharSequence input;
+
+    /**
+     * The end position of the input after the trailing commas are discarded.
+     */
+    private int end;
+
+    /**
+     * The start position of the next part.
+     */
+    private int position;
+
+    /**
+     * The index of the current part, from 0.
+     */
+    private int partIndex;
+
+    private boolean valid;
+    private int keyStart;
+    private int keyEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Start tokenizing a new input. The tokenizer keeps no reference to any
+     * previous input after this call.
+     *
+     * @param input the kvPairs input
+     */
+    final void reset(final CharSequence input) {
+        this.input = input;
+
+        int end = input.length();
+        while (end > 0 && input.charAt(end - 1) == ',') {
+            --end;
+        }
+        this.end = end;
+
+        /**
+         * An input with nothing but commas has no part at all, so the start
+         * position is put after the end.
+         */
+        this.position = end == 0 ? 1 : 0;
+        this.partIndex = -1;
+        this.valid = false;
+    }
+
+    /**
+     * Start tokenizing a region of an input which starts at the beginning of
+     * the input or right after a comma, and ends before a comma or at the end
+     * given by reset(CharSequence). Unlike a whole input, a region has at
+     * least one part, even if it's empty, so the parts of the regions split
+     * at any commas are exactly the parts of the whole input.
+     *
+     * @param input the kvPairs input
+     * @param start start position of the region (inclusive)
+     * @param end end position of the region (exclusive)
+     */
+    final void reset(final CharSequence input, final int start, final int end) {
+        this.input = input;
+        this.end = end;
+        this.position = start;
+        this.partIndex = -1;
+        this.valid = false;
+    }
+
+    /**
+     * @return the end position of the input after the trailing commas are
+     * discarded
+     */
+    final int end() {
+        return end;
+    }
+
+    /**
+     * Move to the next comma separated part.
+     *
+     * @return false if there is no more part
+     */
+    final boolean next() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final CharSequence input = this.input;
+        final int end = this.end;
+        final int start = this.position;
+
+        if (start > end) {
+            return false;
+        }
+
+        int partEnd = start;
+        while (partEnd < end && input.charAt(partEnd) != ',') {
+            ++partEnd;
+        }
+        this.position = partEnd + 1;
+        ++partIndex;
+
+        /**
+         * Discard the trailing "=" of the part.
+         */
+        int e = partEnd;
+        while (e > start && input.charAt(e - 1) == '=') {
+            --e;
+        }
+
+        int equalSign = -1;
+        for (int i = start; i < e; ++i) {
+            if (input.charAt(i) == '=') {
+                if (equalSign >= 0) {
+                    /**
+                     * More than one "=" found.
+                     */
+                    valid = false;
+                    return true;
+                }
+                equalSign = i;
+            }
+        }
+
+        if (equalSign < 0) {
+            valid = false;
+            return true;
+        }
+
+        keyStart = trimStart(input, start, equalSign);
+        keyEnd = trimEnd(input, keyStart, equalSign);
+        valueStart = trimStart(input, equalSign + 1, e);
+        valueEnd = trimEnd(input, valueStart, e);
+        valid = true;
+        return true;
+    }
+
+    /**
+     * @return true/false of whether the current part is in the "key=value"
+     * format
+     */
+    final boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return the index of the current part, from 0 at the start given to
+     * reset()
+     */
+    final int partIndex() {
+        return partIndex;
+    }
+
+    final CharSequence input() {
+        return input;
+    }
+
+    final int keyStart() {
+        return keyStart;
+    }
+
+    final int keyEnd() {
+        return keyEnd;
+    }
+
+    final int valueStart() {
+        return valueStart;
+    }
+
+    final int valueEnd() {
+        return valueEnd;
+    }
+
+    /**
+     * @return the key of the current part as a new String
+     */
+    final String key() {
+        return input.subSequence(keyStart, keyEnd).toString();
+    }
+
+    /**
+     * @return the value of the current part as a new String
+     */
+    final String value() {
+        return input.subSequence(valueStart, valueEnd).toString();
+    }
+
+    /**
+     * Compare the key of the current part with a String without creating
+     * a new String.
+     *
+     * @param key the String to compare
+     * @return true/false of whether they are equal
+     */
+    final boolean keyEquals(final String key) {
+        return regionEquals(input, keyStart, keyEnd, key);
+    }
+
+    /**
+     * @return true/false of whether the value of the current part is an
+     * integer
+     */
+    final boolean isIntegerValue() {
+        return isInteger(input, valueStart, valueEnd);
+    }
+
+    static boolean regionEquals(final CharSequence input, final int start, final int end, final String s) {
+        final int len = end - start;
+        if (len != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (input.charAt(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * For better performance than Integer.parseInt for checking if a region
+     * of an input represents an integer or not.
+     *
+     * @param input
+     * @param start start position (inclusive)
+     * @param end end position (exclusive)
+     * @return true/false of whether the region is an integer
+     */
+    static boolean isInteger(final CharSequence input, final int start, final int end) {
+        if (input == null) {
+            return false;
+        }
+
+        if (start >= end) {
+            return false;
+        }
+
+        int i = start;
+
+        if (input.charAt(start) == '-') {
+            if (end - start == 1) {
+                return false;
+            }
+            i = start + 1;
+        }
+
+        for (; i < end; ++i) {
+            char c = input.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse a region which has been checked by isInteger() as a long without
+     * creating a new String.
+     *
+     * @param input
+     * @param start start position (inclusive)
+     * @param end end position (exclusive)
+     * @return the long value
+     * @throws NumberFormatException if the value overflows a long
+     */
+    static long parseLong(final CharSequence input, final int start, final int end) {
+        final boolean negative = input.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+
+        /**
+         * Accumulate negatively to be able to reach Long.MIN_VALUE.
+         */
+        long result = 0;
+        for (; i < end; ++i) {
+            final int digit = input.charAt(i) - '0';
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("For input string: \"" + input.subSequence(start, end) + "\"");
+            }
+            result = result * 10 - digit;
+        }
+
+        if (negative) {
+            return result;
+        }
+        if (result == Long.MIN_VALUE) {
+            throw new NumberFormatException("For input string: \"" + input.subSequence(start, end) + "\"");
+        }
+        return -result;
+    }
+
+    private static int trimStart(final CharSequence input, int start, final int end) {
+        while (start < end && input.charAt(start) <= ' ') {
+            ++start;
+        }
+        return start;
+    }
+
+    private static int trimEnd(final CharSequence input, final int start, int end) {
+        while (end > start && input.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        return end;
+    }
+}
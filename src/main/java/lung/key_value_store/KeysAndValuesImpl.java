@@ -3,12 +3,18 @@ package lung.key_value_store;
 import lung.key_value_store.api.ErrorListener;
 import lung.key_value_store.api.KeysAndValues;
 import lung.key_value_store.api.UndoHistory;
-import org.apache.log4j.BasicConfigurator;
+import lung.key_value_store.api.UndoSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 /**
  * Modified in Technical Test Round 2
@@ -19,24 +25,18 @@ import java.util.regex.Pattern;
  */
 public class KeysAndValuesImpl implements KeysAndValues {
 
-    private static final Logger logger = LoggerFactory.getLogger(KeysAndValuesImpl.class);
-
-    static {
-        // Initiates Apache log4j
-        BasicConfigurator.configure();
-    }
-
-    private final ErrorListener errorListener;
-
     /**
-     * The main data store that stores the key-value paris accepted.
+     * The max number of chars of a batch logged by the trace.
      */
-    private final Map<String, String> dataStore;
+    private static final int MAX_TRACED_CHARS = 256;
+
+    private final ErrorListener errorListener;
 
     /**
-     * The sorted (unique) key set of the above main data store.
+     * The main data store that stores the key-value paris accepted, with its
+     * sorted (unique) key set.
      */
-    private final SortedSet<String> dataStoreKeys;
+    private final DataStore dataStore;
 
     /**
      * Expected number of unique dataStoreKeys in the inputs
@@ -50,13 +50,7 @@ public class KeysAndValuesImpl implements KeysAndValues {
      *   less duplications
      *
      */
-    private final int EXPECTED_NUMBER_OF_UNIQUE_KEYS = 1 << 10;
-
-    /**
-     * Reusable StringBuilder to be used for building an error message to avoid
-     * recreating a temp StringBuilder every time.
-     */
-    private final StringBuilder errorMessageStringBuilder;
+    static final int EXPECTED_NUMBER_OF_UNIQUE_KEYS = 1 << 10;
 
     /**
      * Reusable StringBuilder to be used in the method "display" to avoid
@@ -65,43 +59,129 @@ public class KeysAndValuesImpl implements KeysAndValues {
     private final StringBuilder displayStringBuilder;
 
     /**
-     * The question does not mention there would be many more atomic keys, so I
-     * assume there will be only one set of atomic keys and so, for simplicity,
-     * I use three StringBuilder's here to handle the only set of  atomic key.
-     * If there would be many more atomic keys, I would use another data structure.
-     *
-     * Each is used to store the value of any of the key in the atomic key
-     * set (441, 442, 500). Initial size is 64-char.
+     * Reusable chunk and encoding buffers for streaming display().
+     */
+    private final DisplayWriter displayWriter = new DisplayWriter();
+
+    /**
+     * The registry of the atomic groups, (441,442,500) by default.
+     */
+    private final AtomicGroups atomicGroups;
+
+    /**
+     * Parses the input of accept() and validates the atomic groups with
+     * reusable buffers.
+     */
+    private final BatchParser batchParser;
+
+    /**
+     * putIntoDataStore() as a PairConsumer of the batchParser, created once
+     * to avoid creating a lambda in every accept().
+     */
+    private final BatchParser.PairConsumer putIntoDataStore = this::putIntoDataStore;
+
+    /**
+     * putIntoDataStoreWithoutUndo() as a PairConsumer, for BulkUndo.NONE.
+     */
+    private final BatchParser.PairConsumer putIntoDataStoreWithoutUndo = this::putIntoDataStoreWithoutUndo;
+
+    /**
+     * The errors of a batch being aggregated, held back until it's known
+     * that the batch is not applied pair by pair instead, which reports them
+     * itself.
+     */
+    private final List<ErrorEvent> deferredErrors = new ArrayList<ErrorEvent>();
+
+    /**
+     * Parses a batch to be aggregated and validates its atomic groups,
+     * reporting into the deferredErrors.
+     */
+    private final BatchParser deferredBatchParser;
+
+    /**
+     * The reusable aggregates of the keys of the current batch.
      */
-    private final StringBuilder valueForKey441 = new StringBuilder(1 << 6);
-    private final StringBuilder valueForKey442 = new StringBuilder(1 << 6);
-    private final StringBuilder valueForKey500 = new StringBuilder(1 << 6);
+    private final BatchAggregation batchAggregation = new BatchAggregation(EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT);
 
     /**
-     * CONSTANTS
+     * The metrics given by setMetrics(), or null if none, so a store without
+     * metrics only pays a null check per call.
      */
-    private static final String ATOMIC_KEY_441 = "441";
-    private static final String ATOMIC_KEY_442 = "442";
-    private static final String ATOMIC_KEY_500 = "500";
+    private StoreMetrics metrics;
+
+    /**
+     * The numbers of pairs accumulated and stored otherwise by the current
+     * batch, only counted with metrics.
+     */
+    private int accumulatesForEachAccept;
+    private int overwritesForEachAccept;
+
+    /**
+     * The Logger of the debug trace given by setTrace(), or null if it's off,
+     * and the trace logs one of every traceSampling accept() calls.
+     */
+    private Logger traceLogger;
+    private int traceSampling;
+    private long untracedBatches;
+
+    /**
+     * The BulkUndo of the bulk load being applied, or null if none.
+     */
+    private BulkUndo bulkUndo;
 
     /**
      * Added in Technical Test Round 2
      *
-     * A temporary Map used temporarily to save the current value of each
-     * modified key. This Map is reused in each accept(). It's cleared after
-     * use. It's also used by putIntoDataStore() which is called by accept().
+     * The inverse operations of the current accept(), built by
+     * putIntoDataStore() and saved into the Undo History at the end of
+     * accept(). It's reused in each accept() and by undo(), and cleared after
+     * use.
+     */
+    private final UndoSnapshot undoSnapshot;
+
+    /**
+     * The integer values modified by the current accept(), with their values
+     * before it. When the accept() ends, each of them which is still an
+     * integer is saved as a delta, otherwise its previous value is restored.
      */
-    private final Map<String, String> dataStoreForEachAccept;
+    private Value[] integersForEachAccept;
+    private long[] previousIntegersForEachAccept;
+    private int numberOfIntegersForEachAccept;
+
+    /**
+     * The id of the current accept(), to mark the values saved into its undo
+     * snapshot. It starts from 1 as a Value is not marked by 0.
+     */
+    private long acceptId;
 
     /**
      * Added in Technical Test Round 2
      *
-     * Expected size of dataStoreForEachAccept.
+     * Expected number of unique keys modified by each accept().
      *
      * The reason of using this is the same as that for
      * EXPECTED_NUMBER_OF_UNIQUE_KEYS
      */
-    private final int EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT = 1 << 6;
+    static final int EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT = 1 << 6;
+
+    /**
+     * By default, a batch of fewer pairs than this is applied pair by pair
+     * rather than folded into one update per key first: below several
+     * thousand pairs, the extra pass costs as much as the lookups it saves,
+     * or more.
+     */
+    static final int DEFAULT_MIN_PAIRS_TO_AGGREGATE = 1 << 13;
+
+    /**
+     * The fewest pairs of a batch folded into one update per key, given by
+     * setMinPairsToAggregate().
+     */
+    private int minPairsToAggregate = DEFAULT_MIN_PAIRS_TO_AGGREGATE;
+
+    /**
+     * The number of batches folded into one update per key, for the tests.
+     */
+    private long aggregatedBatches;
 
     /**
      * Added in Technical Test Round 2
@@ -111,6 +191,28 @@ public class KeysAndValuesImpl implements KeysAndValues {
      */
     private final UndoHistory undoHistory;
 
+    /**
+     * The inverses of the snapshots undone, for redo(), with the same limits
+     * as the Undo History. It's cleared by the next accept().
+     */
+    private final UndoHistory redoHistory;
+
+    /**
+     * Applies the snapshots of undo() and redo(), and moves their inverses
+     * between the Undo History and the Redo History.
+     */
+    private final UndoCoalescer undoCoalescer = new UndoCoalescer();
+
+    /**
+     * The named savepoints of the data store.
+     */
+    private final Savepoints savepoints;
+
+    /**
+     * The data store of every key, for the undoCoalescer.
+     */
+    private final UndoCoalescer.Stores stores;
+
     /**
      * Added in Technical Test Round 2
      *
@@ -119,6 +221,53 @@ public class KeysAndValuesImpl implements KeysAndValues {
      */
     public static final int UNDO_HISTORY_SIZE = 256;
 
+    /**
+     * The default max estimated number of bytes of the Undo History, so that
+     * a few huge batches cannot pin the heap.
+     */
+    public static final long UNDO_HISTORY_BUDGET = 64L << 20;
+
+    /**
+     * How a bulk load of acceptAll() is recorded for undo().
+     */
+    public enum BulkUndo {
+        /**
+         * The whole bulk load is one undo step. Each key is saved once
+         * however many batches modify it.
+         */
+        ONE_STEP,
+
+        /**
+         * Nothing is saved for undo. The Undo History and the Redo History
+         * are cleared, as neither the bulk load nor the calls before it can
+         * be undone any more.
+         */
+        NONE
+    }
+
+    /**
+     * Returned by logSavepoint() when the record cannot be written.
+     */
+    private static final long FAILED_TO_LOG = -2L;
+
+    /**
+     * The optional write-ahead log, to which each accept() and undo() is
+     * appended before it's applied. Null if the store is not durable.
+     */
+    private final WriteAheadLog writeAheadLog;
+
+    /**
+     * The optional Checkpointer, which writes the snapshots of checkpoint()
+     * in the background. Null if checkpoint() is not supported.
+     */
+    private final Checkpointer checkpointer;
+
+    /**
+     * Set while the write-ahead log is replayed, so that the errors which
+     * were already reported are not reported again.
+     */
+    private boolean isReplaying;
+
     /**
      * Constructor
      *
@@ -129,405 +278,1533 @@ public class KeysAndValuesImpl implements KeysAndValues {
      * @param errorListener
      */
     public KeysAndValuesImpl(final ErrorListener errorListener) {
-        this.errorListener = errorListener;
-
-        /**
-         * To initialize the data store with 25% larger than the expected data
-         * size.
-         */
-        this.dataStore = new HashMap<String, String>((int)(EXPECTED_NUMBER_OF_UNIQUE_KEYS * 1.25));
-
-        /**
-         * The stored key set is stored in a TreeSet, in ascending order
-         * alphabetically and case-insensitively.
-         */
-        this.dataStoreKeys = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        this(errorListener, AtomicGroups.DEFAULT, null, null);
+    }
 
-        /**
-         * The StringBuilder used in "display" is pre-allocated a length of
-         * EXPECTED_NUMBER_OF_UNIQUE_KEYS x 128
-         * 128 is the expected max length per line
-         */
-        this.displayStringBuilder = new StringBuilder(EXPECTED_NUMBER_OF_UNIQUE_KEYS * 128);
+    /**
+     * Constructor with custom limits of the Undo History. The oldest
+     * snapshots are evicted first when either limit is reached.
+     *
+     * @param errorListener
+     * @param undoHistorySize the max number of times of undoing
+     * @param undoHistoryBudget the max estimated number of bytes of the Undo
+     *                          History
+     */
+    public KeysAndValuesImpl(final ErrorListener errorListener, final int undoHistorySize, final long undoHistoryBudget) {
+        this(errorListener, AtomicGroups.DEFAULT, new UndoHistoryImpl(undoHistorySize, undoHistoryBudget), null, null);
+    }
 
-        this.errorMessageStringBuilder = new StringBuilder(128);
+    /**
+     * Constructor with custom atomic groups instead of the default
+     * (441,442,500).
+     *
+     * @param errorListener
+     * @param atomicGroups the registry of the atomic groups
+     */
+    public KeysAndValuesImpl(final ErrorListener errorListener, final AtomicGroups atomicGroups) {
+        this(errorListener, atomicGroups, null, null);
+    }
 
-        /**
-         * Added in Technical Test Round 2
-         *
-         * To initialize the temporary data store for each accept with 25%
-         * larger than the expected data size.
-         */
-        this.dataStoreForEachAccept = new HashMap<String, String>((int)(EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT * 1.25));
+    /**
+     * Constructor of a durable store.
+     *
+     * The write-ahead log is replayed to rebuild the data store and the Undo
+     * History, and then each accept() and undo() is appended to it before it's
+     * applied. The log is not closed by this class.
+     *
+     * @param errorListener
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @throws UncheckedIOException if the log cannot be replayed
+     */
+    public KeysAndValuesImpl(final ErrorListener errorListener, final WriteAheadLog writeAheadLog) {
+        this(errorListener, AtomicGroups.DEFAULT, writeAheadLog, null);
+    }
 
-        /**
-         * Added in Technical Test Round 2
-         */
-        this.undoHistory = new UndoHistoryImpl(UNDO_HISTORY_SIZE);
+    /**
+     * Constructor of a durable store with checkpoints.
+     *
+     * The latest snapshot of the Checkpointer is loaded first, and then only
+     * the part of the write-ahead log after it is replayed. Neither the log
+     * nor the Checkpointer is closed by this class.
+     *
+     * @param errorListener
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @param checkpointer the Checkpointer for checkpoint(), or null
+     * @throws UncheckedIOException if the snapshot or the log cannot be read
+     */
+    public KeysAndValuesImpl(final ErrorListener errorListener, final WriteAheadLog writeAheadLog, final Checkpointer checkpointer) {
+        this(errorListener, AtomicGroups.DEFAULT, writeAheadLog, checkpointer);
     }
 
     /**
-     * Modified in Technical Test Round 2
+     * Constructor with all the options.
      *
-     * The "accept" method implemented as described in the doc.
+     * @param errorListener
+     * @param atomicGroups the registry of the atomic groups
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @param checkpointer the Checkpointer for checkpoint(), or null
+     * @throws UncheckedIOException if the snapshot or the log cannot be read
+     */
+    public KeysAndValuesImpl(final ErrorListener errorListener, final AtomicGroups atomicGroups,
+                             final WriteAheadLog writeAheadLog, final Checkpointer checkpointer) {
+        this(errorListener, atomicGroups, new UndoHistoryImpl(UNDO_HISTORY_SIZE, UNDO_HISTORY_BUDGET), writeAheadLog, checkpointer);
+    }
+
+    /**
+     * Constructor with all the options.
      *
-     * @param kvPairs
+     * @param errorListener
+     * @param atomicGroups the registry of the atomic groups
+     * @param undoHistory a new, empty UndoHistory
+     * @param writeAheadLog a newly opened write-ahead log, or null
+     * @param checkpointer the Checkpointer for checkpoint(), or null
+     * @throws UncheckedIOException if the snapshot or the log cannot be read
      */
-    public final void accept(String kvPairs) {
-        // Input "numbers" cannot be null.
-        Objects.requireNonNull(kvPairs, "Input cannot be null.");
+    public KeysAndValuesImpl(final ErrorListener errorListener, final AtomicGroups atomicGroups, final UndoHistory undoHistory,
+                             final WriteAheadLog writeAheadLog, final Checkpointer checkpointer) {
+        Objects.requireNonNull(atomicGroups, "Atomic groups cannot be null.");
+        Objects.requireNonNull(undoHistory, "Undo History cannot be null.");
+
+        this.errorListener = errorListener;
+        this.atomicGroups = atomicGroups;
+
+        this.dataStore = new DataStore(EXPECTED_NUMBER_OF_UNIQUE_KEYS);
+        this.stores = key -> dataStore;
+        this.savepoints = new Savepoints(dataStore);
 
         /**
-         * Make a shortcut to avoid frequent address redirection.
+         * The StringBuilder used in "display" is pre-allocated a length of
+         * EXPECTED_NUMBER_OF_UNIQUE_KEYS x 128
+         * 128 is the expected max length per line
          */
-        final StringBuilder valueForKey441 = this.valueForKey441;
-        final StringBuilder valueForKey442 = this.valueForKey442;
-        final StringBuilder valueForKey500 = this.valueForKey500;
-
-        /**
-         * Reset the temp values which store the values of the keys in the
-         * atomic key set (441,442,500).
-         */
-        valueForKey441.setLength(0);
-        valueForKey442.setLength(0);
-        valueForKey500.setLength(0);
-
-        /**
-         * Use Java 8 Stream to split the input String with the delimiter ","
-         */
-        Pattern.compile(",")
-
-                .splitAsStream(kvPairs)
-
-                .forEach(line -> {
-                    /**
-                     * For each comma separated part, split with "=".
-                     */
-                    final String[] parts = line.split("=");
-
-                    if (parts.length == 2) {
-                        final String inputKey = parts[0].trim();
-                        final String inputValue = parts[1].trim();
-
-                        /**
-                         * If any key of the atomic key set (441,442,500) found
-                         */
-                        if (inputKey.equals(ATOMIC_KEY_441) || inputKey.equals(ATOMIC_KEY_442) || inputKey.equals(ATOMIC_KEY_500)) {
-                            if (inputKey.equals(ATOMIC_KEY_441)) {
-                                /**
-                                 * Previously matched 441 already, so now overlapping.
-                                 */
-                                if (valueForKey441.length() > 0) {
-                                    throwError("Key 441 is overlapping in the atomic group (441, 442, 500).");
-                                    return;
-                                } else {
-                                    valueForKey441.append(inputValue);
-                                }
-
-                            } else if (inputKey.equals(ATOMIC_KEY_442)) {
-                                /**
-                                 * Previously matched 442 already, so now overlapping.
-                                 */
-                                if (valueForKey442.length() > 0) {
-                                    throwError("Key 442 is overlapping in the atomic group (441, 442, 500).");
-                                    return;
-                                } else {
-                                    valueForKey442.append(inputValue);
-                                }
-
-                            } else if (inputKey.equals(ATOMIC_KEY_500)) {
-                                /**
-                                 * Previously matched 500 already, so now overlapping.
-                                 */
-                                if (valueForKey500.length() > 0) {
-                                    throwError("Key 500 is overlapping in the atomic group (441, 442, 500).");
-                                    return;
-                                } else {
-                                    valueForKey500.append(inputValue);
-                                }
-                            }
-
-                            /**
-                             * If the whole set of the atomic key set (441,442,500)
-                             * is found, save all of them to the data store and
-                             * then reset the temp values.
-                             */
-                            if (valueForKey441.length() > 0 && valueForKey442.length() > 0 && valueForKey500.length() > 0) {
-                                putIntoDataStore(ATOMIC_KEY_441, valueForKey441.toString());
-                                putIntoDataStore(ATOMIC_KEY_442, valueForKey442.toString());
-                                putIntoDataStore(ATOMIC_KEY_500, valueForKey500.toString());
-                                valueForKey441.setLength(0);
-                                valueForKey442.setLength(0);
-                                valueForKey500.setLength(0);
-                            }
-
-                        } else {
-                            /**
-                             * Not a key in the atomic key set
-                             */
-                            putIntoDataStore(inputKey, inputValue);
-                        }
-
-                    } else {
-                        /**
-                         * Invalid format found.
-                         */
-                        throwError("Invalid format.");
-                        return;
-                    }
-                });
+        this.displayStringBuilder = new StringBuilder(EXPECTED_NUMBER_OF_UNIQUE_KEYS * 128);
 
         /**
-         * If any one key of the atomic key set was found, it's in an
-         * incomplete state.
+         * The errors go through throwError(), so they are counted by the
+         * metrics as well.
          */
-        if (valueForKey441.length() > 0 || valueForKey442.length() > 0 || valueForKey500.length() > 0) {
-            errorMessageStringBuilder.setLength(0);
-            errorMessageStringBuilder.append("atomic group(441,442,500) missing ");
-
-            if (valueForKey441.length() == 0) errorMessageStringBuilder.append(ATOMIC_KEY_441).append(",");
-            if (valueForKey442.length() == 0) errorMessageStringBuilder.append(ATOMIC_KEY_442).append(",");
-            if (valueForKey500.length() == 0) errorMessageStringBuilder.append(ATOMIC_KEY_500).append(",");
-
-            /**
-             * Remove the last ","
-             */
-            errorMessageStringBuilder.setLength(errorMessageStringBuilder.length() - 1);
-
-            throwError(errorMessageStringBuilder.toString());
-        }
+        this.batchParser = new BatchParser(this::throwError, atomicGroups);
+        this.deferredBatchParser = new BatchParser(deferredErrors::add, atomicGroups);
 
         /**
          * Added in Technical Test Round 2
          *
-         * The snapshot is first built with a temporary and reusable HashMap
-         * and then the Map will be used as an input argument for UndoHistory
-         * to save the snapshot.
+         * To initialize the reusable buffers for each accept with the
+         * expected number of modified keys.
          */
-        undoHistory.saveSnapshot(dataStoreForEachAccept);
+        this.undoSnapshot = new UndoSnapshot(EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT);
+        this.integersForEachAccept = new Value[EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT];
+        this.previousIntegersForEachAccept = new long[EXPECTED_NUMBER_OF_UNIQUE_KEYS_IN_DATA_STORE_FOR_EACH_ACCEPT];
 
         /**
          * Added in Technical Test Round 2
-         *
-         * To clear the temp data-store after use in each accept().
          */
-        dataStoreForEachAccept.clear();
-    }
+        this.undoHistory = undoHistory;
 
-    /**
-     * Added in Technical Test Round 2
-     *
-     * According to the question readme:
-     * reverts the current set of kvPairs to what it was before the last accept().
-     * can be called multiple times.
-     */
-    public final void undo() {
         /**
-         * If the undo history contains any snapshot
+         * A snapshot can only be redone after being undone, so the Redo
+         * History takes the limits of the Undo History, whatever they are,
+         * to hold all the steps undone.
          */
-        if (undoHistory.hasSnapshot()) {
-            /**
-             * Make a shortcut to avoid frequent address redirection.
-             */
-            final Map<String,String> dataStore = this.dataStore;
+        this.redoHistory = UndoHistoryImpl.redoHistoryOf(undoHistory);
 
-            /**
-             * Get the latest snapshot from the undo history
-             */
-            final String[] snapshot = undoHistory.loadSnapshot();
+        this.writeAheadLog = writeAheadLog;
+        this.checkpointer = checkpointer;
 
-            /**
-             * Recover the snapshot
-             */
-            final int len = snapshot.length;
-            for (int i=0; i<len; i+=2) {
-                final String key = snapshot[i];
-                final String value = snapshot[i + 1];
-
-                if (value == null) {
-                    /**
-                     * "null" value in the snapshot means the key did not exist
-                     * in the data store, so the key should be removed for
-                     * undoing.
-                     */
-                    dataStore.remove(key);
-                    dataStoreKeys.remove(key);
-
-                } else {
-                    /**
-                     * Recover the old value
-                     */
-                    dataStore.put(key, value);
-                }
-            }
+        long walSequence = 0L;
+        if (checkpointer != null) {
+            walSequence = loadSnapshot(checkpointer);
+        }
+        if (writeAheadLog != null) {
+            replay(writeAheadLog, walSequence);
         }
     }
 
     /**
-     * Modified in Technical Test Round 2
+     * Load the latest snapshot straight into the sorted index of the data
+     * store.
      *
-     * Input a pair of key-value in the data store.
-     * @param inputKey key
-     * @param inputValue value
+     * @return the first segment of the write-ahead log to replay
      */
-    private final void putIntoDataStore(final String inputKey, final String inputValue) {
+    private long loadSnapshot(final Checkpointer checkpointer) {
         /**
-         * Added in Technical Test Round 2
-         *
-         * In each accept(), before the FIRST modification
-         * inside the accept() for each key, save the value
-         * of that key into a temp data store, so this temp
-         * data-store saves the current snapshot of all
-         * keys that are modified in this accept().
-         *
-         * If there is no existing value of the key, the temp
-         * data-store (snapshot) will store "null" as the value.
-         *
-         * The temporary data-store is reused for each accept() and must be
-         * cleared after use in each accept(). It's also used by
-         * putIntoDataStore() which is called by accept().
+         * Make a shortcut to avoid frequent address redirection.
          */
-        if (!dataStoreForEachAccept.containsKey(inputKey)) {
-            dataStoreForEachAccept.put(inputKey, dataStore.get(inputKey));
+        final DataStore dataStore = this.dataStore;
+
+        try {
+            return checkpointer.load(new SnapshotFile.Loader() {
+                @Override
+                public void loadLong(final String key, final long value) {
+                    dataStore.load(key).set(value);
+                }
+
+                @Override
+                public void loadText(final String key, final String value) {
+                    dataStore.load(key).set(value, 0, value.length());
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
+    /**
+     * Apply the records of the write-ahead log in order, exactly as the
+     * original calls.
+     */
+    private void replay(final WriteAheadLog writeAheadLog, final long fromSequence) {
         /**
-         * Make a shortcut to avoid frequent address redirection.
+         * The errors in the records were reported when they were accepted.
          */
-        final Map<String,String> dataStore = this.dataStore;
-
-        if (dataStore.containsKey(inputKey)) {
-            final String value = dataStore.get(inputKey);
+        final BatchParser replayParser = new BatchParser(null, atomicGroups);
 
-            if (isInteger(inputValue)) {
+        isReplaying = true;
+        try {
+            writeAheadLog.replay(fromSequence, new WriteAheadLog.RecordHandler() {
                 /**
-                 * If the existing value of the key is also an integer
+                 * A bulk load lasts until any other record.
                  */
-                if (isInteger(value)) {
+                @Override
+                public void onAccept(final String kvPairs) {
+                    endBulk();
+                    apply(kvPairs, replayParser);
+                }
 
-                    try {
-                        /**
-                         * Accumulate
-                         */
-                        final int sum = Integer.parseInt(value) + Integer.parseInt(inputValue);
-                        dataStore.put(inputKey, String.valueOf(sum));
-
-                    } catch (NumberFormatException e) {
-                        /**
-                         * Integer value > Integer.MAX_VALUE so Integer.parseInt
-                         * throws an exception.
-                         */
-                        throwError("The integer value overflows.", e);
-                    }
+                @Override
+                public void onUndo(final int n) {
+                    endBulk();
+                    applyUndo(n);
+                }
 
-                } else {
-                    /**
-                     * Overwrite
-                     */
-                    dataStore.put(inputKey, inputValue);
+                @Override
+                public void onRedo(final int n) {
+                    endBulk();
+                    applyRedo(n);
                 }
-            } else {
-                /**
-                 * Overwrite
-                 */
-                dataStore.put(inputKey, inputValue);
-            }
 
-        } else {
-            dataStore.put(inputKey, inputValue);
-            dataStoreKeys.add(inputKey);
+                @Override
+                public void onSavepoint(final String name) {
+                    endBulk();
+                    savepoints.create(name);
+                }
+
+                @Override
+                public void onRollbackTo(final String name) {
+                    endBulk();
+                    applyRollbackTo(name);
+                }
+
+                @Override
+                public void onReleaseSavepoint(final String name) {
+                    endBulk();
+                    savepoints.release(name);
+                }
+
+                @Override
+                public void onBeginBulk(final boolean isUndoable) {
+                    endBulk();
+                    beginBulk(isUndoable ? BulkUndo.ONE_STEP : BulkUndo.NONE);
+                }
+
+                @Override
+                public void onBulkAccept(final String kvPairs) {
+                    applyInBulk(kvPairs, replayParser);
+                }
+
+                @Override
+                public void onCheckpoint() {
+                    endBulk();
+                    undoHistory.clear();
+                    redoHistory.clear();
+                    savepoints.clear();
+                }
+            });
+            endBulk();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            isReplaying = false;
         }
     }
 
     /**
-     * The "display" method implemented as described in the doc.
+     * Modified in Technical Test Round 2
+     *
+     * The "accept" method implemented as described in the doc.
      *
+     * @param kvPairs
      */
-    public final String display() {
-        return displayWithStringBuilder().toString();
-    }
+    public final void accept(String kvPairs) {
+        // Input "numbers" cannot be null.
+        Objects.requireNonNull(kvPairs, "Input cannot be null.");
 
-    public final StringBuilder displayWithStringBuilder() {
         /**
          * Make a shortcut to avoid frequent address redirection.
          */
-        final StringBuilder displayStringBuilder = this.displayStringBuilder;
+        final StoreMetrics metrics = this.metrics;
+        final Logger traceLogger = this.traceLogger;
+
+        if (metrics == null && traceLogger == null) {
+            logAndApply(kvPairs);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        logAndApply(kvPairs);
 
+        if (metrics != null) {
+            recordBatch(metrics, startTime);
+        }
+        if (traceLogger != null && isTraceDue()) {
+            trace(traceLogger, kvPairs, startTime);
+        }
+    }
+
+    private void logAndApply(final String kvPairs) {
         /**
-         * Reuse the same StringBuilder to avoid creating garbage.
+         * Make a shortcut to avoid frequent address redirection.
          */
-        displayStringBuilder.setLength(0);
+        final WriteAheadLog writeAheadLog = this.writeAheadLog;
 
-        for (final String key : dataStoreKeys) {
-            displayStringBuilder.append(key)
-                    .append("=")
-                    .append(dataStore.get(key))
-                    .append("\n");
+        if (writeAheadLog == null) {
+            apply(kvPairs, batchParser);
+            return;
         }
 
-        // To remove to last char "\n"
-        if (displayStringBuilder.length() > 0) {
-            displayStringBuilder.setLength(displayStringBuilder.length() - 1);
+        /**
+         * Write ahead: a batch which cannot be logged is not applied.
+         */
+        final long position;
+        try {
+            position = writeAheadLog.appendAccept(kvPairs);
+        } catch (IOException e) {
+            throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+            return;
         }
 
-        return displayStringBuilder;
+        apply(kvPairs, batchParser);
+
+        awaitDurable(writeAheadLog, position);
     }
 
     /**
-     * A wrapper method to call ErrorListener.onError(String)
-     * @param msg message String to input to onError
+     * The same as accept(), with a very large input parsed in parallel by the
+     * common ForkJoinPool.
+     *
+     * @param kvPairs
+     * @see #acceptParallel(String, ForkJoinPool)
      */
-    public void throwError(final String msg) {
-        if (errorListener != null) {
-            errorListener.onError(msg);
-        }
+    public final void acceptParallel(final String kvPairs) {
+        acceptParallel(kvPairs, ForkJoinPool.commonPool());
     }
 
     /**
-     * A wrapper method to call ErrorListener.onError(String,Exception)
-     * @param msg message String to input to onError
-     * @param e Exception info to input to onError
-     */
-    public void throwError(final String msg, final Exception e) {
-        if (errorListener != null) {
-            errorListener.onError(msg, e);
+     * The same as accept(), with a very large input parsed in parallel.
+     *
+     * The input is split at commas into chunks, which are parsed by the pool,
+     * each folding the pairs into one update per key. Then the data store is
+     * updated once per key, with the same values, the same undo snapshot and
+     * the same errors, in the same order, as accept().
+     *
+     * If the integers of any key might overflow, the result cannot be worked
+     * out from the folded updates, so the input is applied pair by pair as by
+     * accept(). An input too short to be split, or a pool of one thread,
+     * falls back to accept() too.
+     *
+     * @param kvPairs
+     * @param pool the pool to parse the chunks
+     */
+    public final void acceptParallel(final String kvPairs, final ForkJoinPool pool) {
+        acceptParallel(kvPairs, pool, ParallelIngest.DEFAULT_CHUNK_LENGTH);
+    }
+
+    /**
+     * @param chunkLength the min length of a chunk
+     */
+    final void acceptParallel(final String kvPairs, final ForkJoinPool pool, final int chunkLength) {
+        // Input cannot be null.
+        Objects.requireNonNull(kvPairs, "Input cannot be null.");
+        Objects.requireNonNull(pool, "Pool cannot be null.");
+
+        if (kvPairs.length() <= chunkLength || pool.getParallelism() < 2) {
+            accept(kvPairs);
+            return;
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final WriteAheadLog writeAheadLog = this.writeAheadLog;
+        final StoreMetrics metrics = this.metrics;
+        final Logger traceLogger = this.traceLogger;
+        final long startTime = metrics == null && traceLogger == null ? 0L : System.nanoTime();
+
+        /**
+         * Logged as a normal batch, since replaying it pair by pair gives the
+         * same result.
+         */
+        long position = -1L;
+        if (writeAheadLog != null) {
+            try {
+                position = writeAheadLog.appendAccept(kvPairs);
+            } catch (IOException e) {
+                throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+                return;
+            }
+        }
+
+        applyParallel(kvPairs, pool, chunkLength);
+
+        if (writeAheadLog != null) {
+            awaitDurable(writeAheadLog, position);
+        }
+
+        if (metrics != null) {
+            recordBatch(metrics, startTime);
+        }
+        if (traceLogger != null && isTraceDue()) {
+            trace(traceLogger, kvPairs, startTime);
+        }
+    }
+
+    /**
+     * Apply one batch parsed in parallel to the data store and save its undo
+     * snapshot.
+     */
+    private void applyParallel(final String kvPairs, final ForkJoinPool pool, final int chunkLength) {
+        final Map<String, PairAggregate> aggregates;
+        try {
+            aggregates = ParallelIngest.aggregate(kvPairs, atomicGroups, deferredBatchParser, pool, chunkLength);
+        } catch (RuntimeException | Error e) {
+            deferredErrors.clear();
+            throw e;
+        }
+
+        /**
+         * The keys are distinct, so they are only listed without a table.
+         */
+        final BatchAggregation batchAggregation = new BatchAggregation(0);
+        for (final Map.Entry<String, PairAggregate> entry : aggregates.entrySet()) {
+            batchAggregation.add(entry.getKey(), entry.getValue());
+        }
+        apply(kvPairs, batchAggregation, batchParser);
+    }
+
+    /**
+     * Apply one batch to the data store and save its undo snapshot.
+     *
+     * A large batch is first folded into one update per key, so each key is
+     * looked up in the data store and saved into the undo snapshot once
+     * however many pairs it has, e.g. a burst of counters. A small one is
+     * applied pair by pair in one pass.
+     */
+    private void apply(final String kvPairs, final BatchParser batchParser) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final BatchAggregation batchAggregation = this.batchAggregation;
+
+        if (!hasPairs(kvPairs, minPairsToAggregate)) {
+            applyPairByPair(kvPairs, batchParser);
+            return;
+        }
+
+        try {
+            ++aggregatedBatches;
+            deferredBatchParser.parse(kvPairs, batchAggregation);
+            apply(kvPairs, batchAggregation, batchParser);
+        } finally {
+            deferredErrors.clear();
+            batchAggregation.clear();
+        }
+    }
+
+    /**
+     * @return true/false of whether a batch has at least the given number of
+     * pairs, counting its commas only as far as needed
+     */
+    private static boolean hasPairs(final String kvPairs, final int pairs) {
+        /**
+         * n pairs are separated by n - 1 commas.
+         */
+        int commas = pairs - 1;
+        if (commas <= 0) {
+            return true;
+        }
+
+        final int length = kvPairs.length();
+        if (length < commas) {
+            return false;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            if (kvPairs.charAt(i) == ',' && --commas == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Apply the aggregates of a batch with one update per key, or the batch
+     * pair by pair if the result of any key cannot be worked out exactly.
+     *
+     * @param kvPairs the batch
+     * @param batchAggregation the aggregates of the batch
+     * @param batchParser the parser to apply the batch pair by pair
+     */
+    private void apply(final String kvPairs, final BatchAggregation batchAggregation, final BatchParser batchParser) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore dataStore = this.dataStore;
+        final int n = batchAggregation.size();
+
+        try {
+            /**
+             * Work out every result before changing anything, so the batch
+             * can still be applied pair by pair if any of them cannot.
+             */
+            for (int i = 0; i < n; ++i) {
+                if (!batchAggregation.aggregate(i).resolve(dataStore.value(batchAggregation.key(i)))) {
+                    deferredErrors.clear();
+                    deferredBatchParser.clearGroupCounts();
+                    applyPairByPair(kvPairs, batchParser);
+                    return;
+                }
+            }
+
+            for (final ErrorEvent event : deferredErrors) {
+                throwError(event);
+            }
+        } finally {
+            deferredErrors.clear();
+        }
+
+        if (metrics != null) {
+            for (int i = 0; i < n; ++i) {
+                final PairAggregate aggregate = batchAggregation.aggregate(i);
+                final int accumulates = aggregate.accumulates();
+                accumulatesForEachAccept += accumulates;
+                overwritesForEachAccept += aggregate.pairs() - accumulates;
+            }
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final long acceptId = ++this.acceptId;
+
+        for (int i = 0; i < n; ++i) {
+            final String key = batchAggregation.key(i);
+            final PairAggregate aggregate = batchAggregation.aggregate(i);
+            final Value previous = aggregate.previous();
+
+            saveForUndo(key, previous);
+            final Value value = aggregate.storeInto(dataStore, key);
+            if (previous == null) {
+                value.markUndoSaved(acceptId);
+            }
+        }
+
+        saveUndoSnapshot();
+    }
+
+    /**
+     * Apply one batch to the data store pair by pair and save its undo
+     * snapshot.
+     */
+    private void applyPairByPair(final String kvPairs, final BatchParser batchParser) {
+        /**
+         * Every key-value pair to be stored, including the completed atomic
+         * key sets, is put into the data store in order.
+         */
+        ++acceptId;
+        batchParser.parse(kvPairs, putIntoDataStore);
+
+        saveUndoSnapshot();
+    }
+
+    /**
+     * Save the undo snapshot built since the last one into the Undo History.
+     */
+    private void saveUndoSnapshot() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final UndoSnapshot undoSnapshot = this.undoSnapshot;
+        final Value[] integers = this.integersForEachAccept;
+        final long[] previousIntegers = this.previousIntegersForEachAccept;
+
+        /**
+         * An integer which is still an integer is undone by subtracting its
+         * delta, so no String of it is kept at all. An unchanged one needs no
+         * undo. Otherwise, e.g. it has become a text, its previous value is
+         * restored.
+         */
+        final int n = numberOfIntegersForEachAccept;
+        for (int i = 0; i < n; ++i) {
+            final Value value = integers[i];
+            if (value.isLong()) {
+                final long delta = value.longValue() - previousIntegers[i];
+                if (delta != 0L) {
+                    undoSnapshot.addDelta(value.key(), delta);
+                }
+            } else {
+                undoSnapshot.addRestore(value.key(), previousIntegers[i]);
+            }
+            integers[i] = null;
+        }
+        numberOfIntegersForEachAccept = 0;
+
+        /**
+         * Added in Technical Test Round 2
+         *
+         * The snapshot is built with a reusable UndoSnapshot which is then
+         * copied by the UndoHistory, and cleared after use in each accept().
+         */
+        undoHistory.saveSnapshot(undoSnapshot);
+        undoSnapshot.clear();
+
+        /**
+         * A new accept() starts a new branch of history, so the calls undone
+         * cannot be redone any more.
+         */
+        if (redoHistory.hasSnapshot()) {
+            redoHistory.clear();
+        }
+    }
+
+    /**
+     * Ingest many batches in one pass, the same as calling accept() with
+     * each of them in order, with the same parse buffers. Each batch is
+     * still validated on its own, e.g. an incomplete atomic group is
+     * rejected within its batch.
+     *
+     * With ONE_STEP, the whole bulk load is built into one undo snapshot, so
+     * a key modified by many batches is saved once, and one undo() reverts
+     * it all. A snapshot larger than the budget of the Undo History is
+     * dropped like any other, so a huge bulk load may not be undoable. With
+     * NONE, nothing is saved for undo at all.
+     *
+     * With a WriteAheadLog, each batch is appended before it's applied, and
+     * the call waits once for the whole bulk load to be durable. A batch
+     * which cannot be logged is reported to the ErrorListener, and it and
+     * the batches after it are not applied.
+     *
+     * @param batches the inputs of accept()
+     * @param bulkUndo how the bulk load is recorded for undo()
+     */
+    public final void acceptAll(final Iterable<String> batches, final BulkUndo bulkUndo) {
+        Objects.requireNonNull(batches, "Input cannot be null.");
+        Objects.requireNonNull(bulkUndo, "Bulk undo cannot be null.");
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final WriteAheadLog writeAheadLog = this.writeAheadLog;
+
+        long position = -1L;
+        if (writeAheadLog != null) {
+            try {
+                position = writeAheadLog.appendBeginBulk(bulkUndo == BulkUndo.ONE_STEP);
+            } catch (IOException e) {
+                throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+                return;
+            }
+        }
+
+        beginBulk(bulkUndo);
+        try {
+            for (final String kvPairs : batches) {
+                // Input cannot be null.
+                Objects.requireNonNull(kvPairs, "Input cannot be null.");
+
+                final StoreMetrics metrics = this.metrics;
+                final long startTime = metrics == null ? 0L : System.nanoTime();
+
+                if (writeAheadLog != null) {
+                    try {
+                        position = writeAheadLog.appendBulkAccept(kvPairs);
+                    } catch (IOException e) {
+                        throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+                        break;
+                    }
+                }
+
+                applyInBulk(kvPairs, batchParser);
+
+                if (metrics != null) {
+                    recordBatch(metrics, startTime);
+                }
+            }
+        } finally {
+            endBulk();
+        }
+
+        if (metrics != null) {
+            recordUndoHistory(metrics);
+        }
+
+        if (writeAheadLog != null) {
+            awaitDurable(writeAheadLog, position);
+        }
+    }
+
+    /**
+     * The same as acceptAll(Iterable, BulkUndo), for a Stream of batches,
+     * e.g. the lines of a file.
+     */
+    public final void acceptAll(final Stream<String> batches, final BulkUndo bulkUndo) {
+        Objects.requireNonNull(batches, "Input cannot be null.");
+
+        acceptAll((Iterable<String>) batches::iterator, bulkUndo);
+    }
+
+    /**
+     * Start a bulk load. The whole bulk load shares one acceptId, so each
+     * key is saved into the undo snapshot once.
+     */
+    private void beginBulk(final BulkUndo bulkUndo) {
+        this.bulkUndo = bulkUndo;
+        ++acceptId;
+
+        if (bulkUndo == BulkUndo.NONE) {
+            undoHistory.clear();
+            redoHistory.clear();
+        }
+    }
+
+    private void applyInBulk(final String kvPairs, final BatchParser batchParser) {
+        batchParser.parse(kvPairs, bulkUndo == BulkUndo.ONE_STEP ? putIntoDataStore : putIntoDataStoreWithoutUndo);
+    }
+
+    /**
+     * End the bulk load being applied, if any, saving its undo snapshot for
+     * ONE_STEP.
+     */
+    private void endBulk() {
+        if (bulkUndo == BulkUndo.ONE_STEP) {
+            saveUndoSnapshot();
+        }
+        bulkUndo = null;
+    }
+
+    /**
+     * Added in Technical Test Round 2
+     *
+     * According to the question readme:
+     * reverts the current set of kvPairs to what it was before the last accept().
+     * can be called multiple times.
+     */
+    public final void undo() {
+        undo(1);
+    }
+
+    /**
+     * Undo the last n accept() calls. The snapshots are merged, so each key
+     * is written once, and they can be redone until the next accept().
+     *
+     * @param n the number of steps
+     */
+    public final void undo(final int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The number of steps cannot be negative.");
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final StoreMetrics metrics = this.metrics;
+
+        if (metrics == null) {
+            logAndUndo(n);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        logAndUndo(n);
+        metrics.recordUndo(System.nanoTime() - startTime);
+        recordUndoHistory(metrics);
+    }
+
+    private void logAndUndo(final int n) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final WriteAheadLog writeAheadLog = this.writeAheadLog;
+
+        /**
+         * Nothing is logged when there is nothing to undo.
+         */
+        if (writeAheadLog == null || n == 0 || !undoHistory.hasSnapshot()) {
+            applyUndo(n);
+            return;
+        }
+
+        final long position;
+        try {
+            position = writeAheadLog.appendUndo(n);
+        } catch (IOException e) {
+            throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+            return;
+        }
+
+        applyUndo(n);
+
+        awaitDurable(writeAheadLog, position);
+    }
+
+    /**
+     * Re-apply the last accept() undone.
+     */
+    public final void redo() {
+        redo(1);
+    }
+
+    /**
+     * Re-apply the last n accept() calls undone.
+     *
+     * @param n the number of steps
+     */
+    public final void redo(final int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The number of steps cannot be negative.");
+        }
+
+        logAndRedo(n);
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final StoreMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordRedo();
+            recordUndoHistory(metrics);
+        }
+    }
+
+    private void logAndRedo(final int n) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final WriteAheadLog writeAheadLog = this.writeAheadLog;
+
+        /**
+         * Nothing is logged when there is nothing to redo.
+         */
+        if (writeAheadLog == null || n == 0 || !redoHistory.hasSnapshot()) {
+            applyRedo(n);
+            return;
+        }
+
+        final long position;
+        try {
+            position = writeAheadLog.appendRedo(n);
+        } catch (IOException e) {
+            throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+            return;
+        }
+
+        applyRedo(n);
+
+        awaitDurable(writeAheadLog, position);
+    }
+
+    /**
+     * Recover the latest n snapshots of the Undo History, if any, and save
+     * their inverses into the Redo History.
+     */
+    private void applyUndo(final int n) {
+        if (n > 0) {
+            undoCoalescer.apply(undoHistory, redoHistory, n, stores);
+        }
+    }
+
+    /**
+     * Re-apply the latest n snapshots of the Redo History, if any, and save
+     * their inverses back into the Undo History.
+     */
+    private void applyRedo(final int n) {
+        if (n > 0) {
+            undoCoalescer.apply(redoHistory, undoHistory, n, stores);
+        }
+    }
+
+    /**
+     * Create a named savepoint at the current key-value pairs. From now on,
+     * the value of each key is saved before its first modification, so
+     * rolling back costs the number of keys modified, not the number of
+     * accept() calls.
+     *
+     * @param name the name of the savepoint
+     * @throws IllegalArgumentException if the savepoint exists already
+     */
+    public final void savepoint(final String name) {
+        Objects.requireNonNull(name, "The name of a savepoint cannot be null.");
+        if (savepoints.contains(name)) {
+            throw new IllegalArgumentException("Savepoint " + name + " exists already.");
+        }
+
+        final long position = logSavepoint(WriteAheadLog.SAVEPOINT, name);
+        if (position != FAILED_TO_LOG) {
+            savepoints.create(name);
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * Put back the key-value pairs of a savepoint. The savepoint is kept and
+     * the later ones are released. The rollback is saved into the Undo
+     * History as one snapshot, so it can be undone like an accept().
+     *
+     * @param name the name of the savepoint
+     * @throws IllegalArgumentException if the savepoint does not exist
+     */
+    public final void rollbackTo(final String name) {
+        Objects.requireNonNull(name, "The name of a savepoint cannot be null.");
+        if (!savepoints.contains(name)) {
+            throw new IllegalArgumentException("Savepoint " + name + " does not exist.");
+        }
+
+        final long position = logSavepoint(WriteAheadLog.ROLLBACK_TO, name);
+        if (position != FAILED_TO_LOG) {
+            applyRollbackTo(name);
+            awaitDurable(position);
+
+            if (metrics != null) {
+                recordUndoHistory(metrics);
+            }
+        }
+    }
+
+    /**
+     * Release a savepoint and the later ones, without changing any key-value
+     * pair.
+     *
+     * @param name the name of the savepoint
+     * @throws IllegalArgumentException if the savepoint does not exist
+     */
+    public final void releaseSavepoint(final String name) {
+        Objects.requireNonNull(name, "The name of a savepoint cannot be null.");
+        if (!savepoints.contains(name)) {
+            throw new IllegalArgumentException("Savepoint " + name + " does not exist.");
+        }
+
+        final long position = logSavepoint(WriteAheadLog.RELEASE_SAVEPOINT, name);
+        if (position != FAILED_TO_LOG) {
+            savepoints.release(name);
+            awaitDurable(position);
+        }
+    }
+
+    private void applyRollbackTo(final String name) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final UndoSnapshot undoSnapshot = this.undoSnapshot;
+
+        savepoints.rollbackTo(name, undoSnapshot);
+        undoHistory.saveSnapshot(undoSnapshot);
+        undoSnapshot.clear();
+
+        if (redoHistory.hasSnapshot()) {
+            redoHistory.clear();
+        }
+    }
+
+    /**
+     * Append a savepoint record to the write-ahead log, if any.
+     *
+     * @return the position to wait for, -1 if there is no log, or
+     * FAILED_TO_LOG if the record cannot be written, in which case the call
+     * must not be applied
+     */
+    private long logSavepoint(final byte type, final String name) {
+        if (writeAheadLog == null) {
+            return -1L;
+        }
+        try {
+            return writeAheadLog.appendSavepoint(type, name);
+        } catch (IOException e) {
+            throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+            return FAILED_TO_LOG;
+        }
+    }
+
+    private void awaitDurable(final long position) {
+        if (position >= 0) {
+            awaitDurable(writeAheadLog, position);
+        }
+    }
+
+    /**
+     * Start or stop recording the metrics of this store. Like accept(), it
+     * must be called by the thread using the store; the metrics themselves
+     * can be read by any thread.
+     *
+     * @param metrics the metrics to record into, or null to stop
+     */
+    public final void setMetrics(final StoreMetrics metrics) {
+        this.metrics = metrics;
+        accumulatesForEachAccept = 0;
+        overwritesForEachAccept = 0;
+        batchParser.clearGroupCounts();
+        deferredBatchParser.clearGroupCounts();
+
+        if (metrics != null) {
+            recordUndoHistory(metrics);
         }
     }
 
     /**
-     * For better performance than Integer.parseInt for checking if an input
-     * String represents an integer or not.
+     * Set the fewest pairs of a batch for accept() to fold it into one
+     * update per key before touching the data store, e.g. 2 for small bursts
+     * of counters repeating a few keys. A batch of fewer pairs is applied
+     * pair by pair. Like accept(), it must be called by the thread using the
+     * store.
      *
-     * @param input
-     * @return true/false of whether the input is an integer
+     * @param pairs the fewest pairs to aggregate, or 0 to aggregate every
+     * batch
+     * @throws IllegalArgumentException if pairs is negative
      */
-    private static final boolean isInteger(final String input) {
-        if (input == null) {
-            return false;
+    public final void setMinPairsToAggregate(final int pairs) {
+        if (pairs < 0) {
+            throw new IllegalArgumentException("The number of pairs to aggregate cannot be negative.");
+        }
+
+        this.minPairsToAggregate = pairs;
+    }
+
+    /**
+     * @return the number of batches folded into one update per key
+     */
+    final long aggregatedBatches() {
+        return aggregatedBatches;
+    }
+
+    /**
+     * Start a debug trace of accept() and acceptParallel(), logging one of
+     * every sampling batches at DEBUG level by the Logger of this class, e.g.
+     * to see what a service is fed without logging every batch. The Logger is
+     * only looked up here, so a store without the trace never touches SLF4J.
+     *
+     * @param sampling log one of every sampling batches, or 0 to stop
+     * @throws IllegalArgumentException if sampling is negative
+     */
+    public final void setTrace(final int sampling) {
+        setTrace(sampling == 0 ? null : LoggerFactory.getLogger(KeysAndValuesImpl.class), sampling);
+    }
+
+    /**
+     * Start a debug trace of accept() and acceptParallel() by a given Logger.
+     *
+     * A traced batch is logged with the parameters of SLF4J: the id of the
+     * accept(), the length of the batch, the time taken in nanos, and the
+     * batch truncated to MAX_TRACED_CHARS chars. No message is built for the
+     * batches not sampled, nor when the Logger has DEBUG disabled.
+     *
+     * @param logger the Logger, or null to stop
+     * @param sampling log one of every sampling batches, or 0 to stop
+     * @throws IllegalArgumentException if sampling is negative
+     */
+    public final void setTrace(final Logger logger, final int sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException("The sampling of the trace cannot be negative.");
         }
 
-        if (input.isEmpty()) {
+        this.traceLogger = sampling == 0 ? null : logger;
+        this.traceSampling = sampling;
+        this.untracedBatches = 0L;
+    }
+
+    /**
+     * @return true/false of whether the batch just applied is the one of
+     * every traceSampling batches to be traced
+     */
+    private boolean isTraceDue() {
+        if (++untracedBatches < traceSampling) {
             return false;
         }
 
-        int i = 0;
-        final int len = input.length();
+        untracedBatches = 0L;
+        return true;
+    }
+
+    private void trace(final Logger logger, final String kvPairs, final long startTime) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+
+        final long nanos = System.nanoTime() - startTime;
+        final String batch = kvPairs.length() <= MAX_TRACED_CHARS ? kvPairs : kvPairs.substring(0, MAX_TRACED_CHARS);
+        logger.debug("accept() #{} of {} chars took {} ns: {}", acceptId, kvPairs.length(), nanos, batch);
+    }
+
+    /**
+     * @return the metrics given by setMetrics(), or null if none
+     */
+    public final StoreMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Record a batch which started at startTime.
+     *
+     * The atomic groups of the batch are counted by the parser which has
+     * validated them, either one; a batch applied pair by pair after being
+     * aggregated drops the counts of its first parse.
+     */
+    private void recordBatch(final StoreMetrics metrics, final long startTime) {
+        metrics.recordBatch(System.nanoTime() - startTime, accumulatesForEachAccept, overwritesForEachAccept,
+                batchParser.completedGroups() + deferredBatchParser.completedGroups(),
+                batchParser.failedGroups() + deferredBatchParser.failedGroups());
+        accumulatesForEachAccept = 0;
+        overwritesForEachAccept = 0;
+        batchParser.clearGroupCounts();
+        deferredBatchParser.clearGroupCounts();
+
+        if (bulkUndo == null) {
+            recordUndoHistory(metrics);
+        }
+    }
+
+    private void recordUndoHistory(final StoreMetrics metrics) {
+        metrics.recordUndoHistory(undoHistory.size(), undoHistory.footprint());
+    }
+
+    /**
+     * @return true/false of whether DataStore.put() accumulates the value
+     * onto the previous Value
+     */
+    private static boolean isAccumulate(final Value previous, final CharSequence input, final int valueStart, final int valueEnd) {
+        return previous != null && previous.isInteger() && KeyValuePairTokenizer.isInteger(input, valueStart, valueEnd);
+    }
+
+    /**
+     * Count a pair stored pair by pair.
+     */
+    private void countPut(final boolean isAccumulate) {
+        if (isAccumulate) {
+            ++accumulatesForEachAccept;
+        } else {
+            ++overwritesForEachAccept;
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes held by the Undo History
+     */
+    public final long undoHistoryFootprint() {
+        return undoHistory.footprint();
+    }
+
+    /**
+     * @return the number of times undo() can be called
+     */
+    public final int undoHistorySize() {
+        return undoHistory.size();
+    }
+
+    /**
+     * Take a checkpoint: the key-value pairs are copied (no I/O is done by
+     * the caller), a new segment of the write-ahead log is started, and the
+     * copy is written to a snapshot file in the background. The older
+     * segments of the log are deleted after the snapshot is written.
+     *
+     * The snapshot keeps the key-value pairs only, so the Undo History, the
+     * Redo History and the savepoints are cleared: a checkpoint cannot be
+     * undone or rolled back.
+     *
+     * The copy is made by the caller, so no other call runs meanwhile. It
+     * takes about 15 ms per million keys, but the keys added since the last
+     * display() or checkpoint() are sorted into the index first, e.g. about
+     * 0.3 s for a million new keys. Only writing the file is in the
+     * background.
+     *
+     * @return completed with the snapshot file when it's written, or
+     * completed exceptionally if it cannot be written
+     * @throws IllegalStateException if no Checkpointer is given
+     */
+    public final CompletableFuture<Path> checkpoint() {
+        if (checkpointer == null) {
+            throw new IllegalStateException("No Checkpointer is given.");
+        }
+
+        final SnapshotFile.Part[] parts = {dataStore.copy()};
+
+        final long sequence;
+        try {
+            sequence = writeAheadLog == null ? checkpointer.nextSequence() : writeAheadLog.rollSegmentForCheckpoint();
+        } catch (IOException e) {
+            throwError(ErrorEvent.writeAheadLogWriteFailure(e));
+            final CompletableFuture<Path> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        undoHistory.clear();
+        redoHistory.clear();
+        savepoints.clear();
+
+        if (metrics != null) {
+            recordUndoHistory(metrics);
+        }
+
+        return checkpointer.submit(parts, sequence, writeAheadLog);
+    }
+
+    /**
+     * Wait until a record of the write-ahead log is durable according to its
+     * FsyncPolicy. The call has been applied already, so a failure is only
+     * reported.
+     */
+    private void awaitDurable(final WriteAheadLog writeAheadLog, final long position) {
+        try {
+            writeAheadLog.awaitDurable(position);
+        } catch (IOException e) {
+            throwError(ErrorEvent.writeAheadLogForceFailure(e));
+        }
+    }
+
+    /**
+     * Modified in Technical Test Round 2
+     *
+     * Input a pair of key-value in the data store. The value is given as a
+     * region of a CharSequence, so that a String is only created for it when
+     * it's really stored.
+     *
+     * @param inputKey key
+     * @param input the CharSequence containing the value
+     * @param valueStart start position of the value (inclusive)
+     * @param valueEnd end position of the value (exclusive)
+     */
+    private final void putIntoDataStore(final String inputKey, final CharSequence input, final int valueStart, final int valueEnd) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore dataStore = this.dataStore;
+
+        final Value previous = dataStore.value(inputKey);
+        saveForUndo(inputKey, previous);
+
+        /**
+         * Worked out before the previous Value is modified in place.
+         */
+        final boolean isAccumulate = metrics != null && isAccumulate(previous, input, valueStart, valueEnd);
+
+        try {
+            final Value value = dataStore.put(inputKey, input, valueStart, valueEnd);
+            if (previous == null) {
+                value.markUndoSaved(acceptId);
+            }
+
+            if (metrics != null) {
+                countPut(isAccumulate);
+            }
+
+        } catch (NumberFormatException | ArithmeticException e) {
+            /**
+             * Integer value > Long.MAX_VALUE, or the sum overflows a long.
+             * An error is only reported when the pairs are put by the
+             * batchParser (not while replaying), so it has the part.
+             */
+            throwError(ErrorEvent.integerOverflow(inputKey, batchParser.partIndex(), e));
+        }
+    }
 
-        if (input.charAt(0) == '-') {
-            if (len == 1) {
-                return false;
+    /**
+     * Save how to undo the modification of a key by the current accept(),
+     * if it's the first one.
+     *
+     * @param key key
+     * @param previous the Value of the key before the modification, or null
+     *                 if the key does not exist
+     */
+    private void saveForUndo(final String key, final Value previous) {
+        /**
+         * Added in Technical Test Round 2
+         *
+         * In each accept(), before the FIRST modification inside the accept()
+         * for each key, save how to undo it:
+         *
+         * - a new key is deleted;
+         * - a text is restored; the String is the same one held by the data
+         *   store, so nothing is copied;
+         * - an integer is remembered with its current value, and is turned
+         *   into a delta or a restore at the end of accept().
+         *
+         * The Value is marked with the id of the accept(), so a key is only
+         * saved once without looking it up in another Map.
+         */
+        if (previous == null) {
+            undoSnapshot.addDelete(key);
+        } else if (previous.markUndoSaved(acceptId)) {
+            if (previous.isLong()) {
+                saveInteger(previous);
+            } else {
+                undoSnapshot.addRestore(key, previous.toString());
             }
-            i = 1;
         }
+    }
 
-        for (; i < len; ++i) {
-            char c = input.charAt(i);
-            if (c < '0' || c > '9') {
-                return false;
+    /**
+     * Input a pair of key-value in the data store without saving anything
+     * for undo, for BulkUndo.NONE.
+     */
+    private void putIntoDataStoreWithoutUndo(final String inputKey, final CharSequence input, final int valueStart, final int valueEnd) {
+        try {
+            if (metrics == null) {
+                dataStore.put(inputKey, input, valueStart, valueEnd);
+                return;
             }
+
+            final boolean isAccumulate = isAccumulate(dataStore.value(inputKey), input, valueStart, valueEnd);
+            dataStore.put(inputKey, input, valueStart, valueEnd);
+            countPut(isAccumulate);
+
+        } catch (NumberFormatException | ArithmeticException e) {
+            /**
+             * Integer value > Long.MAX_VALUE, or the sum overflows a long.
+             */
+            throwError(ErrorEvent.integerOverflow(inputKey, batchParser.partIndex(), e));
         }
+    }
 
-        return true;
+    /**
+     * Remember an integer value modified by the current accept(), with its
+     * value before it.
+     */
+    private void saveInteger(final Value value) {
+        final int n = numberOfIntegersForEachAccept;
+        if (n == integersForEachAccept.length) {
+            integersForEachAccept = Arrays.copyOf(integersForEachAccept, n << 1);
+            previousIntegersForEachAccept = Arrays.copyOf(previousIntegersForEachAccept, n << 1);
+        }
+        integersForEachAccept[n] = value;
+        previousIntegersForEachAccept[n] = value.longValue();
+        numberOfIntegersForEachAccept = n + 1;
+    }
+
+    /**
+     * The "display" method implemented as described in the doc.
+     *
+     */
+    public final String display() {
+        return displayWithStringBuilder().toString();
+    }
+
+    public final StringBuilder displayWithStringBuilder() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final StringBuilder displayStringBuilder = this.displayStringBuilder;
+        final StoreMetrics metrics = this.metrics;
+        final long startTime = metrics == null ? 0L : System.nanoTime();
+
+        /**
+         * Reuse the same StringBuilder to avoid creating garbage.
+         */
+        displayStringBuilder.setLength(0);
+
+        dataStore.appendTo(displayStringBuilder);
+
+        // To remove to last char "\n"
+        if (displayStringBuilder.length() > 0) {
+            displayStringBuilder.setLength(displayStringBuilder.length() - 1);
+        }
+
+        if (metrics != null) {
+            metrics.recordDisplay(System.nanoTime() - startTime);
+        }
+        return displayStringBuilder;
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive), found by binary
+     * search in the sorted index, so it costs O(log n + number of keys
+     * displayed).
+     *
+     * @param fromKey lower bound compared case-insensitively, or null
+     * @param toKey upper bound compared case-insensitively, or null
+     */
+    public final String display(final String fromKey, final String toKey) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore dataStore = this.dataStore;
+        final long startTime = metrics == null ? 0L : System.nanoTime();
+
+        dataStore.sort();
+        final int from = dataStore.indexFrom(fromKey);
+        return displayRange(from, Math.max(from, dataStore.indexTo(toKey)), startTime);
+    }
+
+    /**
+     * The keys starting with the prefix, compared case-insensitively. It
+     * costs O(log n + number of keys displayed).
+     *
+     * @param prefix prefix of the keys
+     */
+    public final String display(final String prefix) {
+        Objects.requireNonNull(prefix, "Prefix cannot be null.");
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore dataStore = this.dataStore;
+        final long startTime = metrics == null ? 0L : System.nanoTime();
+
+        dataStore.sort();
+        final int from = dataStore.indexFrom(prefix);
+        return displayRange(from, dataStore.indexAfterPrefix(from, prefix), startTime);
+    }
+
+    /**
+     * At most "limit" keys after afterKey. It costs O(log n + limit).
+     *
+     * @param afterKey the last key of the previous page, or null for the
+     *                 first page
+     * @param limit max number of keys
+     */
+    public final String displayPage(final String afterKey, final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative.");
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final DataStore dataStore = this.dataStore;
+        final long startTime = metrics == null ? 0L : System.nanoTime();
+
+        final int size = dataStore.sort();
+        final int from = dataStore.indexAfter(afterKey);
+        return displayRange(from, (int) Math.min((long) from + limit, size), startTime);
+    }
+
+    /**
+     * Display the keys from the index "from" (inclusive) to the index "to"
+     * (exclusive) of the sorted index.
+     *
+     * @param startTime the System.nanoTime() when the display started, for
+     *                  the metrics
+     */
+    private String displayRange(final int from, final int to, final long startTime) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final StringBuilder displayStringBuilder = this.displayStringBuilder;
+
+        /**
+         * Reuse the same StringBuilder to avoid creating garbage.
+         */
+        displayStringBuilder.setLength(0);
+
+        dataStore.appendTo(displayStringBuilder, from, to);
+
+        // To remove to last char "\n"
+        if (displayStringBuilder.length() > 0) {
+            displayStringBuilder.setLength(displayStringBuilder.length() - 1);
+        }
+
+        final String display = displayStringBuilder.toString();
+        if (metrics != null) {
+            metrics.recordDisplay(System.nanoTime() - startTime);
+        }
+        return display;
+    }
+
+    /**
+     * A point lookup by the HashMap front-end of the data store.
+     *
+     * @param key key
+     * @return the current value of the key, or null if the key does not exist
+     */
+    public final String get(final String key) {
+        Objects.requireNonNull(key, "Key cannot be null.");
+
+        return dataStore.get(key);
+    }
+
+    /**
+     * Look up many keys in one pass. No String is created for the keys which
+     * do not exist.
+     *
+     * @param keys keys
+     * @return the current values of the keys which exist
+     */
+    public final Map<String, String> multiGet(final Collection<String> keys) {
+        final Map<String, String> result = new HashMap<String, String>((int)(keys.size() * 1.25));
+        dataStore.getAll(keys, result);
+        return result;
+    }
+
+    /**
+     * Stream the same output as display() to an Appendable in bounded
+     * chunks, so that the whole dump is never on heap at once.
+     *
+     * @param out the Appendable to write to; it's not closed
+     */
+    public final void display(final Appendable out) throws IOException {
+        final long startTime = metrics == null ? 0L : System.nanoTime();
+
+        displayWriter.open(out);
+        dataStore.writeTo(displayWriter);
+        displayWriter.close();
+
+        if (metrics != null) {
+            metrics.recordDisplay(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Stream the same output as display() to a channel in bounded chunks,
+     * encoded in UTF-8 through a reusable ByteBuffer.
+     *
+     * @param channel the channel to write to; it's not closed
+     */
+    public final void display(final WritableByteChannel channel) throws IOException {
+        final long startTime = metrics == null ? 0L : System.nanoTime();
+
+        displayWriter.open(channel);
+        dataStore.writeTo(displayWriter);
+        displayWriter.close();
+
+        if (metrics != null) {
+            metrics.recordDisplay(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * A wrapper method to call ErrorListener.onError(String)
+     * @param msg message String to input to onError
+     */
+    public void throwError(final String msg) {
+        throwError(ErrorEvent.other(msg, null));
+    }
+
+    /**
+     * A wrapper method to call ErrorListener.onError(String,Exception)
+     * @param msg message String to input to onError
+     * @param e Exception info to input to onError
+     */
+    public void throwError(final String msg, final Exception e) {
+        throwError(ErrorEvent.other(msg, e));
+    }
+
+    /**
+     * Report an error to the ErrorListener, which only queues it if it's an
+     * AsyncErrorListener.
+     */
+    private void throwError(final ErrorEvent event) {
+        if (errorListener != null && !isReplaying) {
+            if (metrics != null) {
+                metrics.recordError();
+            }
+            ErrorEvent.report(errorListener, event);
+        }
     }
 
 }
@@ -0,0 +1,187 @@
+package lung.key_value_store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size histogram of non-negative longs (e.g. latencies in nanos, or
+ * the number of pairs per batch), in the style of HdrHistogram: the values
+ * are counted in log-linear buckets, 32 per power of two, so a percentile is
+ * within about 3% of the true value whatever its magnitude, and recording a
+ * value never allocates.
+ *
+ * A value is recorded by one thread or many, and read by any thread through
+ * snapshot(), e.g. by JMX. A snapshot taken during recording may be off by
+ * the values being recorded.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of bits of the sub-buckets of each power of two. The values
+     * below 2^SUB_BUCKET_BITS have a bucket each.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Enough buckets for Long.MAX_VALUE.
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Record a value. A negative value (e.g. from a clock going backwards)
+     * is recorded as 0.
+     *
+     * @param value the value
+     */
+    public final void record(final long value) {
+        final long v = Math.max(value, 0L);
+        buckets.incrementAndGet(bucketOf(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Clear all the values.
+     */
+    public final void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            buckets.set(i, 0L);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public final Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, sum.sum(), max.get());
+    }
+
+    /**
+     * @return the index of the bucket of a non-negative value
+     */
+    static int bucketOf(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        /**
+         * The position of the highest bit, and the SUB_BUCKET_BITS bits
+         * after it.
+         */
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+     * @return the largest value of a bucket
+     */
+    static long highestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+
+        final int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket & (SUB_BUCKET_COUNT - 1);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final long lowest = (SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    /**
+     * The counts of a LatencyHistogram at a point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(final long[] counts, final long count, final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of values
+         */
+        public final long count() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the values
+         */
+        public final long sum() {
+            return sum;
+        }
+
+        /**
+         * @return the largest value, or 0 if there is none
+         */
+        public final long max() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the values, or 0 if there is none
+         */
+        public final double mean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         * The value at a percentile, as the largest value of its bucket, but
+         * never more than max().
+         *
+         * @param percentile from 0 to 100
+         * @return the value, or 0 if there is none
+         */
+        public final long percentile(final double percentile) {
+            if (!(percentile >= 0.0 && percentile <= 100.0)) {
+                throw new IllegalArgumentException("Percentile must be from 0 to 100.");
+            }
+            if (count == 0) {
+                return 0L;
+            }
+
+            /**
+             * The rank of the value, from 1 to count.
+             */
+            final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+
+            long seen = 0L;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package lung.key_value_store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free ring buffer for many producer threads and one consumer
+ * thread.
+ *
+ * Each slot has a sequence number telling whose turn it is: a producer
+ * claims the slot at the tail by a CAS of the tail when the sequence equals
+ * the tail, writes the element and then publishes it by setting the sequence
+ * one ahead by a volatile store. The consumer takes the element at the head when the sequence is
+ * one ahead of the head, and frees the slot for the next lap by setting the
+ * sequence a whole capacity ahead. So neither side ever takes a lock, and a
+ * full ring is seen by the producers without reading the head.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class MpscRing<E> {
+
+    private final int mask;
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+
+    /**
+     * The next position to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position to be taken by the consumer. Only used by the
+     * consumer thread.
+     */
+    private long head;
+
+    /**
+     * @param capacity the max number of elements, a power of 2
+     */
+    MpscRing(final int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity of the ring must be a positive power of 2.");
+        }
+        this.mask = capacity - 1;
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            sequences.set(i, i);
+        }
+    }
+
+    final int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Add an element at the tail. Called by any producer thread.
+     *
+     * @return false if the ring is full
+     */
+    final boolean offer(final E element) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final AtomicLongArray sequences = this.sequences;
+        final AtomicLong tail = this.tail;
+
+        long position = tail.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+
+                    /**
+                     * A volatile store, not lazySet(): a producer reads the
+                     * parked flag of the consumer right after, and the
+                     * consumer reads the sequence right after setting the
+                     * flag, so the store must not be reordered after that
+                     * load, or both may miss each other and the consumer
+                     * parks with an element in the ring.
+                     */
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0L) {
+                /**
+                 * The slot still holds the element of the previous lap.
+                 */
+                return false;
+            } else {
+                /**
+                 * Another producer has claimed the position.
+                 */
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the element at the head. Only called by the consumer thread.
+     *
+     * @return the element, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    final E poll() {
+        final long position = head;
+        final int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        final E element = (E) elements[index];
+        elements[index] = null;
+        sequences.lazySet(index, position + elements.length);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * Only called by the consumer thread.
+     *
+     * @return true/false of whether no element is ready to be taken
+     */
+    final boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
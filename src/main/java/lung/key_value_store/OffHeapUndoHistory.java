@@ -0,0 +1,368 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.UndoHistory;
+import lung.key_value_store.api.UndoSnapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An UndoHistory which keeps the snapshots serialized in an off-heap ring
+ * buffer (a direct ByteBuffer) instead of as String[]'s on the heap, so the
+ * heap usage does not depend on the depth of the history and the snapshots
+ * never become old generation garbage.
+ *
+ * Each snapshot is one record in the ring:
+ *
+ *   [length: int][number of operations: int]
+ *   ([type: byte][key length: int][key in UTF-8][operand])...
+ *   [length: int]
+ *
+ * where the operand is nothing for a DELETE, a long for a DELTA or a
+ * RESTORE of a long, and a length-prefixed UTF-8 text for a RESTORE of a
+ * text.
+ *
+ * The length is written at both ends, so that the oldest record can be
+ * evicted from the head and the latest one can be loaded from the tail. A
+ * record may wrap around the end of the buffer. A snapshot is only decoded
+ * back to Strings when it's loaded by undo().
+ *
+ * The oldest snapshots are evicted first when the ring is full or the max
+ * number of snapshots is reached. A snapshot larger than the whole ring
+ * clears the history, the same as UndoHistoryImpl with a byte budget.
+ *
+ * It's not thread-safe.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class OffHeapUndoHistory implements UndoHistory {
+
+    /**
+     * Length at the start and at the end of a record.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 4;
+
+    /**
+     * The type of a RESTORE of a long in the records; the other types are the
+     * same as UndoSnapshot.
+     */
+    private static final byte RESTORE_LONG = 3;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int undoHistorySize;
+
+    /**
+     * The position of the oldest record, the position after the latest
+     * record, the number of bytes used and the number of records.
+     */
+    private int head;
+    private int tail;
+    private int used;
+    private int size;
+
+    /**
+     * Reusable buffer to serialize a snapshot into before it's copied into
+     * the ring, and to copy a record out of the ring before it's decoded.
+     */
+    private byte[] scratch = new byte[1 << 10];
+
+    /**
+     * Constructor
+     *
+     * @param undoHistorySize the max number of snapshots
+     * @param capacity the number of bytes of the off-heap ring
+     */
+    public OffHeapUndoHistory(final int undoHistorySize, final int capacity) {
+        if (undoHistorySize < 0 || capacity < 0) {
+            throw new IllegalArgumentException("The limits of the Undo History cannot be negative.");
+        }
+        this.undoHistorySize = undoHistorySize;
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public void saveSnapshot(final UndoSnapshot snapshot) {
+        /**
+         * Serialize into the scratch buffer first, after the leading length.
+         */
+        final int numberOfOperations = snapshot.size();
+        int length = 4;
+        length = putInt(length, numberOfOperations);
+        for (int i = 0; i < numberOfOperations; ++i) {
+            final byte type = snapshot.type(i);
+            final String text = snapshot.text(i);
+
+            if (type == UndoSnapshot.RESTORE && text == null) {
+                length = putByte(length, RESTORE_LONG);
+            } else {
+                length = putByte(length, type);
+            }
+            length = putString(length, snapshot.key(i));
+
+            if (type == UndoSnapshot.RESTORE && text != null) {
+                length = putString(length, text);
+            } else if (type != UndoSnapshot.DELETE) {
+                length = putLong(length, snapshot.longValue(i));
+            }
+        }
+        final int recordLength = length + 4;
+        final int payloadLength = recordLength - RECORD_OVERHEAD;
+        ensureScratch(recordLength);
+        writeInt(scratch, 0, payloadLength);
+        writeInt(scratch, length, payloadLength);
+
+        if (recordLength > capacity || undoHistorySize == 0) {
+            clear();
+            return;
+        }
+
+        while (size >= undoHistorySize || used + recordLength > capacity) {
+            evictOldest();
+        }
+
+        copyIn(tail, scratch, recordLength);
+        tail = wrap(tail + recordLength);
+        used += recordLength;
+        ++size;
+    }
+
+    /**
+     * Remove the latest snapshot from the ring and decode it.
+     *
+     * @param snapshot the reusable UndoSnapshot to decode into; it's cleared
+     *                 first
+     * @return false if there is no snapshot
+     */
+    @Override
+    public boolean loadSnapshot(final UndoSnapshot snapshot) {
+        snapshot.clear();
+
+        if (size == 0) {
+            return false;
+        }
+
+        final int payloadLength = readInt(wrap(tail - 4 + capacity));
+        final int recordLength = payloadLength + RECORD_OVERHEAD;
+        final int start = wrap(tail - recordLength + capacity);
+
+        ensureScratch(payloadLength);
+        copyOut(wrap(start + 4), scratch, payloadLength);
+
+        tail = start;
+        used -= recordLength;
+        --size;
+
+        decode(scratch, snapshot);
+        return true;
+    }
+
+    @Override
+    public boolean hasSnapshot() {
+        return size > 0;
+    }
+
+    @Override
+    public void clear() {
+        head = 0;
+        tail = 0;
+        used = 0;
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes used in the off-heap ring
+     */
+    @Override
+    public long footprint() {
+        return used;
+    }
+
+    @Override
+    public int maxSize() {
+        return undoHistorySize;
+    }
+
+    @Override
+    public long maxFootprint() {
+        return capacity;
+    }
+
+    private void evictOldest() {
+        final int recordLength = readInt(head) + RECORD_OVERHEAD;
+        head = wrap(head + recordLength);
+        used -= recordLength;
+        --size;
+    }
+
+    private static void decode(final byte[] bytes, final UndoSnapshot snapshot) {
+        int p = 0;
+        final int numberOfOperations = readInt(bytes, p);
+        p += 4;
+
+        for (int i = 0; i < numberOfOperations; ++i) {
+            final byte type = bytes[p++];
+
+            int n = readInt(bytes, p);
+            p += 4;
+            final String key = new String(bytes, p, n, StandardCharsets.UTF_8);
+            p += n;
+
+            switch (type) {
+                case UndoSnapshot.DELETE:
+                    snapshot.addDelete(key);
+                    break;
+                case UndoSnapshot.RESTORE:
+                    n = readInt(bytes, p);
+                    p += 4;
+                    snapshot.addRestore(key, new String(bytes, p, n, StandardCharsets.UTF_8));
+                    p += n;
+                    break;
+                case RESTORE_LONG:
+                    snapshot.addRestore(key, readLong(bytes, p));
+                    p += 8;
+                    break;
+                default:
+                    snapshot.addDelta(key, readLong(bytes, p));
+                    p += 8;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Append a length-prefixed String in UTF-8 to the scratch buffer without
+     * creating a byte[] for it.
+     *
+     * @return the position after it
+     */
+    private int putString(int p, final String s) {
+        final int len = s.length();
+        ensureScratch(p + 4 + len * 3);
+        final byte[] scratch = this.scratch;
+        final int start = p + 4;
+        p = start;
+
+        for (int i = 0; i < len; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                scratch[p++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[p++] = (byte) (0xC0 | (c >> 6));
+                scratch[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                scratch[p++] = (byte) (0xF0 | (cp >> 18));
+                scratch[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                scratch[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                scratch[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                /**
+                 * A lone surrogate is replaced, the same as String.getBytes().
+                 */
+                scratch[p++] = '?';
+            } else {
+                scratch[p++] = (byte) (0xE0 | (c >> 12));
+                scratch[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                scratch[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        writeInt(scratch, start - 4, p - start);
+        return p;
+    }
+
+    private int putByte(final int p, final byte v) {
+        ensureScratch(p + 1);
+        scratch[p] = v;
+        return p + 1;
+    }
+
+    private int putLong(final int p, final long v) {
+        ensureScratch(p + 8);
+        writeInt(scratch, p, (int) (v >>> 32));
+        writeInt(scratch, p + 4, (int) v);
+        return p + 8;
+    }
+
+    private static long readLong(final byte[] bytes, final int p) {
+        return ((long) readInt(bytes, p) << 32) | (readInt(bytes, p + 4) & 0xFFFFFFFFL);
+    }
+
+    private int putInt(final int p, final int v) {
+        ensureScratch(p + 4);
+        writeInt(scratch, p, v);
+        return p + 4;
+    }
+
+    private void ensureScratch(final int n) {
+        if (scratch.length < n) {
+            final byte[] bigger = new byte[Math.max(n, scratch.length << 1)];
+            System.arraycopy(scratch, 0, bigger, 0, scratch.length);
+            scratch = bigger;
+        }
+    }
+
+    private static void writeInt(final byte[] bytes, final int p, final int v) {
+        bytes[p] = (byte) (v >>> 24);
+        bytes[p + 1] = (byte) (v >>> 16);
+        bytes[p + 2] = (byte) (v >>> 8);
+        bytes[p + 3] = (byte) v;
+    }
+
+    private static int readInt(final byte[] bytes, final int p) {
+        return (bytes[p] << 24) | ((bytes[p + 1] & 0xFF) << 16) | ((bytes[p + 2] & 0xFF) << 8) | (bytes[p + 3] & 0xFF);
+    }
+
+    /**
+     * Read an int at a position of the ring, which may wrap around.
+     */
+    private int readInt(final int position) {
+        if (position + 4 <= capacity) {
+            return ring.getInt(position);
+        }
+        int v = 0;
+        for (int i = 0; i < 4; ++i) {
+            v = (v << 8) | (ring.get(wrap(position + i)) & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Copy bytes into the ring at a position, wrapping around the end.
+     */
+    private void copyIn(final int position, final byte[] src, final int length) {
+        final int first = Math.min(length, capacity - position);
+        ring.position(position);
+        ring.put(src, 0, first);
+        if (first < length) {
+            ring.position(0);
+            ring.put(src, first, length - first);
+        }
+    }
+
+    /**
+     * Copy bytes out of the ring from a position, wrapping around the end.
+     */
+    private void copyOut(final int position, final byte[] dst, final int length) {
+        final int first = Math.min(length, capacity - position);
+        ring.position(position);
+        ring.get(dst, 0, first);
+        if (first < length) {
+            ring.position(0);
+            ring.get(dst, first, length - first);
+        }
+    }
+
+    private int wrap(final int position) {
+        return position >= capacity ? position - capacity : position;
+    }
+}
@@ -0,0 +1,302 @@
+package lung.key_value_store;
+
+/**
+ * The values put into one key by a batch (or a part of it), folded in order
+ * into one update, so the data store is touched once per key instead of
+ * once per pair.
+ *
+ * Following the accumulate and overwrite rules of DataStore.put(), the
+ * values fold into one of:
+ *
+ * - a text, when the last value is not an integer;
+ * - an overwrite by integers, when a text is followed by integers: the
+ *   first of them overwrites the text and the rest accumulate onto it, so
+ *   the result does not depend on the value before the batch;
+ * - an addition of integers, when there is no text at all: the result is
+ *   the sum onto the value before the batch if that is an integer, or like
+ *   the overwrite by integers otherwise.
+ *
+ * The sequential path reports an overflow at the pair which causes it and
+ * skips that pair only, which an aggregate cannot do. So an aggregate keeps
+ * the smallest and largest running sums of an addition to check them against
+ * the value before the batch, and it's not exact once any integer might
+ * overflow. Then the batch must be applied pair by pair instead.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class PairAggregate {
+
+    /**
+     * Whether any text is put, so the value before the batch is replaced.
+     */
+    private boolean isOverwrite;
+
+    /**
+     * The last text put, when no integer is put after it.
+     */
+    private String text;
+
+    /**
+     * The number of integers put after the last text, or all of them if
+     * there is no text.
+     */
+    private int count;
+
+    /**
+     * The first of the integers, as the text put, when it's not in the
+     * canonical form of a long (e.g. "007"), so a single integer is stored
+     * exactly as DataStore.put() stores it. Null otherwise.
+     */
+    private String firstText;
+
+    /**
+     * The sum of the integers.
+     */
+    private long total;
+
+    /**
+     * Whether the first value put is an integer, which is added onto the
+     * value before the batch if that is an integer. The smallest and largest
+     * running sums of the integers before the first text, if any, must fit
+     * in a long when added onto it, even if a text replaces the sum later.
+     */
+    private boolean isAddition;
+    private long minSum;
+    private long maxSum;
+
+    private boolean isExact = true;
+
+    /**
+     * The number of values put, and of the integers put right after an
+     * integer, which accumulate whatever the value before the batch is, for
+     * StoreMetrics.
+     */
+    private int pairs;
+    private int accumulates;
+
+    /**
+     * Set by resolve(): the Value before the batch, whether the first integer
+     * accumulates onto it, and the result.
+     */
+    private Value previous;
+    private boolean isOntoInteger;
+    private String resultText;
+    private long resultInteger;
+
+    /**
+     * Fold in the next value put into the key.
+     *
+     * @param input the CharSequence containing the value
+     * @param start start position of the value (inclusive)
+     * @param end end position of the value (exclusive)
+     */
+    final void add(final CharSequence input, final int start, final int end) {
+        ++pairs;
+        if (!KeyValuePairTokenizer.isInteger(input, start, end)) {
+            isOverwrite = true;
+            text = input.subSequence(start, end).toString();
+            count = 0;
+            firstText = null;
+            return;
+        }
+        if (!isExact) {
+            return;
+        }
+
+        final long integer;
+        try {
+            integer = KeyValuePairTokenizer.parseLong(input, start, end);
+        } catch (NumberFormatException e) {
+            isExact = false;
+            return;
+        }
+
+        if (count == 0) {
+            firstText = Value.isCanonicalLong(input, start, end) ? null : input.subSequence(start, end).toString();
+            total = integer;
+            count = 1;
+            if (!isOverwrite) {
+                isAddition = true;
+                minSum = integer;
+                maxSum = integer;
+            }
+            return;
+        }
+
+        try {
+            total = Math.addExact(total, integer);
+        } catch (ArithmeticException e) {
+            isExact = false;
+            return;
+        }
+        ++count;
+        ++accumulates;
+        if (!isOverwrite) {
+            minSum = Math.min(minSum, total);
+            maxSum = Math.max(maxSum, total);
+        }
+    }
+
+    /**
+     * Fold in the values put into the key after all the values of this
+     * aggregate, e.g. by the next part of the same batch.
+     *
+     * @param later the aggregate of the later values
+     * @return this aggregate
+     */
+    final PairAggregate addAll(final PairAggregate later) {
+        if (!isExact || !later.isExact) {
+            isExact = false;
+            return this;
+        }
+
+        pairs += later.pairs;
+        accumulates += later.accumulates;
+        if (later.isAddition && count > 0) {
+            ++accumulates;
+        }
+
+        try {
+            /**
+             * The integers at the start of the later values accumulate onto
+             * the integers at the end of these, if any, and so do their
+             * running sums.
+             */
+            if (later.isAddition && count > 0) {
+                final long min = Math.addExact(total, later.minSum);
+                final long max = Math.addExact(total, later.maxSum);
+                if (!isOverwrite) {
+                    minSum = Math.min(minSum, min);
+                    maxSum = Math.max(maxSum, max);
+                }
+            }
+
+            if (later.isOverwrite || count == 0) {
+                /**
+                 * Either a later text replaces these values, or these end
+                 * with a text which the later integers overwrite.
+                 */
+                if (!isOverwrite && count == 0) {
+                    isAddition = later.isAddition;
+                    minSum = later.minSum;
+                    maxSum = later.maxSum;
+                }
+                isOverwrite |= later.isOverwrite;
+                text = later.text;
+                count = later.count;
+                firstText = later.firstText;
+                total = later.total;
+                return this;
+            }
+
+            total = Math.addExact(total, later.total);
+            count += later.count;
+
+        } catch (ArithmeticException e) {
+            isExact = false;
+        }
+        return this;
+    }
+
+    /**
+     * Work out the result from the value before the batch, without changing
+     * anything.
+     *
+     * @param previous the Value of the key, or null if the key does not exist
+     * @return false if the result cannot be worked out exactly, in which case
+     * the batch must be applied pair by pair
+     */
+    final boolean resolve(final Value previous) {
+        this.previous = previous;
+        if (!isExact) {
+            return false;
+        }
+
+        long base = 0L;
+        final boolean isOntoInteger = isAddition && previous != null && previous.isInteger();
+        this.isOntoInteger = isOntoInteger;
+        if (isOntoInteger) {
+            /**
+             * Each running sum onto the value before must fit in a long, as
+             * each of them is a value the key has during the batch.
+             */
+            try {
+                if (previous.isLong()) {
+                    base = previous.longValue();
+                } else {
+                    final String integer = previous.toString();
+                    base = KeyValuePairTokenizer.parseLong(integer, 0, integer.length());
+                }
+                Math.addExact(base, minSum);
+                Math.addExact(base, maxSum);
+
+            } catch (NumberFormatException | ArithmeticException e) {
+                return false;
+            }
+        }
+
+        if (count == 0) {
+            resultText = text;
+        } else if (isOverwrite || !isOntoInteger) {
+            resultText = count == 1 ? firstText : null;
+            resultInteger = total;
+        } else {
+            resultText = null;
+            resultInteger = base + total;
+        }
+        return true;
+    }
+
+    /**
+     * @return the Value of the key given to resolve()
+     */
+    final Value previous() {
+        return previous;
+    }
+
+    /**
+     * @return the number of values put
+     */
+    final int pairs() {
+        return pairs;
+    }
+
+    /**
+     * @return the number of integers put which accumulate onto an integer,
+     * once resolve() has returned true
+     */
+    final int accumulates() {
+        return isOntoInteger ? accumulates + 1 : accumulates;
+    }
+
+    /**
+     * Store the result worked out by resolve().
+     *
+     * @return the Value of the key
+     */
+    final Value storeInto(final DataStore dataStore, final String key) {
+        if (resultText == null) {
+            return dataStore.set(key, previous, resultInteger);
+        }
+        return dataStore.set(key, previous, resultText, 0, resultText.length());
+    }
+
+    /**
+     * Clear the aggregate to be reused for another key.
+     */
+    final void clear() {
+        isOverwrite = false;
+        text = null;
+        count = 0;
+        firstText = null;
+        isAddition = false;
+        isExact = true;
+        pairs = 0;
+        accumulates = 0;
+        previous = null;
+        isOntoInteger = false;
+        resultText = null;
+    }
+}
@@ -0,0 +1,246 @@
+package lung.key_value_store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses one very large "kvPairs" input of accept() in parallel.
+ *
+ * The input is split at commas into chunks, which are parsed by a
+ * ForkJoinPool. Each chunk folds the pairs of the keys outside any atomic
+ * group into one PairAggregate per key, and the chunks are merged pairwise
+ * in the order of the input, so the result is the same as folding the whole
+ * input in order.
+ *
+ * The keys of the atomic groups and the invalid parts are only recorded
+ * with their positions by the chunks. They are then passed to a BatchParser
+ * in the order of the input, so the atomic groups are validated, completed
+ * and reported exactly as by the sequential path.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class ParallelIngest {
+
+    /**
+     * The default min length of a chunk, so a chunk is worth a task.
+     */
+    static final int DEFAULT_CHUNK_LENGTH = 1 << 16;
+
+    /**
+     * The number of chunks per thread of the pool, so a thread which
+     * finishes early can steal some more.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The slot of an invalid part in the events of a chunk.
+     */
+    private static final int INVALID = -1;
+
+    private static final int EVENT_LENGTH = 4;
+
+    /**
+     * A region of the input between commas, parsed by one task.
+     */
+    private static final class Chunk {
+
+        private final int start;
+        private final int end;
+
+        /**
+         * The keys of the atomic groups and the invalid parts in the chunk,
+         * in order, as quadruples of (slot, valueStart, valueEnd, the index
+         * of the part in the chunk).
+         */
+        private int[] events = new int[EVENT_LENGTH * 16];
+        private int eventsSize;
+
+        /**
+         * The number of parts in the chunk.
+         */
+        private int parts;
+
+        private Chunk(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private void addEvent(final int slot, final int valueStart, final int valueEnd, final int partIndex) {
+            if (eventsSize == events.length) {
+                events = Arrays.copyOf(events, eventsSize << 1);
+            }
+            events[eventsSize] = slot;
+            events[eventsSize + 1] = valueStart;
+            events[eventsSize + 2] = valueEnd;
+            events[eventsSize + 3] = partIndex;
+            eventsSize += EVENT_LENGTH;
+        }
+    }
+
+    /**
+     * Parses a range of chunks, splitting it in halves, and merges the
+     * aggregates of the halves in order.
+     */
+    private static final class ParseTask extends RecursiveTask<Map<String, PairAggregate>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String kvPairs;
+        private final AtomicGroups atomicGroups;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        private ParseTask(final String kvPairs, final AtomicGroups atomicGroups, final Chunk[] chunks, final int from, final int to) {
+            this.kvPairs = kvPairs;
+            this.atomicGroups = atomicGroups;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, PairAggregate> compute() {
+            if (to - from == 1) {
+                return parse(kvPairs, atomicGroups, chunks[from]);
+            }
+
+            final int mid = (from + to) >>> 1;
+            final ParseTask left = new ParseTask(kvPairs, atomicGroups, chunks, from, mid);
+            final ParseTask right = new ParseTask(kvPairs, atomicGroups, chunks, mid, to);
+            right.fork();
+            final Map<String, PairAggregate> earlier = left.compute();
+            final Map<String, PairAggregate> later = right.join();
+
+            /**
+             * Walk the smaller Map, keeping the order of the values.
+             */
+            if (earlier.size() >= later.size()) {
+                for (final Map.Entry<String, PairAggregate> entry : later.entrySet()) {
+                    earlier.merge(entry.getKey(), entry.getValue(), PairAggregate::addAll);
+                }
+                return earlier;
+            }
+            for (final Map.Entry<String, PairAggregate> entry : earlier.entrySet()) {
+                later.merge(entry.getKey(), entry.getValue(), (l, e) -> e.addAll(l));
+            }
+            return later;
+        }
+    }
+
+    private ParallelIngest() {
+    }
+
+    /**
+     * Parse an input in parallel, and fold all its pairs, including those of
+     * the completed atomic groups, into one PairAggregate per key.
+     *
+     * @param kvPairs the input of accept()
+     * @param atomicGroups the registry of the atomic groups
+     * @param groupParser validates the atomic groups and reports the errors
+     *                    of the input in order
+     * @param pool the pool to parse the chunks
+     * @param chunkLength the min length of a chunk
+     * @return the aggregates by key
+     */
+    static Map<String, PairAggregate> aggregate(final String kvPairs, final AtomicGroups atomicGroups, final BatchParser groupParser,
+                                                final ForkJoinPool pool, final int chunkLength) {
+        final Chunk[] chunks = split(kvPairs, Math.max(chunkLength, kvPairs.length() / (pool.getParallelism() * CHUNKS_PER_THREAD)));
+        if (chunks.length == 0) {
+            return new HashMap<String, PairAggregate>();
+        }
+
+        final Map<String, PairAggregate> aggregates = pool.invoke(new ParseTask(kvPairs, atomicGroups, chunks, 0, chunks.length));
+
+        /**
+         * The keys of the atomic groups are not in any aggregate yet, so the
+         * completed groups are folded in after the other keys.
+         */
+        final BatchParser.PairConsumer aggregateGroupKey = (key, input, valueStart, valueEnd) ->
+                aggregates.computeIfAbsent(key, k -> new PairAggregate()).add(input, valueStart, valueEnd);
+
+        /**
+         * The index of the first part of each chunk in the whole input.
+         */
+        int firstPart = 0;
+        for (final Chunk chunk : chunks) {
+            final int[] events = chunk.events;
+            for (int i = 0; i < chunk.eventsSize; i += EVENT_LENGTH) {
+                final int partIndex = firstPart + events[i + 3];
+                if (events[i] == INVALID) {
+                    groupParser.invalidFormat(partIndex);
+                } else {
+                    groupParser.acceptGroupKey(events[i], kvPairs, events[i + 1], events[i + 2], partIndex, aggregateGroupKey);
+                }
+            }
+            firstPart += chunk.parts;
+        }
+        groupParser.endBatch();
+
+        return aggregates;
+    }
+
+    /**
+     * Split an input at the first comma after every chunkLength chars.
+     */
+    private static Chunk[] split(final String kvPairs, final int chunkLength) {
+        final KeyValuePairTokenizer tokenizer = new KeyValuePairTokenizer();
+        tokenizer.reset(kvPairs);
+        final int end = tokenizer.end();
+
+        /**
+         * An input with nothing but commas has no part at all.
+         */
+        if (end == 0) {
+            return new Chunk[0];
+        }
+
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        int start = 0;
+        while (true) {
+            final int comma = start + chunkLength < end ? kvPairs.indexOf(',', start + chunkLength) : -1;
+            if (comma < 0 || comma >= end) {
+                chunks.add(new Chunk(start, end));
+                return chunks.toArray(new Chunk[0]);
+            }
+            chunks.add(new Chunk(start, comma));
+            start = comma + 1;
+        }
+    }
+
+    /**
+     * Parse one chunk.
+     */
+    private static Map<String, PairAggregate> parse(final String kvPairs, final AtomicGroups atomicGroups, final Chunk chunk) {
+        final Map<String, PairAggregate> aggregates = new HashMap<String, PairAggregate>();
+
+        final KeyValuePairTokenizer tokenizer = new KeyValuePairTokenizer();
+        tokenizer.reset(kvPairs, chunk.start, chunk.end);
+
+        while (tokenizer.next()) {
+            if (tokenizer.isValid()) {
+                final int valueStart = tokenizer.valueStart();
+                final int valueEnd = tokenizer.valueEnd();
+
+                final int slot = atomicGroups.slotOf(kvPairs, tokenizer.keyStart(), tokenizer.keyEnd());
+                if (slot < 0) {
+                    aggregates.computeIfAbsent(tokenizer.key(), k -> new PairAggregate()).add(kvPairs, valueStart, valueEnd);
+                } else {
+                    chunk.addEvent(slot, valueStart, valueEnd, tokenizer.partIndex());
+                }
+
+            } else {
+                chunk.addEvent(INVALID, 0, 0, tokenizer.partIndex());
+            }
+        }
+        chunk.parts = tokenizer.partIndex() + 1;
+        return aggregates;
+    }
+}
@@ -0,0 +1,308 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A KeysAndValues backed by a persistent (structurally shared) tree, for
+ * consistent reads while accept() runs on another thread.
+ *
+ * Each accept() builds a new version of the tree, sharing all the unchanged
+ * nodes with the current one, and publishes it atomically as a new
+ * StoreSnapshot. The readers only read the published StoreSnapshot, so they
+ * never take any lock and never see half of a batch. snapshot() takes a
+ * version in O(1) for many consistent reads.
+ *
+ * The Undo History is simply the previous versions: undo(n) and redo(n)
+ * publish an older or a newer version in O(n) without touching any key, and
+ * a savepoint is a named version, so rolling back to it is O(1) however many
+ * keys have changed. The versions share their nodes, so keeping one costs
+ * the nodes copied by its batch only.
+ *
+ * The writes (accept(), undo(), redo() and the savepoints) are serialized by
+ * the monitor of the instance. The write-ahead log and the checkpoints are
+ * not supported in this mode.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class PersistentKeysAndValues implements KeysAndValues {
+
+    private final ErrorListener errorListener;
+
+    /**
+     * The published version. Written under the monitor, read without lock.
+     */
+    private volatile StoreSnapshot current = StoreSnapshot.EMPTY;
+
+    /**
+     * Parses the input of accept() and validates the atomic groups with
+     * reusable buffers. Guarded by the monitor.
+     */
+    private final BatchParser batchParser;
+
+    /**
+     * The previous versions for undo(), and the versions undone for redo(),
+     * the latest last. Guarded by the monitor.
+     */
+    private final Deque<StoreSnapshot> undoHistory = new ArrayDeque<>();
+    private final Deque<StoreSnapshot> redoHistory = new ArrayDeque<>();
+
+    private final int undoHistorySize;
+
+    /**
+     * The names and the versions of the savepoints, from the oldest to the
+     * latest. Guarded by the monitor.
+     */
+    private final List<String> savepointNames = new ArrayList<>();
+    private final List<StoreSnapshot> savepoints = new ArrayList<>();
+
+    /**
+     * The Editor of the batch being applied. Guarded by the monitor.
+     */
+    private PersistentTree.Editor editor;
+
+    /**
+     * putIntoEditor() as a PairConsumer of the batchParser, created once to
+     * avoid creating a lambda in every accept().
+     */
+    private final BatchParser.PairConsumer putIntoEditor = this::putIntoEditor;
+
+    /**
+     * Constructor with the default atomic group (441,442,500).
+     *
+     * @param errorListener
+     */
+    public PersistentKeysAndValues(final ErrorListener errorListener) {
+        this(errorListener, AtomicGroups.DEFAULT, KeysAndValuesImpl.UNDO_HISTORY_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param errorListener
+     * @param atomicGroups the registry of the atomic groups
+     * @param undoHistorySize the max number of versions kept for undo()
+     */
+    public PersistentKeysAndValues(final ErrorListener errorListener, final AtomicGroups atomicGroups, final int undoHistorySize) {
+        if (undoHistorySize < 0) {
+            throw new IllegalArgumentException("The limits of the Undo History cannot be negative.");
+        }
+        this.errorListener = errorListener;
+        this.batchParser = new BatchParser(errorListener == null ? null : event -> ErrorEvent.report(errorListener, event), atomicGroups);
+        this.undoHistorySize = undoHistorySize;
+    }
+
+    /**
+     * @return the current version, which never changes afterwards
+     */
+    public final StoreSnapshot snapshot() {
+        return current;
+    }
+
+    @Override
+    public final synchronized void accept(final String kvPairs) {
+        Objects.requireNonNull(kvPairs, "Input cannot be null.");
+
+        final StoreSnapshot previous = current;
+        editor = new PersistentTree.Editor(previous.root(), previous.size());
+        try {
+            batchParser.parse(kvPairs, putIntoEditor);
+            publish(new StoreSnapshot(editor.root(), editor.size()), previous);
+        } finally {
+            editor = null;
+        }
+        redoHistory.clear();
+    }
+
+    /**
+     * Input a pair of key-value into the new version, with the same
+     * accumulate and overwrite rules as DataStore.
+     */
+    private void putIntoEditor(final String key, final CharSequence input, final int valueStart, final int valueEnd) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final PersistentTree.Editor editor = this.editor;
+
+        final PersistentTree.Node node = PersistentTree.get(editor.root(), key);
+        try {
+            if (node != null && KeyValuePairTokenizer.isInteger(input, valueStart, valueEnd)
+                    && (node.text == null || KeyValuePairTokenizer.isInteger(node.text, 0, node.text.length()))) {
+                /**
+                 * Accumulate
+                 */
+                final long current = node.text == null ? node.integer : KeyValuePairTokenizer.parseLong(node.text, 0, node.text.length());
+                editor.put(key, null, Math.addExact(current, KeyValuePairTokenizer.parseLong(input, valueStart, valueEnd)));
+
+            } else if (Value.isCanonicalLong(input, valueStart, valueEnd)) {
+                editor.put(key, null, KeyValuePairTokenizer.parseLong(input, valueStart, valueEnd));
+
+            } else {
+                editor.put(key, input.subSequence(valueStart, valueEnd).toString(), 0L);
+            }
+
+        } catch (NumberFormatException | ArithmeticException e) {
+            /**
+             * Integer value > Long.MAX_VALUE, or the sum overflows a long.
+             */
+            ErrorEvent.report(errorListener, ErrorEvent.integerOverflow(key, batchParser.partIndex(), e));
+        }
+    }
+
+    /**
+     * Publish a new version, keeping the previous one for undo().
+     */
+    private void publish(final StoreSnapshot version, final StoreSnapshot previous) {
+        push(undoHistory, previous);
+        current = version;
+    }
+
+    /**
+     * Push a version onto a history, dropping the oldest one if the history
+     * is full, as UndoHistoryImpl does.
+     */
+    private void push(final Deque<StoreSnapshot> history, final StoreSnapshot version) {
+        if (undoHistorySize > 0) {
+            if (history.size() >= undoHistorySize) {
+                history.removeFirst();
+            }
+            history.addLast(version);
+        }
+    }
+
+    @Override
+    public final void undo() {
+        undo(1);
+    }
+
+    @Override
+    public final synchronized void undo(final int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The number of steps cannot be negative.");
+        }
+        StoreSnapshot version = current;
+        for (int i = 0; i < n && !undoHistory.isEmpty(); ++i) {
+            push(redoHistory, version);
+            version = undoHistory.removeLast();
+        }
+        current = version;
+    }
+
+    @Override
+    public final void redo() {
+        redo(1);
+    }
+
+    @Override
+    public final synchronized void redo(final int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The number of steps cannot be negative.");
+        }
+        StoreSnapshot version = current;
+        for (int i = 0; i < n && !redoHistory.isEmpty(); ++i) {
+            push(undoHistory, version);
+            version = redoHistory.removeLast();
+        }
+        current = version;
+    }
+
+    @Override
+    public final synchronized void savepoint(final String name) {
+        Objects.requireNonNull(name, "The name of a savepoint cannot be null.");
+        if (savepointNames.contains(name)) {
+            throw new IllegalArgumentException("Savepoint " + name + " exists already.");
+        }
+        savepointNames.add(name);
+        savepoints.add(current);
+    }
+
+    /**
+     * Publish the version of a savepoint in O(1). The rollback can be undone
+     * like an accept().
+     */
+    @Override
+    public final synchronized void rollbackTo(final String name) {
+        final int k = indexOfSavepoint(name);
+        publish(savepoints.get(k), current);
+        redoHistory.clear();
+        releaseSavepointsFrom(k + 1);
+    }
+
+    @Override
+    public final synchronized void releaseSavepoint(final String name) {
+        releaseSavepointsFrom(indexOfSavepoint(name));
+    }
+
+    private int indexOfSavepoint(final String name) {
+        Objects.requireNonNull(name, "The name of a savepoint cannot be null.");
+        final int k = savepointNames.indexOf(name);
+        if (k < 0) {
+            throw new IllegalArgumentException("Savepoint " + name + " does not exist.");
+        }
+        return k;
+    }
+
+    private void releaseSavepointsFrom(final int k) {
+        savepointNames.subList(k, savepointNames.size()).clear();
+        savepoints.subList(k, savepoints.size()).clear();
+    }
+
+    /**
+     * @return the number of times undo() can be called
+     */
+    public final synchronized int undoHistorySize() {
+        return undoHistory.size();
+    }
+
+    @Override
+    public final String display() {
+        return current.display();
+    }
+
+    @Override
+    public final void display(final Appendable out) throws IOException {
+        current.display(out);
+    }
+
+    @Override
+    public final void display(final WritableByteChannel channel) throws IOException {
+        current.display(channel);
+    }
+
+    @Override
+    public final String display(final String fromKey, final String toKey) {
+        return current.display(fromKey, toKey);
+    }
+
+    @Override
+    public final String display(final String prefix) {
+        return current.display(prefix);
+    }
+
+    @Override
+    public final String displayPage(final String afterKey, final int limit) {
+        return current.displayPage(afterKey, limit);
+    }
+
+    @Override
+    public final String get(final String key) {
+        return current.get(key);
+    }
+
+    @Override
+    public final Map<String, String> multiGet(final Collection<String> keys) {
+        return current.multiGet(keys);
+    }
+}
@@ -0,0 +1,289 @@
+package lung.key_value_store;
+
+/**
+ * A persistent (immutable, structurally shared) AVL tree of the key-value
+ * pairs, sorted in DataStore.KEY_ORDER.
+ *
+ * A change never modifies a node which may be reachable from a published
+ * root: the nodes on the path to the key are copied instead, so every root
+ * ever published stays a consistent version of the whole tree, sharing all
+ * the other nodes with the newer versions.
+ *
+ * Copying the path for every pair of a large batch would create a lot of
+ * garbage, so an Editor owns the nodes it has created (like the transients
+ * of Clojure): while a batch is being applied, a node created by the same
+ * Editor is modified in place, and only the nodes of older versions are
+ * copied. The Editor is discarded when the new root is published, so its
+ * nodes are never modified again after that.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class PersistentTree {
+
+    /**
+     * Enough for an AVL tree of 2^31 keys, whose height is at most
+     * 1.44 * log2(n).
+     */
+    private static final int MAX_HEIGHT = 48;
+
+    private PersistentTree() {
+    }
+
+    /**
+     * A node of the tree. It's only modified by the Editor which has created
+     * it, before its root is published.
+     */
+    static final class Node {
+
+        final String key;
+
+        /**
+         * The text of the value, or null if the value is the integer below.
+         * The same rules as Value.
+         */
+        String text;
+        long integer;
+
+        Node left;
+        Node right;
+        int height;
+
+        /**
+         * The token of the Editor which has created the node. It's not the
+         * Editor itself, which would keep its whole version reachable.
+         */
+        private final Object edit;
+
+        private Node(final String key, final String text, final long integer, final Node left, final Node right,
+                     final int height, final Object edit) {
+            this.key = key;
+            this.text = text;
+            this.integer = integer;
+            this.left = left;
+            this.right = right;
+            this.height = height;
+            this.edit = edit;
+        }
+
+        /**
+         * Append the value to a StringBuilder without creating a String.
+         */
+        final void appendTo(final StringBuilder sb) {
+            if (text == null) {
+                sb.append(integer);
+            } else {
+                sb.append(text);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return text == null ? Long.toString(integer) : text;
+        }
+    }
+
+    /**
+     * @return the node of the key, or null if the key does not exist
+     */
+    static Node get(Node node, final String key) {
+        while (node != null) {
+            final int c = DataStore.KEY_ORDER.compare(key, node.key);
+            if (c == 0) {
+                return node;
+            }
+            node = c < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Applies the changes of one batch to a version of the tree, creating a
+     * new version. It's not thread-safe, and must not be used after its root
+     * is published.
+     */
+    static final class Editor {
+
+        private final Object edit = new Object();
+
+        private Node root;
+
+        /**
+         * The number of keys of the new version.
+         */
+        private int size;
+
+        Editor(final Node root, final int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        final Node root() {
+            return root;
+        }
+
+        final int size() {
+            return size;
+        }
+
+        /**
+         * Set the value of a key, inserting the key if it does not exist.
+         *
+         * @param text the text of the value, or null if it's the integer
+         */
+        final void put(final String key, final String text, final long integer) {
+            root = put(root, key, text, integer);
+        }
+
+        private Node put(final Node node, final String key, final String text, final long integer) {
+            if (node == null) {
+                ++size;
+                return new Node(key, text, integer, null, null, 1, edit);
+            }
+
+            final Node n = editable(node);
+            final int c = DataStore.KEY_ORDER.compare(key, n.key);
+            if (c == 0) {
+                n.text = text;
+                n.integer = integer;
+                return n;
+            }
+
+            if (c < 0) {
+                n.left = put(n.left, key, text, integer);
+            } else {
+                n.right = put(n.right, key, text, integer);
+            }
+            return balance(n);
+        }
+
+        /**
+         * @return the node itself if it's created by this Editor, otherwise
+         * a copy of it owned by this Editor
+         */
+        private Node editable(final Node node) {
+            return node.edit == edit ? node : new Node(node.key, node.text, node.integer, node.left, node.right, node.height, edit);
+        }
+
+        private Node balance(final Node n) {
+            final int balance = height(n.left) - height(n.right);
+            if (balance > 1) {
+                if (height(n.left.left) < height(n.left.right)) {
+                    n.left = rotateLeft(editable(n.left));
+                }
+                return rotateRight(n);
+            }
+            if (balance < -1) {
+                if (height(n.right.right) < height(n.right.left)) {
+                    n.right = rotateRight(editable(n.right));
+                }
+                return rotateLeft(n);
+            }
+            updateHeight(n);
+            return n;
+        }
+
+        /**
+         * @param n an editable node
+         */
+        private Node rotateRight(final Node n) {
+            final Node l = editable(n.left);
+            n.left = l.right;
+            l.right = n;
+            updateHeight(n);
+            updateHeight(l);
+            return l;
+        }
+
+        /**
+         * @param n an editable node
+         */
+        private Node rotateLeft(final Node n) {
+            final Node r = editable(n.right);
+            n.right = r.left;
+            r.left = n;
+            updateHeight(n);
+            updateHeight(r);
+            return r;
+        }
+
+        private static int height(final Node node) {
+            return node == null ? 0 : node.height;
+        }
+
+        private static void updateHeight(final Node n) {
+            n.height = Math.max(height(n.left), height(n.right)) + 1;
+        }
+    }
+
+    /**
+     * An in-order iterator of one version of the tree, with an explicit
+     * stack so nothing is created per node.
+     */
+    static final class Cursor {
+
+        private final Node[] stack = new Node[MAX_HEIGHT];
+        private int depth;
+
+        /**
+         * Start from the first key.
+         */
+        final Cursor first(Node node) {
+            depth = 0;
+            while (node != null) {
+                stack[depth++] = node;
+                node = node.left;
+            }
+            return this;
+        }
+
+        /**
+         * Start from the first key not less than fromKey, compared
+         * case-insensitively.
+         */
+        final Cursor from(Node node, final String fromKey) {
+            depth = 0;
+            while (node != null) {
+                if (String.CASE_INSENSITIVE_ORDER.compare(node.key, fromKey) >= 0) {
+                    stack[depth++] = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Start from the first key after afterKey in KEY_ORDER.
+         */
+        final Cursor after(Node node, final String afterKey) {
+            depth = 0;
+            while (node != null) {
+                if (DataStore.KEY_ORDER.compare(node.key, afterKey) > 0) {
+                    stack[depth++] = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return the next node, or null at the end
+         */
+        final Node next() {
+            if (depth == 0) {
+                return null;
+            }
+            final Node node = stack[--depth];
+            stack[depth] = null;
+            for (Node n = node.right; n != null; n = n.left) {
+                stack[depth++] = n;
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.UndoSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The named savepoints of the data stores, from the oldest to the latest.
+ *
+ * A savepoint is a position in the journal of each data store. The journal
+ * keeps the value of each key before its first modification since the latest
+ * savepoint, so rolling back to a savepoint costs the number of keys modified
+ * since then, however many accept() calls there have been, and it's not
+ * limited by the size of the Undo History.
+ *
+ * It's not thread-safe. ConcurrentKeysAndValues only uses it with the locks
+ * of all stripes.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class Savepoints {
+
+    private final DataStore[] stores;
+
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * The position of each savepoint in the journal of each data store.
+     */
+    private final List<int[]> positions = new ArrayList<>();
+
+    /**
+     * The last id given to a savepoint. The ids are never reused, so the keys
+     * marked for an older savepoint are saved again for a new one.
+     */
+    private long lastId;
+
+    Savepoints(final DataStore... stores) {
+        this.stores = stores;
+    }
+
+    /**
+     * @return true/false of whether there is a savepoint of the name
+     */
+    final boolean contains(final String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Create a savepoint at the current values.
+     *
+     * @throws IllegalArgumentException if there is a savepoint of the name
+     *                                  already
+     */
+    final void create(final String name) {
+        if (contains(name)) {
+            throw new IllegalArgumentException("Savepoint " + name + " exists already.");
+        }
+
+        final long id = ++lastId;
+        final int[] position = new int[stores.length];
+        for (int i = 0; i < stores.length; ++i) {
+            position[i] = stores[i].startSavepoint(id);
+        }
+        names.add(name);
+        positions.add(position);
+    }
+
+    /**
+     * Put back the values of a savepoint. The savepoint is kept, and the
+     * later ones are released.
+     *
+     * @param inverse receives how to undo the rollback
+     * @throws IllegalArgumentException if there is no savepoint of the name
+     */
+    final void rollbackTo(final String name, final UndoSnapshot inverse) {
+        final int k = indexOf(name);
+
+        final long id = ++lastId;
+        final int[] position = positions.get(k);
+        for (int i = 0; i < stores.length; ++i) {
+            stores[i].rollbackToSavepoint(position[i], id, inverse);
+        }
+        removeFrom(k + 1);
+    }
+
+    /**
+     * Release a savepoint and the later ones, without changing any value.
+     *
+     * @throws IllegalArgumentException if there is no savepoint of the name
+     */
+    final void release(final String name) {
+        removeFrom(indexOf(name));
+
+        if (names.isEmpty()) {
+            for (final DataStore store : stores) {
+                store.stopSavepoints();
+            }
+        } else {
+            /**
+             * The journal since the released savepoints belongs to the latest
+             * one left.
+             */
+            final long id = ++lastId;
+            for (final DataStore store : stores) {
+                store.continueSavepoint(id);
+            }
+        }
+    }
+
+    /**
+     * Release all the savepoints.
+     */
+    final void clear() {
+        if (!names.isEmpty()) {
+            release(names.get(0));
+        }
+    }
+
+    private int indexOf(final String name) {
+        final int k = names.indexOf(name);
+        if (k < 0) {
+            throw new IllegalArgumentException("Savepoint " + name + " does not exist.");
+        }
+        return k;
+    }
+
+    private void removeFrom(final int k) {
+        names.subList(k, names.size()).clear();
+        positions.subList(k, positions.size()).clear();
+    }
+}
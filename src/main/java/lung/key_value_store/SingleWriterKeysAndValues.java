@@ -0,0 +1,491 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread-safe KeysAndValues with a single writer thread instead of locks.
+ *
+ * The callers put their calls into a bounded lock-free ring (MpscRing), and
+ * one dedicated thread takes them in order and applies them to a
+ * KeysAndValuesImpl, which is never touched by any other thread. So the
+ * internals of KeysAndValuesImpl stay single-threaded, and the order of the
+ * calls is the order they enter the ring.
+ *
+ * acceptAsync() returns as soon as the batch is in the ring; the future is
+ * completed when the batch is applied (and durable, with a WriteAheadLog).
+ * The other calls, including the reads, go through the ring as well and wait
+ * for their results, so a read always sees the calls put into the ring
+ * before it.
+ *
+ * When the ring is full, the callers wait for a free slot (backpressure)
+ * according to the WaitStrategy, which is also how the writer thread waits
+ * for an empty ring to be filled.
+ *
+ * The ErrorListener is called by the writer thread, and it must not call
+ * this KeysAndValues, which would wait for the writer thread on itself.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class SingleWriterKeysAndValues implements KeysAndValues, AutoCloseable {
+
+    /**
+     * How the writer thread waits for a call, and how the callers wait for a
+     * free slot of a full ring.
+     */
+    public enum WaitStrategy {
+        /**
+         * Keep checking; the lowest latency, with a whole core kept busy.
+         */
+        BUSY_SPIN,
+
+        /**
+         * Give up the core to other threads between the checks.
+         */
+        YIELD,
+
+        /**
+         * Sleep until woken up by the next call; the writer thread costs
+         * nothing while idle, but each wake up costs some microseconds.
+         */
+        PARK
+    }
+
+    public static final int DEFAULT_RING_SIZE = 1 << 10;
+
+    /**
+     * How long a caller sleeps between the checks of a full ring with PARK.
+     */
+    private static final long PARK_NANOS = 50000L;
+
+    /**
+     * A call of any kind except accept(), applied by the writer thread.
+     */
+    private interface Command<T> {
+        T apply(KeysAndValuesImpl kv) throws IOException;
+    }
+
+    /**
+     * A call in the ring, which is also the future of its result, so only one
+     * object is created for each call. kvPairs is the batch of an accept(),
+     * for which command is null.
+     */
+    private static final class Task<T> extends CompletableFuture<T> {
+
+        private final String kvPairs;
+        private final Command<T> command;
+
+        private Task(final String kvPairs, final Command<T> command) {
+            this.kvPairs = kvPairs;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Put into the ring by close() after all the other calls.
+     */
+    private static final Task<Void> STOP = new Task<Void>(null, null);
+
+    /**
+     * Only used by the writer thread.
+     */
+    private final KeysAndValuesImpl kv;
+
+    private final MpscRing<Task<?>> ring;
+
+    private final WaitStrategy waitStrategy;
+
+    private final Thread writerThread;
+
+    /**
+     * Set by the writer thread before it parks with PARK, so the callers know
+     * they have to wake it up.
+     */
+    private volatile boolean isWriterParked;
+
+    /**
+     * Set once by close(), by a CAS so only one close() puts STOP.
+     */
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    /**
+     * The number of callers putting a call into the ring, so close() can wait
+     * for them before it puts STOP after all the calls.
+     */
+    private final AtomicInteger callersEntering = new AtomicInteger();
+
+    /**
+     * Constructor with a new KeysAndValuesImpl, the default ring size and
+     * PARK.
+     *
+     * @param errorListener
+     */
+    public SingleWriterKeysAndValues(final ErrorListener errorListener) {
+        this(new KeysAndValuesImpl(errorListener), DEFAULT_RING_SIZE, WaitStrategy.PARK);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param kv the KeysAndValuesImpl to apply the calls to, e.g. with a
+     *           WriteAheadLog; it must not be used directly any more
+     * @param ringSize the max number of calls waiting in the ring, a power
+     *                 of 2
+     * @param waitStrategy how the writer thread and the callers wait
+     */
+    public SingleWriterKeysAndValues(final KeysAndValuesImpl kv, final int ringSize, final WaitStrategy waitStrategy) {
+        this.kv = Objects.requireNonNull(kv, "KeysAndValuesImpl cannot be null.");
+        this.ring = new MpscRing<Task<?>>(ringSize);
+        this.waitStrategy = Objects.requireNonNull(waitStrategy, "Wait strategy cannot be null.");
+
+        writerThread = new Thread(this::runWriter, "kv-single-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Put a batch into the ring, waiting for a free slot if the ring is full.
+     *
+     * @return a future completed when the batch is applied; the errors of
+     * the input are reported to the ErrorListener as with accept()
+     * @throws IllegalStateException if it's closed
+     */
+    public final CompletableFuture<Void> acceptAsync(final String kvPairs) {
+        // Input cannot be null.
+        Objects.requireNonNull(kvPairs, "Input cannot be null.");
+
+        final Task<Void> task = new Task<Void>(kvPairs, null);
+        enqueue(task);
+        return task;
+    }
+
+    @Override
+    public final void accept(final String kvPairs) {
+        await(acceptAsync(kvPairs));
+    }
+
+    @Override
+    public final void undo() {
+        undo(1);
+    }
+
+    @Override
+    public final void undo(final int n) {
+        call(kv -> {
+            kv.undo(n);
+            return null;
+        });
+    }
+
+    @Override
+    public final void redo() {
+        redo(1);
+    }
+
+    @Override
+    public final void redo(final int n) {
+        call(kv -> {
+            kv.redo(n);
+            return null;
+        });
+    }
+
+    @Override
+    public final void savepoint(final String name) {
+        call(kv -> {
+            kv.savepoint(name);
+            return null;
+        });
+    }
+
+    @Override
+    public final void rollbackTo(final String name) {
+        call(kv -> {
+            kv.rollbackTo(name);
+            return null;
+        });
+    }
+
+    @Override
+    public final void releaseSavepoint(final String name) {
+        call(kv -> {
+            kv.releaseSavepoint(name);
+            return null;
+        });
+    }
+
+    /**
+     * Take a checkpoint after all the calls put into the ring before.
+     *
+     * @throws IllegalStateException if the KeysAndValuesImpl has no
+     *                               Checkpointer
+     */
+    public final CompletableFuture<Path> checkpoint() {
+        return call(KeysAndValuesImpl::checkpoint);
+    }
+
+    /**
+     * @return the number of times undo() can be called
+     */
+    public final int undoHistorySize() {
+        return call(KeysAndValuesImpl::undoHistorySize);
+    }
+
+    @Override
+    public final String display() {
+        return call(KeysAndValuesImpl::display);
+    }
+
+    /**
+     * The writer thread streams the output, so a slow Appendable holds up all
+     * the other calls.
+     */
+    @Override
+    public final void display(final Appendable out) throws IOException {
+        try {
+            call(kv -> {
+                kv.display(out);
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The writer thread streams the output, so a slow channel holds up all
+     * the other calls.
+     */
+    @Override
+    public final void display(final WritableByteChannel channel) throws IOException {
+        try {
+            call(kv -> {
+                kv.display(channel);
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public final String display(final String fromKey, final String toKey) {
+        return call(kv -> kv.display(fromKey, toKey));
+    }
+
+    @Override
+    public final String display(final String prefix) {
+        return call(kv -> kv.display(prefix));
+    }
+
+    @Override
+    public final String displayPage(final String afterKey, final int limit) {
+        return call(kv -> kv.displayPage(afterKey, limit));
+    }
+
+    @Override
+    public final String get(final String key) {
+        return call(kv -> kv.get(key));
+    }
+
+    @Override
+    public final Map<String, String> multiGet(final Collection<String> keys) {
+        return call(kv -> kv.multiGet(keys));
+    }
+
+    /**
+     * Apply all the calls already in the ring, then stop the writer thread.
+     * The calls made afterwards throw an IllegalStateException.
+     */
+    @Override
+    public void close() {
+        if (!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+
+        /**
+         * The callers which have not seen isClosed are finishing putting
+         * their calls into the ring, so STOP goes after all of them.
+         */
+        while (callersEntering.get() != 0) {
+            Thread.yield();
+        }
+        offer(STOP);
+
+        if (Thread.currentThread() != writerThread) {
+            boolean isInterrupted = false;
+            while (writerThread.isAlive()) {
+                try {
+                    writerThread.join();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Put a call into the ring and wait for its result.
+     */
+    private <T> T call(final Command<T> command) {
+        final Task<T> task = new Task<T>(null, command);
+        enqueue(task);
+        return await(task);
+    }
+
+    private void enqueue(final Task<?> task) {
+        callersEntering.incrementAndGet();
+        try {
+            if (isClosed.get()) {
+                throw new IllegalStateException("The single writer is closed.");
+            }
+            offer(task);
+        } finally {
+            callersEntering.decrementAndGet();
+        }
+    }
+
+    /**
+     * Put a task into the ring, waiting while it's full, and wake up the
+     * writer thread if it's parked.
+     */
+    private void offer(final Task<?> task) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final MpscRing<Task<?>> ring = this.ring;
+
+        while (!ring.offer(task)) {
+            idle(PARK_NANOS);
+        }
+        if (isWriterParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Wait for a task, rethrowing the exception of a failed call as is.
+     */
+    private <T> T await(final CompletableFuture<T> task) {
+        if (Thread.currentThread() == writerThread) {
+            throw new IllegalStateException("The writer thread cannot wait for itself.");
+        }
+
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    if (cause instanceof IOException) {
+                        throw new UncheckedIOException((IOException) cause);
+                    }
+                    throw new CompletionException(cause);
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private void runWriter() {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final MpscRing<Task<?>> ring = this.ring;
+
+        while (true) {
+            final Task<?> task = ring.poll();
+            if (task == null) {
+                waitForTask();
+            } else if (task == STOP) {
+                return;
+            } else {
+                run(task);
+            }
+        }
+    }
+
+    private <T> void run(final Task<T> task) {
+        try {
+            if (task.command == null) {
+                kv.accept(task.kvPairs);
+                task.complete(null);
+            } else {
+                task.complete(task.command.apply(kv));
+            }
+        } catch (Throwable e) {
+            task.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Wait for the ring to be filled. With PARK, the flag is set before the
+     * ring is checked again, so a caller putting a task after the check sees
+     * the flag and wakes the writer thread up. Both the flag and the
+     * sequence of a slot are written by volatile stores before the other is
+     * read, so at least one side sees the store of the other and no wake up
+     * is lost.
+     */
+    private void waitForTask() {
+        if (waitStrategy != WaitStrategy.PARK) {
+            idle(0L);
+            return;
+        }
+
+        isWriterParked = true;
+        if (ring.isEmpty()) {
+            LockSupport.park(this);
+        }
+        isWriterParked = false;
+    }
+
+    /**
+     * @param parkNanos how long to sleep with PARK
+     */
+    private void idle(final long parkNanos) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(this, parkNanos);
+                break;
+        }
+    }
+}
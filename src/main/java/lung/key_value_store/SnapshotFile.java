@@ -0,0 +1,265 @@
+package lung.key_value_store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.PriorityQueue;
+
+/**
+ * The binary format of a checkpoint: all the key-value pairs in the sorted
+ * order of the keys, so that it can be loaded straight into the sorted index
+ * of a DataStore without any sorting.
+ *
+ *   header:  [MAGIC: int][VERSION: int][WAL sequence: long][count: long]
+ *   entry:   [key length: int][key in UTF-8]
+ *            [LONG: byte][value: long] or [TEXT: byte][length: int][text in UTF-8]
+ *   trailer: [MAGIC: int]
+ *
+ * An integer value kept as a primitive long is stored natively, so it's
+ * neither formatted when written nor parsed when loaded.
+ *
+ * The file is loaded through MappedByteBuffer's, mapped in windows of up to
+ * MAX_WINDOW_SIZE bytes, so a file larger than 2GB can be loaded too.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class SnapshotFile {
+
+    /**
+     * The copy of the sorted key-value pairs of one DataStore, taken by
+     * DataStore.copy() so that it can be written without any lock.
+     */
+    static final class Part {
+        final String[] keys;
+
+        /**
+         * The text of each value, or null if the value is in longs.
+         */
+        final String[] texts;
+        final long[] longs;
+        final int size;
+
+        Part(final int size) {
+            this.keys = new String[size];
+            this.texts = new String[size];
+            this.longs = new long[size];
+            this.size = size;
+        }
+    }
+
+    /**
+     * Receives the loaded key-value pairs in the sorted order of the keys.
+     */
+    interface Loader {
+        void loadLong(String key, long value);
+
+        void loadText(String key, String value);
+    }
+
+    private static final int MAGIC = 0x4B565350;
+    private static final int VERSION = 1;
+
+    private static final byte LONG = 0;
+    private static final byte TEXT = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Write the parts, merged in the sorted order of the keys, to a file, and
+     * force it to the disk.
+     *
+     * @param walSequence the first segment of the write-ahead log which is
+     *                    not covered by this snapshot
+     */
+    static void write(final Path file, final Part[] parts, final long walSequence) throws IOException {
+        long count = 0L;
+        for (final Part part : parts) {
+            count += part.size;
+        }
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(walSequence).putLong(count);
+
+            /**
+             * Merge the parts, each of which is sorted already.
+             */
+            final PriorityQueue<PartCursor> cursors = new PriorityQueue<>(Math.max(1, parts.length));
+            for (final Part part : parts) {
+                if (part.size > 0) {
+                    cursors.add(new PartCursor(part));
+                }
+            }
+
+            PartCursor cursor;
+            while ((cursor = cursors.poll()) != null) {
+                final Part part = cursor.part;
+                final int i = cursor.index;
+
+                final byte[] key = part.keys[i].getBytes(StandardCharsets.UTF_8);
+                final String text = part.texts[i];
+                final byte[] value = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+                final int entrySize = 4 + key.length + 1 + (value == null ? 8 : 4 + value.length);
+
+                if (buffer.remaining() < entrySize) {
+                    drain(out, buffer);
+                    if (buffer.capacity() < entrySize) {
+                        buffer = ByteBuffer.allocate(entrySize);
+                    }
+                }
+
+                buffer.putInt(key.length).put(key);
+                if (value == null) {
+                    buffer.put(LONG).putLong(part.longs[i]);
+                } else {
+                    buffer.put(TEXT).putInt(value.length).put(value);
+                }
+
+                if (++cursor.index < part.size) {
+                    cursors.add(cursor);
+                }
+            }
+
+            if (buffer.remaining() < 4) {
+                drain(out, buffer);
+            }
+            buffer.putInt(MAGIC);
+            drain(out, buffer);
+
+            out.force(true);
+        }
+    }
+
+    /**
+     * Load a file written by write().
+     *
+     * @return the first segment of the write-ahead log which is not covered
+     * by the snapshot
+     * @throws IOException if the file is broken
+     */
+    static long load(final Path file, final Loader loader) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedReader reader = new MappedReader(in);
+
+            reader.ensure(HEADER_SIZE);
+            if (reader.buffer.getInt() != MAGIC || reader.buffer.getInt() != VERSION) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            final long walSequence = reader.buffer.getLong();
+            final long count = reader.buffer.getLong();
+
+            byte[] bytes = new byte[1 << 8];
+            for (long n = 0L; n < count; ++n) {
+                reader.ensure(4);
+                final int keyLength = reader.buffer.getInt();
+                reader.ensure(keyLength + 1);
+                if (bytes.length < keyLength) {
+                    bytes = new byte[Math.max(keyLength, bytes.length << 1)];
+                }
+                reader.buffer.get(bytes, 0, keyLength);
+                final String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+
+                final byte type = reader.buffer.get();
+                if (type == LONG) {
+                    reader.ensure(8);
+                    loader.loadLong(key, reader.buffer.getLong());
+
+                } else if (type == TEXT) {
+                    reader.ensure(4);
+                    final int valueLength = reader.buffer.getInt();
+                    reader.ensure(valueLength);
+                    if (bytes.length < valueLength) {
+                        bytes = new byte[Math.max(valueLength, bytes.length << 1)];
+                    }
+                    reader.buffer.get(bytes, 0, valueLength);
+                    loader.loadText(key, new String(bytes, 0, valueLength, StandardCharsets.UTF_8));
+
+                } else {
+                    throw new IOException("Broken snapshot file: " + file);
+                }
+            }
+
+            reader.ensure(4);
+            if (reader.buffer.getInt() != MAGIC) {
+                throw new IOException("Broken snapshot file: " + file);
+            }
+            return walSequence;
+        }
+    }
+
+    private static void drain(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads a file through a window of MappedByteBuffer, which is moved
+     * forward whenever the next read would cross its end.
+     */
+    private static final class MappedReader {
+        private final FileChannel in;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer buffer;
+
+        private MappedReader(final FileChannel in) throws IOException {
+            this.in = in;
+            this.size = in.size();
+            map(0L);
+        }
+
+        /**
+         * Make sure the next n bytes are in the window.
+         */
+        private void ensure(final int n) throws IOException {
+            if (n < 0) {
+                throw new IOException("Broken snapshot file.");
+            }
+            if (buffer.remaining() >= n) {
+                return;
+            }
+
+            final long position = windowStart + buffer.position();
+            if (position + n > size) {
+                throw new IOException("Unexpected end of the snapshot file.");
+            }
+            map(position);
+        }
+
+        private void map(final long position) throws IOException {
+            windowStart = position;
+            buffer = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAX_WINDOW_SIZE));
+        }
+    }
+
+    private static final class PartCursor implements Comparable<PartCursor> {
+        private final Part part;
+        private int index;
+
+        private PartCursor(final Part part) {
+            this.part = part;
+        }
+
+        @Override
+        public int compareTo(final PartCursor o) {
+            return DataStore.KEY_ORDER.compare(part.keys[index], o.part.keys[o.index]);
+        }
+    }
+}
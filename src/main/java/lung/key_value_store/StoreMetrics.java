@@ -0,0 +1,433 @@
+package lung.key_value_store;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a KeysAndValuesImpl, given to it by setMetrics(). Without
+ * it, a store only pays a null check per call.
+ *
+ * The counters are LongAdders and the distributions are LatencyHistograms,
+ * so they are recorded by the writer without any lock, and read by any
+ * thread through snapshot(), or exported to JMX by registerMBean(). The
+ * depth and the estimated bytes of the Undo History are gauges, set by the
+ * store after each call which changes them.
+ *
+ * One StoreMetrics may be shared by many stores, in which case the gauges
+ * are of the last store which set them.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class StoreMetrics implements StoreMetricsMXBean {
+
+    /**
+     * The domain of the ObjectName registered by registerMBean().
+     */
+    public static final String JMX_DOMAIN = "lung.key_value_store";
+
+    private final LongAdder accepts = new LongAdder();
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder accumulates = new LongAdder();
+    private final LongAdder overwrites = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder atomicGroupCompletions = new LongAdder();
+    private final LongAdder atomicGroupFailures = new LongAdder();
+    private final LongAdder displays = new LongAdder();
+    private final LongAdder undos = new LongAdder();
+    private final LongAdder redos = new LongAdder();
+
+    private final LatencyHistogram pairsPerBatch = new LatencyHistogram();
+    private final LatencyHistogram acceptLatency = new LatencyHistogram();
+    private final LatencyHistogram displayLatency = new LatencyHistogram();
+    private final LatencyHistogram undoLatency = new LatencyHistogram();
+
+    private volatile int undoDepth;
+    private volatile long undoBytes;
+
+    /**
+     * The name registered by registerMBean(), or null.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Record one batch of accept(), acceptParallel() or acceptAll().
+     *
+     * @param nanos the time taken
+     * @param accumulates the number of pairs accumulated onto an integer
+     * @param overwrites the number of pairs stored otherwise
+     * @param completedGroups the number of atomic groups completed
+     * @param failedGroups the number of atomic groups left incomplete
+     */
+    final void recordBatch(final long nanos, final int accumulates, final int overwrites,
+                           final int completedGroups, final int failedGroups) {
+        accepts.increment();
+        pairs.add(accumulates + overwrites);
+        pairsPerBatch.record(accumulates + overwrites);
+        acceptLatency.record(nanos);
+
+        if (accumulates > 0) {
+            this.accumulates.add(accumulates);
+        }
+        if (overwrites > 0) {
+            this.overwrites.add(overwrites);
+        }
+        if (completedGroups > 0) {
+            atomicGroupCompletions.add(completedGroups);
+        }
+        if (failedGroups > 0) {
+            atomicGroupFailures.add(failedGroups);
+        }
+    }
+
+    /**
+     * Record an error passed to the ErrorListener.
+     */
+    final void recordError() {
+        errors.increment();
+    }
+
+    final void recordDisplay(final long nanos) {
+        displays.increment();
+        displayLatency.record(nanos);
+    }
+
+    final void recordUndo(final long nanos) {
+        undos.increment();
+        undoLatency.record(nanos);
+    }
+
+    final void recordRedo() {
+        redos.increment();
+    }
+
+    /**
+     * Set the gauges of the Undo History.
+     *
+     * @param depth the number of times undo() can be called
+     * @param bytes the estimated number of bytes held
+     */
+    final void recordUndoHistory(final int depth, final long bytes) {
+        this.undoDepth = depth;
+        this.undoBytes = bytes;
+    }
+
+    /**
+     * @return the current values of all the metrics
+     */
+    public final Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public final void reset() {
+        accepts.reset();
+        pairs.reset();
+        accumulates.reset();
+        overwrites.reset();
+        errors.reset();
+        atomicGroupCompletions.reset();
+        atomicGroupFailures.reset();
+        displays.reset();
+        undos.reset();
+        redos.reset();
+        pairsPerBatch.reset();
+        acceptLatency.reset();
+        displayLatency.reset();
+        undoLatency.reset();
+    }
+
+    /**
+     * Register this as an MXBean of the platform MBeanServer, named
+     * "lung.key_value_store:type=StoreMetrics,name=<name>".
+     *
+     * @param name the name of the store
+     * @return the ObjectName registered
+     * @throws IllegalStateException if this is registered already
+     * @throws JMException if it cannot be registered, e.g. the name is taken
+     */
+    public final synchronized ObjectName registerMBean(final String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("The metrics are registered already as " + objectName + ".");
+        }
+
+        final ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=StoreMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Unregister the MXBean registered by registerMBean(), if any.
+     *
+     * @throws JMException if it cannot be unregistered
+     */
+    public final synchronized void unregisterMBean() throws JMException {
+        if (objectName == null) {
+            return;
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public final long getAcceptCount() {
+        return accepts.sum();
+    }
+
+    @Override
+    public final long getPairCount() {
+        return pairs.sum();
+    }
+
+    @Override
+    public final long getAccumulateCount() {
+        return accumulates.sum();
+    }
+
+    @Override
+    public final long getOverwriteCount() {
+        return overwrites.sum();
+    }
+
+    @Override
+    public final long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public final long getAtomicGroupCompletions() {
+        return atomicGroupCompletions.sum();
+    }
+
+    @Override
+    public final long getAtomicGroupFailures() {
+        return atomicGroupFailures.sum();
+    }
+
+    @Override
+    public final long getDisplayCount() {
+        return displays.sum();
+    }
+
+    @Override
+    public final long getUndoCount() {
+        return undos.sum();
+    }
+
+    @Override
+    public final long getRedoCount() {
+        return redos.sum();
+    }
+
+    @Override
+    public final int getUndoDepth() {
+        return undoDepth;
+    }
+
+    @Override
+    public final long getUndoBytes() {
+        return undoBytes;
+    }
+
+    @Override
+    public final double getPairsPerBatchMean() {
+        return pairsPerBatch.snapshot().mean();
+    }
+
+    @Override
+    public final long getPairsPerBatchMax() {
+        return pairsPerBatch.snapshot().max();
+    }
+
+    @Override
+    public final long getAcceptLatencyP50() {
+        return acceptLatency.snapshot().percentile(50.0);
+    }
+
+    @Override
+    public final long getAcceptLatencyP99() {
+        return acceptLatency.snapshot().percentile(99.0);
+    }
+
+    @Override
+    public final long getAcceptLatencyMax() {
+        return acceptLatency.snapshot().max();
+    }
+
+    @Override
+    public final long getDisplayLatencyP50() {
+        return displayLatency.snapshot().percentile(50.0);
+    }
+
+    @Override
+    public final long getDisplayLatencyP99() {
+        return displayLatency.snapshot().percentile(99.0);
+    }
+
+    @Override
+    public final long getDisplayLatencyMax() {
+        return displayLatency.snapshot().max();
+    }
+
+    @Override
+    public final long getUndoLatencyP50() {
+        return undoLatency.snapshot().percentile(50.0);
+    }
+
+    @Override
+    public final long getUndoLatencyP99() {
+        return undoLatency.snapshot().percentile(99.0);
+    }
+
+    @Override
+    public final long getUndoLatencyMax() {
+        return undoLatency.snapshot().max();
+    }
+
+    /**
+     * The values of StoreMetrics at a point in time. The latencies are in
+     * nanos.
+     */
+    public static final class Snapshot {
+
+        private final long acceptCount;
+        private final long pairCount;
+        private final long accumulateCount;
+        private final long overwriteCount;
+        private final long errorCount;
+        private final long atomicGroupCompletions;
+        private final long atomicGroupFailures;
+        private final long displayCount;
+        private final long undoCount;
+        private final long redoCount;
+        private final int undoDepth;
+        private final long undoBytes;
+        private final LatencyHistogram.Snapshot pairsPerBatch;
+        private final LatencyHistogram.Snapshot acceptLatency;
+        private final LatencyHistogram.Snapshot displayLatency;
+        private final LatencyHistogram.Snapshot undoLatency;
+
+        private Snapshot(final StoreMetrics metrics) {
+            this.acceptCount = metrics.accepts.sum();
+            this.pairCount = metrics.pairs.sum();
+            this.accumulateCount = metrics.accumulates.sum();
+            this.overwriteCount = metrics.overwrites.sum();
+            this.errorCount = metrics.errors.sum();
+            this.atomicGroupCompletions = metrics.atomicGroupCompletions.sum();
+            this.atomicGroupFailures = metrics.atomicGroupFailures.sum();
+            this.displayCount = metrics.displays.sum();
+            this.undoCount = metrics.undos.sum();
+            this.redoCount = metrics.redos.sum();
+            this.undoDepth = metrics.undoDepth;
+            this.undoBytes = metrics.undoBytes;
+            this.pairsPerBatch = metrics.pairsPerBatch.snapshot();
+            this.acceptLatency = metrics.acceptLatency.snapshot();
+            this.displayLatency = metrics.displayLatency.snapshot();
+            this.undoLatency = metrics.undoLatency.snapshot();
+        }
+
+        /**
+         * @return the number of batches accepted
+         */
+        public final long acceptCount() {
+            return acceptCount;
+        }
+
+        /**
+         * @return the number of pairs stored, including those of the
+         * completed atomic groups
+         */
+        public final long pairCount() {
+            return pairCount;
+        }
+
+        /**
+         * @return the number of integers accumulated onto an integer
+         */
+        public final long accumulateCount() {
+            return accumulateCount;
+        }
+
+        /**
+         * @return the number of values which overwrote or inserted a key
+         */
+        public final long overwriteCount() {
+            return overwriteCount;
+        }
+
+        /**
+         * @return the number of errors passed to the ErrorListener
+         */
+        public final long errorCount() {
+            return errorCount;
+        }
+
+        public final long atomicGroupCompletions() {
+            return atomicGroupCompletions;
+        }
+
+        /**
+         * @return the number of atomic groups left incomplete by a batch
+         */
+        public final long atomicGroupFailures() {
+            return atomicGroupFailures;
+        }
+
+        public final long displayCount() {
+            return displayCount;
+        }
+
+        /**
+         * @return the number of calls of undo()
+         */
+        public final long undoCount() {
+            return undoCount;
+        }
+
+        /**
+         * @return the number of calls of redo()
+         */
+        public final long redoCount() {
+            return redoCount;
+        }
+
+        /**
+         * @return the number of times undo() can be called
+         */
+        public final int undoDepth() {
+            return undoDepth;
+        }
+
+        /**
+         * @return the estimated number of bytes held by the Undo History
+         */
+        public final long undoBytes() {
+            return undoBytes;
+        }
+
+        public final LatencyHistogram.Snapshot pairsPerBatch() {
+            return pairsPerBatch;
+        }
+
+        public final LatencyHistogram.Snapshot acceptLatency() {
+            return acceptLatency;
+        }
+
+        public final LatencyHistogram.Snapshot displayLatency() {
+            return displayLatency;
+        }
+
+        public final LatencyHistogram.Snapshot undoLatency() {
+            return undoLatency;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package lung.key_value_store;
+
+/**
+ * The JMX view of StoreMetrics, registered by StoreMetrics.registerMBean().
+ * The latencies are in nanos. Each getter reads the live counters, so the
+ * attributes of one JMX read are not of one point in time; use
+ * StoreMetrics.snapshot() for that.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public interface StoreMetricsMXBean {
+
+    long getAcceptCount();
+
+    long getPairCount();
+
+    long getAccumulateCount();
+
+    long getOverwriteCount();
+
+    long getErrorCount();
+
+    long getAtomicGroupCompletions();
+
+    long getAtomicGroupFailures();
+
+    long getDisplayCount();
+
+    long getUndoCount();
+
+    long getRedoCount();
+
+    int getUndoDepth();
+
+    long getUndoBytes();
+
+    double getPairsPerBatchMean();
+
+    long getPairsPerBatchMax();
+
+    long getAcceptLatencyP50();
+
+    long getAcceptLatencyP99();
+
+    long getAcceptLatencyMax();
+
+    long getDisplayLatencyP50();
+
+    long getDisplayLatencyP99();
+
+    long getDisplayLatencyMax();
+
+    long getUndoLatencyP50();
+
+    long getUndoLatencyP99();
+
+    long getUndoLatencyMax();
+
+    /**
+     * Clear all the counters and histograms, but not the gauges of the Undo
+     * History.
+     */
+    void reset();
+}
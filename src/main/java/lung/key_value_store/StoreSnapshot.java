@@ -0,0 +1,181 @@
+package lung.key_value_store;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An immutable version of the key-value pairs of a PersistentKeysAndValues,
+ * taken in O(1). It's read without any lock, and it never changes however
+ * many accept() calls are done afterwards, so all the reads of one snapshot
+ * are consistent with each other.
+ *
+ * The output formats are the same as KeysAndValues.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class StoreSnapshot {
+
+    static final StoreSnapshot EMPTY = new StoreSnapshot(null, 0);
+
+    private final PersistentTree.Node root;
+    private final int size;
+
+    StoreSnapshot(final PersistentTree.Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    final PersistentTree.Node root() {
+        return root;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of the key, or null if the key does not exist
+     */
+    public final String get(final String key) {
+        Objects.requireNonNull(key, "Key cannot be null.");
+
+        final PersistentTree.Node node = PersistentTree.get(root, key);
+        return node == null ? null : node.toString();
+    }
+
+    /**
+     * @return the values of the keys which exist
+     */
+    public final Map<String, String> multiGet(final Collection<String> keys) {
+        final Map<String, String> result = new HashMap<String, String>((int)(keys.size() * 1.25));
+        for (final String key : keys) {
+            final PersistentTree.Node node = PersistentTree.get(root, key);
+            if (node != null) {
+                result.put(key, node.toString());
+            }
+        }
+        return result;
+    }
+
+    public final String display() {
+        return display(new PersistentTree.Cursor().first(root), null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive), compared
+     * case-insensitively. A null bound means no bound.
+     */
+    public final String display(final String fromKey, final String toKey) {
+        final PersistentTree.Cursor cursor = new PersistentTree.Cursor();
+        if (fromKey == null) {
+            cursor.first(root);
+        } else {
+            cursor.from(root, fromKey);
+        }
+        return display(cursor, toKey, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The keys starting with the prefix, compared case-insensitively.
+     */
+    public final String display(final String prefix) {
+        Objects.requireNonNull(prefix, "Prefix cannot be null.");
+
+        final PersistentTree.Cursor cursor = new PersistentTree.Cursor().from(root, prefix);
+        final StringBuilder sb = new StringBuilder();
+        final int len = prefix.length();
+        PersistentTree.Node node;
+        while ((node = cursor.next()) != null && node.key.regionMatches(true, 0, prefix, 0, len)) {
+            append(sb, node);
+        }
+        return trim(sb);
+    }
+
+    /**
+     * At most "limit" keys after afterKey, or from the first key if afterKey
+     * is null.
+     */
+    public final String displayPage(final String afterKey, final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative.");
+        }
+
+        final PersistentTree.Cursor cursor = new PersistentTree.Cursor();
+        if (afterKey == null) {
+            cursor.first(root);
+        } else {
+            cursor.after(root, afterKey);
+        }
+        return display(cursor, null, limit);
+    }
+
+    /**
+     * Stream the same output as display() to an Appendable in bounded chunks.
+     */
+    public final void display(final Appendable out) throws IOException {
+        final DisplayWriter displayWriter = new DisplayWriter();
+        displayWriter.open(out);
+        writeTo(displayWriter);
+        displayWriter.close();
+    }
+
+    /**
+     * Stream the same output as display() to a channel in bounded chunks,
+     * encoded in UTF-8.
+     */
+    public final void display(final WritableByteChannel channel) throws IOException {
+        final DisplayWriter displayWriter = new DisplayWriter();
+        displayWriter.open(channel);
+        writeTo(displayWriter);
+        displayWriter.close();
+    }
+
+    private void writeTo(final DisplayWriter displayWriter) throws IOException {
+        final PersistentTree.Cursor cursor = new PersistentTree.Cursor().first(root);
+        PersistentTree.Node node;
+        while ((node = cursor.next()) != null) {
+            displayWriter.write(node);
+        }
+    }
+
+    /**
+     * @param toKey the upper bound (exclusive) compared case-insensitively,
+     *              or null
+     */
+    private static String display(final PersistentTree.Cursor cursor, final String toKey, final int limit) {
+        final StringBuilder sb = new StringBuilder();
+        PersistentTree.Node node;
+        for (int i = 0; i < limit && (node = cursor.next()) != null; ++i) {
+            if (toKey != null && String.CASE_INSENSITIVE_ORDER.compare(node.key, toKey) >= 0) {
+                break;
+            }
+            append(sb, node);
+        }
+        return trim(sb);
+    }
+
+    private static void append(final StringBuilder sb, final PersistentTree.Node node) {
+        sb.append(node.key).append("=");
+        node.appendTo(sb);
+        sb.append("\n");
+    }
+
+    /**
+     * Remove the last "\n".
+     */
+    private static String trim(final StringBuilder sb) {
+        if (sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,215 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.UndoHistory;
+import lung.key_value_store.api.UndoSnapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Undoes (or redoes) several snapshots in one go: the snapshots are popped
+ * from one history and merged, so that each key is written to the data store
+ * only once, with the value before the oldest of them. The inverse of each
+ * snapshot, i.e. how to apply it again, is pushed onto the other history, so
+ * the same class serves undo(n) with the Redo History, and redo(n) with the
+ * Undo History.
+ *
+ * The snapshots are merged from the latest to the oldest by keeping the value
+ * of each key as it would be after undoing the snapshots so far. The inverse
+ * of a snapshot is built from those values, which are exactly the values
+ * right after the accept() of that snapshot.
+ *
+ * It's not thread-safe.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class UndoCoalescer {
+
+    /**
+     * Finds the data store of a key.
+     */
+    interface Stores {
+        DataStore storeOf(String key);
+    }
+
+    /**
+     * The reusable buffers of a snapshot popped, its inverse, and the merged
+     * operations which are finally applied.
+     */
+    private final UndoSnapshot snapshot = new UndoSnapshot();
+    private final UndoSnapshot inverse = new UndoSnapshot();
+    private final UndoSnapshot merged = new UndoSnapshot();
+
+    /**
+     * The value of each key touched so far, as it would be after undoing the
+     * snapshots so far: whether it exists, and its text, or its long if the
+     * text is null.
+     */
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+    private String[] keys = new String[16];
+    private boolean[] exists = new boolean[16];
+    private String[] texts = new String[16];
+    private long[] longs = new long[16];
+    private int size;
+
+    /**
+     * Pop up to n snapshots from one history, apply them to the data store,
+     * and push their inverses onto the other history.
+     *
+     * @param from the history to pop the snapshots from
+     * @param to the history to push the inverses onto
+     * @param n the max number of snapshots
+     * @param stores finds the data store of a key
+     * @return the number of snapshots applied
+     */
+    final int apply(final UndoHistory from, final UndoHistory to, final int n, final Stores stores) {
+        if (n == 1) {
+            return applyOne(from, to, stores);
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final UndoSnapshot snapshot = this.snapshot;
+        final UndoSnapshot inverse = this.inverse;
+
+        int applied = 0;
+        try {
+            while (applied < n && from.loadSnapshot(snapshot)) {
+                final int len = snapshot.size();
+                for (int i = 0; i < len; ++i) {
+                    merge(snapshot, i, inverse, stores);
+                }
+                to.saveSnapshot(inverse);
+                inverse.clear();
+                ++applied;
+            }
+
+            /**
+             * Write each key touched once, with its merged value.
+             */
+            final UndoSnapshot merged = this.merged;
+            for (int k = 0; k < size; ++k) {
+                if (!exists[k]) {
+                    merged.addDelete(keys[k]);
+                } else if (texts[k] != null) {
+                    merged.addRestore(keys[k], texts[k]);
+                } else {
+                    merged.addRestore(keys[k], longs[k]);
+                }
+            }
+            final int len = merged.size();
+            for (int i = 0; i < len; ++i) {
+                stores.storeOf(merged.key(i)).undo(merged, i);
+            }
+        } finally {
+            snapshot.clear();
+            inverse.clear();
+            merged.clear();
+            clear();
+        }
+        return applied;
+    }
+
+    /**
+     * A single snapshot has each key once, so it's applied directly to the
+     * data store without merging.
+     */
+    private int applyOne(final UndoHistory from, final UndoHistory to, final Stores stores) {
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final UndoSnapshot snapshot = this.snapshot;
+        final UndoSnapshot inverse = this.inverse;
+
+        try {
+            if (!from.loadSnapshot(snapshot)) {
+                return 0;
+            }
+            final int len = snapshot.size();
+            for (int i = 0; i < len; ++i) {
+                stores.storeOf(snapshot.key(i)).undo(snapshot, i, inverse);
+            }
+            to.saveSnapshot(inverse);
+            return 1;
+        } finally {
+            snapshot.clear();
+            inverse.clear();
+        }
+    }
+
+    /**
+     * Save the inverse of one operation from the merged value of its key, and
+     * then apply the operation to the merged value.
+     */
+    private void merge(final UndoSnapshot snapshot, final int i, final UndoSnapshot inverse, final Stores stores) {
+        final String key = snapshot.key(i);
+        final int k = indexOf(key, stores);
+        final byte type = snapshot.type(i);
+
+        if (type == UndoSnapshot.DELTA) {
+            inverse.addDelta(key, -snapshot.longValue(i));
+            longs[k] -= snapshot.longValue(i);
+            return;
+        }
+
+        if (!exists[k]) {
+            if (type == UndoSnapshot.DELETE) {
+                return;
+            }
+            inverse.addDelete(key);
+        } else if (texts[k] != null) {
+            inverse.addRestore(key, texts[k]);
+        } else {
+            inverse.addRestore(key, longs[k]);
+        }
+
+        if (type == UndoSnapshot.DELETE) {
+            exists[k] = false;
+            texts[k] = null;
+        } else {
+            exists[k] = true;
+            texts[k] = snapshot.text(i);
+            longs[k] = snapshot.longValue(i);
+        }
+    }
+
+    /**
+     * @return the index of the merged value of a key, which is read from the
+     * data store when the key is touched for the first time
+     */
+    private int indexOf(final String key, final Stores stores) {
+        final Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        final int k = size;
+        if (k == keys.length) {
+            keys = Arrays.copyOf(keys, k << 1);
+            exists = Arrays.copyOf(exists, k << 1);
+            texts = Arrays.copyOf(texts, k << 1);
+            longs = Arrays.copyOf(longs, k << 1);
+        }
+
+        final Value value = stores.storeOf(key).value(key);
+        keys[k] = key;
+        exists[k] = value != null;
+        texts[k] = value == null || value.isLong() ? null : value.toString();
+        longs[k] = value != null && value.isLong() ? value.longValue() : 0L;
+
+        indexes.put(key, k);
+        size = k + 1;
+        return k;
+    }
+
+    private void clear() {
+        indexes.clear();
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(texts, 0, size, null);
+        size = 0;
+    }
+}
@@ -1,10 +1,10 @@
 package lung.key_value_store;
 
 import lung.key_value_store.api.UndoHistory;
+import lung.key_value_store.api.UndoSnapshot;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.Map;
 
 /**
  * Added in Technical Test Round 2
@@ -21,7 +21,7 @@ public class UndoHistoryImpl implements UndoHistory {
      * The Ring Buffer storing the snapshot of change of the data store after
      * each accept(). It is used for implementing undo().
      */
-    private final Deque<String[]> snapshots;
+    private final Deque<Record> snapshots;
 
     /**
      * Added in Technical Test Round 2
@@ -31,12 +31,52 @@ public class UndoHistoryImpl implements UndoHistory {
      */
     private final int UNDO_HISTORY_SIZE;
 
+    /**
+     * The max estimated number of bytes of all the snapshots.
+     */
+    private final long undoHistoryBudget;
+
+    /**
+     * The estimated number of bytes of all the snapshots in the history.
+     */
+    private long footprint;
+
+    /**
+     * The estimated number of bytes of a String, apart from its chars: the
+     * object header, the fields and the header of its array.
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * The estimated number of bytes of an array header and of a reference.
+     */
+    private static final int ARRAY_OVERHEAD = 16;
+    private static final int REFERENCE_SIZE = 8;
+
     /**
      * Added in Technical Test Round 2
      *
-     * Constructor
+     * Constructor without any byte budget.
      */
     public UndoHistoryImpl(int undoHistorySize) {
+        this(undoHistorySize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructor
+     *
+     * The oldest snapshots are evicted first when either limit is reached.
+     *
+     * @param undoHistorySize the max number of snapshots
+     * @param undoHistoryBudget the max estimated number of bytes of all the
+     *                          snapshots
+     */
+    public UndoHistoryImpl(int undoHistorySize, long undoHistoryBudget) {
+        if (undoHistorySize < 0 || undoHistoryBudget < 0) {
+            throw new IllegalArgumentException("The limits of the Undo History cannot be negative.");
+        }
+        this.undoHistoryBudget = undoHistoryBudget;
+
         /**
          * Added in Technical Test Round 2
          *
@@ -55,43 +95,47 @@ public class UndoHistoryImpl implements UndoHistory {
          * before each adding. The first element will be removed if the max size
          * is reached.
          */
-        this.snapshots = new ArrayDeque<>(this.UNDO_HISTORY_SIZE);
+        this.snapshots = new ArrayDeque<>(Math.min(this.UNDO_HISTORY_SIZE, 1 << 10));
     }
 
     /**
      * Added in Technical Test Round 2
      *
-     * The snapshot is first built with a temporary and reusable HashMap,
-     * but it will be converted to a String[] before being stored in the
-     * Undo History.
+     * The snapshot is first built with a reusable UndoSnapshot, and then it's
+     * copied into a compact Record before being stored in the Undo History.
      *
      * The snapshot can actually be saved as a HashMap for simplicity in the
      * Undo History but it's too bulky in memory. It can also be a LinkedList of
      * tuples (pairs) but it's still bulky in memory as well. I have chosen to
-     * use String[] instead. It's a 1D array. The data is stored like:
+     * use parallel arrays instead: the types of the inverse operations, the
+     * keys, and only if they are needed, the previous texts and the longs
+     * (previous values or deltas). So, a batch of counters only keeps its keys
+     * and its deltas, without any String copy of the values.
      *
-     * [key][value][key][value]...[key][value] in a 1D String[] array.
-     * So, "Three=null,one=1" will be stored as ["Three"][null]["one"]["1"].
-     *
-     * @param dataStoreForEachAccept the temporary Map that stores the snapshot
+     * @param snapshot the reusable UndoSnapshot that stores the snapshot
      */
     @Override
-    public void saveSnapshot(Map<String, String> dataStoreForEachAccept) {
-        final String[] snapshot = new String[dataStoreForEachAccept.size() * 2];
-        int i = 0;
-        for (final Map.Entry<String, String> entry : dataStoreForEachAccept.entrySet()) {
-            snapshot[i] = entry.getKey();
-            snapshot[i + 1] = entry.getValue();
-            i += 2;
+    public void saveSnapshot(final UndoSnapshot snapshot) {
+        final Record record = new Record(snapshot);
+
+        /**
+         * A snapshot larger than the whole budget cannot be kept. The older
+         * ones are dropped as well, since undoing them without undoing this
+         * one first would be wrong.
+         */
+        if (record.bytes > undoHistoryBudget || UNDO_HISTORY_SIZE == 0) {
+            clear();
+            return;
         }
 
         /**
          * Added in Technical Test Round 2
          *
-         * To make the Deque work as an Ring Buffer
+         * To make the Deque work as an Ring Buffer. The oldest snapshots are
+         * also evicted until the new one fits in the budget.
          */
-        if (snapshots.size() >= UNDO_HISTORY_SIZE) {
-            snapshots.removeFirst();
+        while (snapshots.size() >= UNDO_HISTORY_SIZE || footprint + record.bytes > undoHistoryBudget) {
+            footprint -= snapshots.removeFirst().bytes;
         }
 
         /**
@@ -99,25 +143,33 @@ public class UndoHistoryImpl implements UndoHistory {
          *
          * Append new snapshot to the end of the history
          */
-        snapshots.addLast(snapshot);
+        snapshots.addLast(record);
+        footprint += record.bytes;
     }
 
     /**
      * Added in Technical Test Round 2
      *
      * Get and remove the latest snapshot from the Ring Buffer, and then
-     * return it.
+     * copy it into the given UndoSnapshot.
      *
-     * If there is no snapshot available, it will return null.
+     * If there is no snapshot available, it will return false.
      *
-     * @return String[] of the snapshot
+     * @param snapshot the reusable UndoSnapshot to load into; it's cleared
+     *                 first
+     * @return true/false of whether a snapshot is loaded
      */
     @Override
-    public String[] loadSnapshot() {
+    public boolean loadSnapshot(final UndoSnapshot snapshot) {
+        snapshot.clear();
+
         if (hasSnapshot()) {
-            return snapshots.removeLast();
+            final Record record = snapshots.removeLast();
+            footprint -= record.bytes;
+            record.copyTo(snapshot);
+            return true;
         } else {
-            return null;
+            return false;
         }
     }
 
@@ -132,4 +184,135 @@ public class UndoHistoryImpl implements UndoHistory {
     public boolean hasSnapshot() {
         return snapshots.size() > 0;
     }
+
+    /**
+     * Remove all the snapshots, e.g. when a checkpoint is taken.
+     */
+    @Override
+    public void clear() {
+        snapshots.clear();
+        footprint = 0L;
+    }
+
+    /**
+     * @return the number of snapshots in the history
+     */
+    @Override
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * The footprint is estimated from the lengths of the Strings, as if none
+     * of them was shared with the data store, so it's an upper bound.
+     *
+     * @return the estimated number of bytes of all the snapshots
+     */
+    @Override
+    public long footprint() {
+        return footprint;
+    }
+
+    @Override
+    public int maxSize() {
+        return UNDO_HISTORY_SIZE;
+    }
+
+    @Override
+    public long maxFootprint() {
+        return undoHistoryBudget;
+    }
+
+    /**
+     * Create the Redo History of a store, with the same limits as its Undo
+     * History, so redo(n) can reverse any undo(n) the Undo History allows.
+     */
+    static UndoHistoryImpl redoHistoryOf(final UndoHistory undoHistory) {
+        return new UndoHistoryImpl(undoHistory.maxSize(), undoHistory.maxFootprint());
+    }
+
+    /**
+     * A compact copy of an UndoSnapshot.
+     */
+    private static final class Record {
+        private final byte[] types;
+        private final String[] keys;
+
+        /**
+         * Null if there is no previous text, e.g. a batch of counters.
+         */
+        private final String[] texts;
+
+        /**
+         * Null if there is no long, e.g. a batch of new keys.
+         */
+        private final long[] longs;
+
+        /**
+         * The estimated number of bytes of the Record.
+         */
+        private final long bytes;
+
+        private Record(final UndoSnapshot snapshot) {
+            final int size = snapshot.size();
+            this.types = new byte[size];
+            this.keys = new String[size];
+
+            boolean hasText = false;
+            boolean hasLong = false;
+            for (int i = 0; i < size; ++i) {
+                final byte type = snapshot.type(i);
+                types[i] = type;
+                keys[i] = snapshot.key(i);
+                if (type == UndoSnapshot.RESTORE && snapshot.text(i) != null) {
+                    hasText = true;
+                } else if (type != UndoSnapshot.DELETE) {
+                    hasLong = true;
+                }
+            }
+
+            this.texts = hasText ? new String[size] : null;
+            this.longs = hasLong ? new long[size] : null;
+
+            long bytes = 3 * ARRAY_OVERHEAD + size + (long) REFERENCE_SIZE * size;
+            for (int i = 0; i < size; ++i) {
+                bytes += STRING_OVERHEAD + 2L * keys[i].length();
+                if (hasText && snapshot.text(i) != null) {
+                    texts[i] = snapshot.text(i);
+                    bytes += STRING_OVERHEAD + 2L * texts[i].length();
+                }
+                if (hasLong) {
+                    longs[i] = snapshot.longValue(i);
+                }
+            }
+            if (hasText) {
+                bytes += ARRAY_OVERHEAD + (long) REFERENCE_SIZE * size;
+            }
+            if (hasLong) {
+                bytes += ARRAY_OVERHEAD + 8L * size;
+            }
+            this.bytes = bytes;
+        }
+
+        private void copyTo(final UndoSnapshot snapshot) {
+            for (int i = 0; i < types.length; ++i) {
+                final String key = keys[i];
+                switch (types[i]) {
+                    case UndoSnapshot.DELETE:
+                        snapshot.addDelete(key);
+                        break;
+                    case UndoSnapshot.RESTORE:
+                        if (texts != null && texts[i] != null) {
+                            snapshot.addRestore(key, texts[i]);
+                        } else {
+                            snapshot.addRestore(key, longs[i]);
+                        }
+                        break;
+                    default:
+                        snapshot.addDelta(key, longs[i]);
+                        break;
+                }
+            }
+        }
+    }
 }
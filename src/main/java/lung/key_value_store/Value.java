@@ -0,0 +1,206 @@
+package lung.key_value_store;
+
+/**
+ * The mutable value of a key in the DataStore. It also keeps its key, so
+ * that the sorted index of the DataStore is just an array of Value's.
+ *
+ * An integer value is kept as a primitive long, so accumulating it is done
+ * in place without parsing or formatting any String. It's only formatted in
+ * display() or when its text is really needed.
+ *
+ * Any other value is kept as its text. An integer whose text is not the
+ * same as its formatted long (e.g. "007", "-0" or an integer larger than a
+ * long) is also kept as text, so that it's displayed exactly as it was
+ * accepted, the same as before.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+final class Value {
+
+    private final String key;
+
+    /**
+     * Set when the key is removed from the DataStore (by undo()). The Value
+     * is then dropped from the sorted index when it's compacted.
+     */
+    private boolean removed;
+
+    /**
+     * The text of the value, or null if the value is the integer below.
+     */
+    private String text;
+
+    private long integer;
+
+    /**
+     * The id of the last accept() which has saved this key into its undo
+     * snapshot, so that a key is only saved once per accept() without
+     * looking it up in another Map.
+     */
+    private long undoStamp;
+
+    /**
+     * The id of the savepoint for which this key has been saved into the
+     * savepoint journal of its data store.
+     */
+    private long savepointStamp;
+
+    Value(final String key) {
+        this.key = key;
+    }
+
+    final String key() {
+        return key;
+    }
+
+    final boolean isRemoved() {
+        return removed;
+    }
+
+    final void markRemoved() {
+        removed = true;
+    }
+
+    /**
+     * Mark this key as saved into the undo snapshot of an accept().
+     *
+     * @param acceptId the id of the accept(), never 0
+     * @return false if it has been marked by the same accept() already
+     */
+    final boolean markUndoSaved(final long acceptId) {
+        if (undoStamp == acceptId) {
+            return false;
+        }
+        undoStamp = acceptId;
+        return true;
+    }
+
+    /**
+     * Mark this key as saved into the savepoint journal.
+     *
+     * @param savepointId the id of the latest savepoint, never 0
+     * @return false if it has been marked for the same savepoint already
+     */
+    final boolean markSavepointSaved(final long savepointId) {
+        if (savepointStamp == savepointId) {
+            return false;
+        }
+        savepointStamp = savepointId;
+        return true;
+    }
+
+    /**
+     * @return true/false of whether the value is kept as a primitive long
+     */
+    final boolean isLong() {
+        return text == null;
+    }
+
+    /**
+     * @return the long value; only valid when isLong() is true
+     */
+    final long longValue() {
+        return integer;
+    }
+
+    /**
+     * @return true/false of whether the value represents an integer, either
+     * as a long or as text
+     */
+    final boolean isInteger() {
+        return text == null || KeyValuePairTokenizer.isInteger(text, 0, text.length());
+    }
+
+    /**
+     * Set the value from a region of a CharSequence.
+     *
+     * @param input the CharSequence containing the value
+     * @param start start position of the value (inclusive)
+     * @param end end position of the value (exclusive)
+     */
+    final void set(final CharSequence input, final int start, final int end) {
+        if (isCanonicalLong(input, start, end)) {
+            this.integer = KeyValuePairTokenizer.parseLong(input, start, end);
+            this.text = null;
+        } else {
+            this.text = input.subSequence(start, end).toString();
+        }
+    }
+
+    final void set(final long integer) {
+        this.integer = integer;
+        this.text = null;
+    }
+
+    /**
+     * Add an integer to this value. The value must be an integer.
+     *
+     * @param input the CharSequence containing the integer to add
+     * @param start start position of the integer (inclusive)
+     * @param end end position of the integer (exclusive)
+     * @throws NumberFormatException if any integer is larger than a long
+     * @throws ArithmeticException if the sum overflows a long
+     */
+    final void accumulate(final CharSequence input, final int start, final int end) {
+        final long current = text == null ? integer : KeyValuePairTokenizer.parseLong(text, 0, text.length());
+        set(Math.addExact(current, KeyValuePairTokenizer.parseLong(input, start, end)));
+    }
+
+    /**
+     * Append the value to a StringBuilder without creating a String.
+     */
+    final void appendTo(final StringBuilder sb) {
+        if (text == null) {
+            sb.append(integer);
+        } else {
+            sb.append(text);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text == null ? Long.toString(integer) : text;
+    }
+
+    /**
+     * Check if a region is an integer which is formatted back to exactly the
+     * same text by Long.toString(), i.e. no "+", no leading zero, no "-0",
+     * and within the range of a long.
+     */
+    static boolean isCanonicalLong(final CharSequence input, final int start, final int end) {
+        if (!KeyValuePairTokenizer.isInteger(input, start, end)) {
+            return false;
+        }
+
+        final boolean negative = input.charAt(start) == '-';
+        final int digitStart = negative ? start + 1 : start;
+        final int numberOfDigits = end - digitStart;
+
+        if (input.charAt(digitStart) == '0') {
+            return numberOfDigits == 1 && !negative;
+        }
+
+        if (numberOfDigits < 19) {
+            return true;
+        }
+
+        if (numberOfDigits > 19) {
+            return false;
+        }
+
+        /**
+         * 19 digits may still be out of the range of a long.
+         */
+        final String limit = negative ? "9223372036854775808" : "9223372036854775807";
+        for (int i = 0; i < 19; ++i) {
+            final char c = input.charAt(digitStart + i);
+            final char l = limit.charAt(i);
+            if (c != l) {
+                return c < l;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,729 @@
+package lung.key_value_store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log of the accept(), undo(), redo() and
+ * savepoint calls, so that the data store and the Undo History can be
+ * rebuilt after a restart by replaying the calls in order.
+ *
+ * The log is a directory of segment files "wal-<sequence>.log". A new
+ * segment is started when the current one reaches the segment size. Each
+ * record is:
+ *
+ *   [length of payload: int][type: byte][payload][CRC32 of type+payload: int]
+ *
+ * where the payload of an accept() record is its input in UTF-8, the payload
+ * of an undo() or a redo() record is its number of steps as an int, and the
+ * payload of a savepoint record is the name of the savepoint in UTF-8.
+ * A bulk load of acceptAll() is a record starting it, whose payload is one
+ * byte telling whether it's undoable, followed by one record of each batch.
+ * An undo() record without payload, as written before redo() was added, is
+ * one step. A checkpoint starts a new segment with a record without
+ * payload, which clears the Undo History, the Redo History and the
+ * savepoints when it's replayed, so a checkpoint whose snapshot is never
+ * written is still replayed as it was taken. A record torn by a crash at
+ * the end of the last segment is truncated when the log is replayed. A
+ * record which fails to be written or forced is truncated right away, as its
+ * call is not applied.
+ *
+ * How the records are made durable is decided by the FsyncPolicy:
+ *
+ * - ALWAYS: every record is forced to the disk before the call is applied.
+ * - GROUP_COMMIT: a background thread forces the log every N ms. A call is
+ *   applied once its record is written, and then it waits for the next
+ *   force before returning, so all the calls written in the same interval,
+ *   e.g. by many threads of ConcurrentKeysAndValues, share one fsync.
+ * - NEVER: the log is never forced; the OS writes it back when it likes.
+ *
+ * It's thread-safe. A log must only be used by one KeysAndValues instance.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class WriteAheadLog implements Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS,
+        GROUP_COMMIT,
+        NEVER
+    }
+
+    /**
+     * Receives the records in order when the log is replayed.
+     */
+    interface RecordHandler {
+        void onAccept(String kvPairs);
+
+        void onUndo(int n);
+
+        void onRedo(int n);
+
+        void onSavepoint(String name);
+
+        void onRollbackTo(String name);
+
+        void onReleaseSavepoint(String name);
+
+        /**
+         * The start of a bulk load of acceptAll(). It lasts until a record
+         * other than onBulkAccept(), or the end of the log.
+         *
+         * @param isUndoable true if the bulk load is one undo step, false if
+         *                   it's not recorded for undo at all
+         */
+        void onBeginBulk(boolean isUndoable);
+
+        void onBulkAccept(String kvPairs);
+
+        /**
+         * A checkpoint: the Undo History, the Redo History and the savepoints
+         * are cleared.
+         */
+        void onCheckpoint();
+    }
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    public static final long DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS = 5L;
+
+    static final byte ACCEPT = 1;
+    static final byte UNDO = 2;
+    static final byte REDO = 3;
+    static final byte SAVEPOINT = 4;
+    static final byte ROLLBACK_TO = 5;
+    static final byte RELEASE_SAVEPOINT = 6;
+    static final byte BEGIN_BULK = 7;
+    static final byte BULK_ACCEPT = 8;
+    static final byte CHECKPOINT = 9;
+
+    /**
+     * Length + type + CRC32
+     */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+
+    /**
+     * The initial capacity of the buffer for encoding a record, and the
+     * largest capacity kept after a record: the buffer grown for a larger
+     * batch is released once the batch is written.
+     */
+    static final int INITIAL_RECORD_BUFFER_SIZE = 1 << 12;
+    static final int MAX_KEPT_RECORD_BUFFER_SIZE = 1 << 20;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long groupCommitIntervalMillis;
+    private final long segmentSize;
+
+    /**
+     * All the fields below are guarded by "this".
+     */
+    private FileChannel channel;
+    private long segmentSequence;
+
+    /**
+     * The number of bytes written since the log is opened, and the number of
+     * them which are known to be forced to the disk. Used as positions for
+     * waiting for the group commit.
+     */
+    private long writtenPosition;
+    private long durablePosition;
+
+    /**
+     * Set if the group commit thread fails to force the log.
+     */
+    private IOException groupCommitFailure;
+
+    /**
+     * Set if a record failed to be appended and could not be removed, so no
+     * record is appended behind it.
+     */
+    private IOException appendFailure;
+
+    private boolean isClosed;
+
+    /**
+     * Reusable buffers for encoding a record.
+     */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(INITIAL_RECORD_BUFFER_SIZE);
+    private final CRC32 crc32 = new CRC32();
+
+    private final Thread groupCommitThread;
+
+    private WriteAheadLog(final Path directory, final FsyncPolicy fsyncPolicy, final long groupCommitIntervalMillis, final long segmentSize) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.groupCommitIntervalMillis = groupCommitIntervalMillis;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+
+        if (fsyncPolicy == FsyncPolicy.GROUP_COMMIT) {
+            groupCommitThread = new Thread(this::runGroupCommit, "kv-wal-group-commit");
+            groupCommitThread.setDaemon(true);
+        } else {
+            groupCommitThread = null;
+        }
+    }
+
+    /**
+     * Open (or create) a log with the default segment size and group commit
+     * interval.
+     *
+     * @param directory the directory of the segment files
+     * @param fsyncPolicy how the records are made durable
+     */
+    public static WriteAheadLog open(final Path directory, final FsyncPolicy fsyncPolicy) throws IOException {
+        return open(directory, fsyncPolicy, DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open (or create) a log.
+     *
+     * The existing records are not read until the log is replayed by the
+     * KeysAndValues it's given to.
+     *
+     * @param directory the directory of the segment files
+     * @param fsyncPolicy how the records are made durable
+     * @param groupCommitIntervalMillis interval of forcing the log for
+     *                                  GROUP_COMMIT
+     * @param segmentSize a new segment is started when the current one
+     *                    reaches this size in bytes
+     */
+    public static WriteAheadLog open(final Path directory, final FsyncPolicy fsyncPolicy,
+                                     final long groupCommitIntervalMillis, final long segmentSize) throws IOException {
+        if (groupCommitIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Group commit interval must be positive.");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive.");
+        }
+        return new WriteAheadLog(directory, fsyncPolicy, groupCommitIntervalMillis, segmentSize);
+    }
+
+    /**
+     * Read all the records in order, and then get ready to append new
+     * records after them. It must be called once before anything is appended.
+     *
+     * A record torn by a crash at the end of the last segment is truncated.
+     * Any other broken record is reported by an IOException.
+     *
+     * @param fromSequence the first segment to replay; the segments before it
+     *                     are covered by a snapshot and are deleted
+     */
+    final synchronized void replay(final long fromSequence, final RecordHandler handler) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("The write-ahead log has been replayed.");
+        }
+
+        deleteSegmentsBefore(fromSequence);
+
+        final List<Long> sequences = segmentSequences();
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+
+        for (int i = 0; i < sequences.size(); ++i) {
+            final boolean isLastSegment = i == sequences.size() - 1;
+            final Path segment = segmentPath(sequences.get(i));
+
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final long validLength = replaySegment(in, handler, decoder);
+
+                if (validLength < in.size()) {
+                    if (!isLastSegment) {
+                        throw new IOException("Broken record in the write-ahead log segment " + segment + " at " + validLength + ".");
+                    }
+                    /**
+                     * A torn record at the end of the log.
+                     */
+                    in.truncate(validLength);
+                    in.force(true);
+                }
+            }
+        }
+
+        segmentSequence = Math.max(Math.max(1L, fromSequence), sequences.isEmpty() ? 0L : sequences.get(sequences.size() - 1));
+        channel = openSegment(segmentSequence);
+
+        if (groupCommitThread != null) {
+            groupCommitThread.start();
+        }
+    }
+
+    /**
+     * @return the length of the valid records from the start of the segment
+     */
+    private long replaySegment(final FileChannel in, final RecordHandler handler, final CharsetDecoder decoder) throws IOException {
+        final long size = in.size();
+        final ByteBuffer header = ByteBuffer.allocate(5);
+        final ByteBuffer checksum = ByteBuffer.allocate(4);
+        final CRC32 crc32 = new CRC32();
+        ByteBuffer payload = ByteBuffer.allocate(1 << 12);
+
+        long position = 0L;
+        while (position + RECORD_OVERHEAD <= size) {
+            header.clear();
+            readFully(in, header, position);
+            header.flip();
+            final int length = header.getInt();
+            final byte type = header.get();
+
+            if (length < 0 || position + RECORD_OVERHEAD + length > size || type < ACCEPT || type > CHECKPOINT) {
+                break;
+            }
+
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear();
+            payload.limit(length);
+            readFully(in, payload, position + 5);
+            payload.flip();
+
+            checksum.clear();
+            readFully(in, checksum, position + 5 + length);
+            checksum.flip();
+
+            crc32.reset();
+            crc32.update(type);
+            crc32.update(payload.array(), 0, length);
+            if ((int) crc32.getValue() != checksum.getInt()) {
+                break;
+            }
+
+            switch (type) {
+                case ACCEPT:
+                    handler.onAccept(decoder.decode(payload).toString());
+                    break;
+                case UNDO:
+                    handler.onUndo(length >= 4 ? payload.getInt(0) : 1);
+                    break;
+                case REDO:
+                    handler.onRedo(length >= 4 ? payload.getInt(0) : 1);
+                    break;
+                case SAVEPOINT:
+                    handler.onSavepoint(decoder.decode(payload).toString());
+                    break;
+                case ROLLBACK_TO:
+                    handler.onRollbackTo(decoder.decode(payload).toString());
+                    break;
+                case BEGIN_BULK:
+                    handler.onBeginBulk(length >= 1 && payload.get(0) != 0);
+                    break;
+                case BULK_ACCEPT:
+                    handler.onBulkAccept(decoder.decode(payload).toString());
+                    break;
+                case CHECKPOINT:
+                    handler.onCheckpoint();
+                    break;
+                default:
+                    handler.onReleaseSavepoint(decoder.decode(payload).toString());
+                    break;
+            }
+
+            position += RECORD_OVERHEAD + length;
+        }
+        return position;
+    }
+
+    /**
+     * Append an accept() record.
+     *
+     * @return the position to wait for by awaitDurable()
+     */
+    final synchronized long appendAccept(final String kvPairs) throws IOException {
+        return appendText(ACCEPT, kvPairs);
+    }
+
+    /**
+     * Append the record starting a bulk load of acceptAll(). The batches of
+     * the bulk load are appended by appendBulkAccept().
+     *
+     * @param isUndoable true if the bulk load is one undo step, false if
+     *                   it's not recorded for undo at all
+     * @return the position to wait for by awaitDurable()
+     */
+    final synchronized long appendBeginBulk(final boolean isUndoable) throws IOException {
+        recordBuffer.clear();
+        recordBuffer.position(5);
+        recordBuffer.put(isUndoable ? (byte) 1 : (byte) 0);
+        return append(BEGIN_BULK, 1);
+    }
+
+    /**
+     * Append a batch of a bulk load.
+     *
+     * @return the position to wait for by awaitDurable()
+     */
+    final synchronized long appendBulkAccept(final String kvPairs) throws IOException {
+        return appendText(BULK_ACCEPT, kvPairs);
+    }
+
+    /**
+     * Append a savepoint record.
+     *
+     * @param type SAVEPOINT, ROLLBACK_TO or RELEASE_SAVEPOINT
+     * @param name the name of the savepoint
+     * @return the position to wait for by awaitDurable()
+     */
+    final synchronized long appendSavepoint(final byte type, final String name) throws IOException {
+        return appendText(type, name);
+    }
+
+    /**
+     * Append a record whose payload is a text in UTF-8.
+     */
+    private long appendText(final byte type, final String text) throws IOException {
+        /**
+         * Make sure the buffer is large enough for the worst case of UTF-8.
+         */
+        final int maxLength = RECORD_OVERHEAD + (int) Math.min(Integer.MAX_VALUE - RECORD_OVERHEAD, (long) text.length() * 3);
+        if (recordBuffer.capacity() < maxLength) {
+            /**
+             * Grow by doubling up to the largest capacity kept, so a series
+             * of growing batches does not reallocate for each of them; a
+             * larger one gets a buffer of its own size.
+             */
+            recordBuffer = ByteBuffer.allocate(maxLength > MAX_KEPT_RECORD_BUFFER_SIZE
+                    ? maxLength
+                    : Math.max(maxLength, Math.min(recordBuffer.capacity() << 1, MAX_KEPT_RECORD_BUFFER_SIZE)));
+        }
+
+        final ByteBuffer recordBuffer = this.recordBuffer;
+        try {
+            recordBuffer.clear();
+            recordBuffer.position(5);
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(text), recordBuffer, true);
+            encoder.flush(recordBuffer);
+
+            return append(type, recordBuffer.position() - 5);
+        } finally {
+            if (recordBuffer.capacity() > MAX_KEPT_RECORD_BUFFER_SIZE) {
+                this.recordBuffer = ByteBuffer.allocate(INITIAL_RECORD_BUFFER_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Append an undo() record.
+     *
+     * @param n the number of steps
+     * @return the position to wait for by awaitDurable()
+     */
+    final synchronized long appendUndo(final int n) throws IOException {
+        recordBuffer.clear();
+        recordBuffer.position(5);
+        recordBuffer.putInt(n);
+        return append(UNDO, 4);
+    }
+
+    /**
+     * Append a redo() record.
+     *
+     * @param n the number of steps
+     * @return the position to wait for by awaitDurable()
+     */
+    final synchronized long appendRedo(final int n) throws IOException {
+        recordBuffer.clear();
+        recordBuffer.position(5);
+        recordBuffer.putInt(n);
+        return append(REDO, 4);
+    }
+
+    /**
+     * Write the record in recordBuffer, whose payload is already at
+     * position 5.
+     */
+    private long append(final byte type, final int length) throws IOException {
+        ensureOpen();
+
+        final ByteBuffer recordBuffer = this.recordBuffer;
+        recordBuffer.putInt(0, length);
+        recordBuffer.put(4, type);
+
+        final CRC32 crc32 = this.crc32;
+        crc32.reset();
+        crc32.update(recordBuffer.array(), 4, length + 1);
+        recordBuffer.putInt((int) crc32.getValue());
+        recordBuffer.flip();
+
+        if (channel.size() >= segmentSize) {
+            rollSegment();
+        }
+
+        /**
+         * Make a shortcut to avoid frequent address redirection.
+         */
+        final FileChannel channel = this.channel;
+
+        final long start = channel.size();
+        try {
+            while (recordBuffer.hasRemaining()) {
+                channel.write(recordBuffer);
+            }
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            removeFailedRecord(channel, start, e);
+            throw e;
+        }
+        writtenPosition += RECORD_OVERHEAD + length;
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            durablePosition = writtenPosition;
+        }
+
+        return writtenPosition;
+    }
+
+    /**
+     * Remove what is written of a record whose call is not applied, as a
+     * record written but not forced would still be replayed, and the records
+     * after a torn one would be lost. If it cannot be removed, the log is
+     * failed and no more records are appended.
+     */
+    private void removeFailedRecord(final FileChannel channel, final long start, final IOException failure) {
+        try {
+            channel.truncate(start);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            appendFailure = failure;
+        }
+    }
+
+    /**
+     * Wait until the record ending at the position is durable according to
+     * the FsyncPolicy.
+     */
+    final void awaitDurable(final long position) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.GROUP_COMMIT) {
+            return;
+        }
+
+        synchronized (this) {
+            boolean isInterrupted = false;
+            while (durablePosition < position) {
+                if (groupCommitFailure != null) {
+                    throw new IOException("Failed to force the write-ahead log.", groupCommitFailure);
+                }
+                ensureOpen();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start a new segment. All the records before are forced to the disk
+     * first.
+     *
+     * @return the sequence number of the new segment
+     */
+    final synchronized long rollSegment() throws IOException {
+        ensureOpen();
+
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            channel.force(false);
+            durablePosition = writtenPosition;
+            notifyAll();
+        }
+        channel.close();
+
+        channel = openSegment(++segmentSequence);
+        return segmentSequence;
+    }
+
+    /**
+     * Start a new segment for a checkpoint, with a checkpoint record as its
+     * first record, so the histories cleared by the checkpoint are cleared
+     * by the replay as well, even if its snapshot is never written.
+     *
+     * @return the sequence number of the new segment
+     */
+    final synchronized long rollSegmentForCheckpoint() throws IOException {
+        final long sequence = rollSegment();
+
+        recordBuffer.clear();
+        recordBuffer.position(5);
+        append(CHECKPOINT, 0);
+        return sequence;
+    }
+
+    /**
+     * Delete the segments before a sequence number, e.g. after they are
+     * covered by a snapshot.
+     */
+    final synchronized void deleteSegmentsBefore(final long sequence) throws IOException {
+        for (final long s : segmentSequences()) {
+            if (s < sequence) {
+                Files.deleteIfExists(segmentPath(s));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            notifyAll();
+        }
+
+        if (groupCommitThread != null && groupCommitThread.isAlive()) {
+            groupCommitThread.interrupt();
+            try {
+                groupCommitThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            if (channel != null) {
+                if (fsyncPolicy != FsyncPolicy.NEVER) {
+                    channel.force(false);
+                }
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * The loop of the group commit thread: force everything written in the
+     * last interval with one fsync, then wake up the waiting callers.
+     */
+    private void runGroupCommit() {
+        while (true) {
+            try {
+                Thread.sleep(groupCommitIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            final FileChannel channel;
+            final long position;
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                if (durablePosition >= writtenPosition) {
+                    continue;
+                }
+                channel = this.channel;
+                position = writtenPosition;
+            }
+
+            try {
+                /**
+                 * Forced without the lock, so the records can still be
+                 * appended meanwhile.
+                 */
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (channel == this.channel) {
+                        groupCommitFailure = e;
+                        notifyAll();
+                        return;
+                    }
+                    /**
+                     * The segment has been rolled (and forced) meanwhile.
+                     */
+                    continue;
+                }
+            }
+
+            synchronized (this) {
+                if (position > durablePosition) {
+                    durablePosition = position;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException("The write-ahead log is closed.");
+        }
+        if (appendFailure != null) {
+            throw new IOException("The write-ahead log failed to remove a record which failed to be appended.", appendFailure);
+        }
+        if (channel == null) {
+            throw new IllegalStateException("The write-ahead log must be replayed first.");
+        }
+    }
+
+    private FileChannel openSegment(final long sequence) throws IOException {
+        final FileChannel segment = FileChannel.open(segmentPath(sequence),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return segment;
+    }
+
+    private Path segmentPath(final long sequence) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return the sequence numbers of the existing segments in ascending order
+     */
+    private List<Long> segmentSequences() throws IOException {
+        final List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (final Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    /**
+                     * Not a segment file.
+                     */
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    private static void readFully(final FileChannel in, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = in.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of the write-ahead log.");
+            }
+            position += n;
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package lung.key_value_store.api;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Modified in Technical Test Round 2
  *
@@ -13,9 +18,98 @@ public interface KeysAndValues {
 
     String display();
 
+    /**
+     * The same output as display(), but streamed to an Appendable (e.g. a
+     * Writer) in bounded chunks instead of being built as one String.
+     */
+    void display(Appendable out) throws IOException;
+
+    /**
+     * The same output as display(), but streamed to a channel (e.g. a file or
+     * a socket) in bounded chunks, encoded in UTF-8.
+     */
+    void display(WritableByteChannel channel) throws IOException;
+
+    /**
+     * The same format as display(), but only the keys from fromKey
+     * (inclusive) to toKey (exclusive), compared case-insensitively. A null
+     * bound means no bound.
+     */
+    String display(String fromKey, String toKey);
+
+    /**
+     * The same format as display(), but only the keys starting with the
+     * prefix, compared case-insensitively.
+     */
+    String display(String prefix);
+
+    /**
+     * The same format as display(), but only at most "limit" keys after
+     * afterKey (exclusive), or from the first key if afterKey is null.
+     *
+     * To get the next page, pass the key of the last line of a page as
+     * afterKey.
+     */
+    String displayPage(String afterKey, int limit);
+
+    /**
+     * @return the current value of the key, or null if the key does not exist
+     */
+    String get(String key);
+
+    /**
+     * Look up many keys in one call.
+     *
+     * @return the current values of the keys which exist; the keys which do
+     * not exist are not in the Map
+     */
+    Map<String, String> multiGet(Collection<String> keys);
+
     /**
      * Added in Technical Test Round 2
      */
     void undo();
 
+    /**
+     * Undo the last n accept() calls in one go. Each key is written once, with
+     * its value before the oldest of them. It stops early when there is
+     * nothing more to undo.
+     */
+    void undo(int n);
+
+    /**
+     * Re-apply the last call undone. The calls undone can be redone until the
+     * next accept().
+     */
+    void redo();
+
+    /**
+     * Re-apply the last n calls undone in one go, the same as undo(n).
+     */
+    void redo(int n);
+
+    /**
+     * Create a named savepoint at the current key-value pairs.
+     *
+     * @throws IllegalArgumentException if the savepoint exists already
+     */
+    void savepoint(String name);
+
+    /**
+     * Put back the key-value pairs of a savepoint, however many calls ago it
+     * was created. The savepoint is kept and the later ones are released. The
+     * rollback itself can be undone as one step.
+     *
+     * @throws IllegalArgumentException if the savepoint does not exist
+     */
+    void rollbackTo(String name);
+
+    /**
+     * Release a savepoint and the later ones, without changing any key-value
+     * pair.
+     *
+     * @throws IllegalArgumentException if the savepoint does not exist
+     */
+    void releaseSavepoint(String name);
+
 }
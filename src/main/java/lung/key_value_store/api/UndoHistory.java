@@ -1,7 +1,5 @@
 package lung.key_value_store.api;
 
-import java.util.Map;
-
 /**
  * Added in Technical Test Round 2
  *
@@ -11,10 +9,42 @@ import java.util.Map;
  */
 public interface UndoHistory {
 
-    void saveSnapshot(Map<String, String> dataStoreForEachAccept);
+    /**
+     * Save a copy of the inverse operations of one accept().
+     */
+    void saveSnapshot(UndoSnapshot snapshot);
 
-    String[] loadSnapshot();
+    /**
+     * Remove the latest snapshot and copy it into the given UndoSnapshot.
+     *
+     * @return false if there is no snapshot
+     */
+    boolean loadSnapshot(UndoSnapshot snapshot);
 
     boolean hasSnapshot();
 
+    void clear();
+
+    int size();
+
+    /**
+     * @return the estimated number of bytes held by the history
+     */
+    long footprint();
+
+    /**
+     * @return the max number of snapshots, or Integer.MAX_VALUE if unbounded
+     */
+    default int maxSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the max number of bytes held, as measured by footprint(), or
+     * Long.MAX_VALUE if unbounded
+     */
+    default long maxFootprint() {
+        return Long.MAX_VALUE;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package lung.key_value_store.api;
+
+import java.util.Arrays;
+
+/**
+ * The inverse operations which undo one accept(), one per modified key:
+ *
+ * - DELETE: the key did not exist before, so it's removed.
+ * - RESTORE: the previous value is put back, either as text or as a long.
+ * - DELTA: the key was an integer before and after, so the delta is
+ *   subtracted from its current value. No String is kept at all.
+ *
+ * It's a reusable buffer of parallel arrays, so that an accept() can build
+ * its snapshot and undo() can load one without creating an object per key.
+ * An UndoHistory copies a snapshot when it's saved.
+ *
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public final class UndoSnapshot {
+
+    public static final byte DELETE = 0;
+    public static final byte RESTORE = 1;
+    public static final byte DELTA = 2;
+
+    private byte[] types;
+    private String[] keys;
+
+    /**
+     * The previous text of a RESTORE, or null if it's the long below.
+     */
+    private String[] texts;
+
+    /**
+     * The previous long of a RESTORE, or the delta of a DELTA.
+     */
+    private long[] longs;
+
+    private int size;
+
+    public UndoSnapshot() {
+        this(16);
+    }
+
+    public UndoSnapshot(final int initialCapacity) {
+        final int capacity = Math.max(1, initialCapacity);
+        this.types = new byte[capacity];
+        this.keys = new String[capacity];
+        this.texts = new String[capacity];
+        this.longs = new long[capacity];
+    }
+
+    public final void addDelete(final String key) {
+        final int i = add(DELETE, key);
+        texts[i] = null;
+        longs[i] = 0L;
+    }
+
+    public final void addRestore(final String key, final String text) {
+        final int i = add(RESTORE, key);
+        texts[i] = text;
+        longs[i] = 0L;
+    }
+
+    public final void addRestore(final String key, final long value) {
+        final int i = add(RESTORE, key);
+        texts[i] = null;
+        longs[i] = value;
+    }
+
+    public final void addDelta(final String key, final long delta) {
+        final int i = add(DELTA, key);
+        texts[i] = null;
+        longs[i] = delta;
+    }
+
+    /**
+     * Append a copy of an operation of another snapshot.
+     *
+     * @param other the other snapshot
+     * @param i the index of the operation in the other snapshot
+     */
+    public final void add(final UndoSnapshot other, final int i) {
+        final int j = add(other.types[i], other.keys[i]);
+        texts[j] = other.texts[i];
+        longs[j] = other.longs[i];
+    }
+
+    /**
+     * @return the number of operations
+     */
+    public final int size() {
+        return size;
+    }
+
+    public final byte type(final int i) {
+        return types[i];
+    }
+
+    public final String key(final int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return the previous text of a RESTORE, or null if it's a long
+     */
+    public final String text(final int i) {
+        return texts[i];
+    }
+
+    /**
+     * @return the previous long of a RESTORE, or the delta of a DELTA
+     */
+    public final long longValue(final int i) {
+        return longs[i];
+    }
+
+    /**
+     * Remove all the operations, and the references to the Strings.
+     */
+    public final void clear() {
+        truncate(0);
+    }
+
+    /**
+     * Remove the operations from an index to the end.
+     *
+     * @param newSize the number of operations to keep
+     */
+    public final void truncate(final int newSize) {
+        if (newSize < size) {
+            Arrays.fill(keys, newSize, size, null);
+            Arrays.fill(texts, newSize, size, null);
+            size = newSize;
+        }
+    }
+
+    private int add(final byte type, final String key) {
+        if (size == types.length) {
+            final int capacity = size << 1;
+            types = Arrays.copyOf(types, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+        }
+        types[size] = type;
+        keys[size] = key;
+        return size++;
+    }
+}
@@ -0,0 +1,134 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class AsyncErrorListenerTest {
+
+    @Test
+    public void errorsAreDeliveredAsEventsInOrder() {
+        final List<ErrorEvent> events = Collections.synchronizedList(new ArrayList<>());
+        final AsyncErrorListener errorListener = new AsyncErrorListener(events::add, 16);
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+
+        kv.accept("a=1,invalid,441=2,441=3, a = " + Long.MAX_VALUE);
+        errorListener.close();
+
+        Assert.assertEquals(4, events.size());
+        assertEvent(events.get(0), ErrorEvent.Code.INVALID_FORMAT, null, 1, "Invalid format.");
+        assertEvent(events.get(1), ErrorEvent.Code.OVERLAPPING_KEY, "441", 3, "Key 441 is overlapping in the atomic group (441, 442, 500).");
+        assertEvent(events.get(2), ErrorEvent.Code.INTEGER_OVERFLOW, "a", 4, "The integer value overflows.");
+        assertEvent(events.get(3), ErrorEvent.Code.INCOMPLETE_ATOMIC_GROUP, "442", ErrorEvent.NO_OFFSET, "atomic group(441,442,500) missing 442,500");
+        Assert.assertEquals(4, errorListener.deliveredCount());
+        Assert.assertEquals(0, errorListener.droppedCount());
+
+        /**
+         * The same messages as a synchronous ErrorListener.
+         */
+        final List<String> messages = new ArrayList<>();
+        new KeysAndValuesImpl(new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                messages.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                messages.add(msg);
+            }
+        }).accept("a=1,invalid,441=2,441=3, a = " + Long.MAX_VALUE);
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertEquals(messages.get(i), events.get(i).message());
+        }
+    }
+
+    @Test
+    public void aSlowListenerNeitherBlocksNorLosesCount() throws InterruptedException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+        final AsyncErrorListener errorListener = new AsyncErrorListener(new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                messages.add(msg);
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                onError(msg);
+            }
+        }, 4);
+
+        errorListener.onError("first");
+        entered.await();
+
+        /**
+         * The listener is stuck, so 4 errors fill the ring, which are
+         * identical and coalesced, and the others are dropped.
+         */
+        for (int i = 0; i < 10; ++i) {
+            errorListener.onError("again");
+        }
+        Assert.assertEquals(6, errorListener.droppedCount());
+
+        release.countDown();
+        errorListener.close();
+
+        Assert.assertEquals(Arrays.asList("first", "again (repeated 4 times)"), messages);
+        Assert.assertEquals(3, errorListener.coalescedCount());
+        Assert.assertEquals(2, errorListener.deliveredCount());
+
+        errorListener.onError("after close");
+        Assert.assertEquals(7, errorListener.droppedCount());
+        Assert.assertEquals(2, messages.size());
+    }
+
+    @Test
+    public void aFailingListenerIsCountedAsFailed() {
+        final List<String> messages = new ArrayList<>();
+        final AsyncErrorListener errorListener = new AsyncErrorListener(event -> {
+            if (event.message().startsWith("bad")) {
+                throw new IllegalStateException(event.message());
+            }
+            messages.add(event.message());
+        }, 16);
+
+        errorListener.onError("bad 1");
+        errorListener.onError("good");
+        errorListener.onError("bad 2");
+        errorListener.close();
+
+        Assert.assertEquals(Collections.singletonList("good"), messages);
+        Assert.assertEquals(1, errorListener.deliveredCount());
+        Assert.assertEquals(2, errorListener.failedCount());
+        Assert.assertEquals(0, errorListener.droppedCount());
+    }
+
+    private static void assertEvent(final ErrorEvent event, final ErrorEvent.Code code, final String key, final int batchOffset,
+                                    final String message) {
+        Assert.assertEquals(code, event.code());
+        Assert.assertEquals(key, event.key());
+        Assert.assertEquals(batchOffset, event.batchOffset());
+        Assert.assertEquals(message, event.message());
+        Assert.assertEquals(0, event.repeats());
+    }
+}
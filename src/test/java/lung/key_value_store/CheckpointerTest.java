@@ -0,0 +1,195 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class CheckpointerTest {
+
+    private static final ErrorListener FAILING_ERROR_LISTENER = new ErrorListener() {
+        @Override
+        public void onError(String msg) {
+            Assert.fail(msg);
+        }
+
+        @Override
+        public void onError(String msg, Exception e) {
+            Assert.fail(msg);
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checkpointWithWriteAheadLog() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS);
+             Checkpointer checkpointer = new Checkpointer(directory)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log, checkpointer);
+            kv.accept("one=1,two=two,A=007,a=-9223372036854775808,b=\u00e9t\u00e9");
+            kv.accept("one=5");
+
+            final Path snapshot = kv.checkpoint().get();
+            Assert.assertTrue(Files.exists(snapshot));
+
+            /**
+             * A checkpoint cannot be undone.
+             */
+            kv.undo();
+            Assert.assertEquals("6", kv.get("one"));
+
+            kv.accept("one=10,three=3");
+        }
+
+        /**
+         * Only the snapshot and the segment after it are left.
+         */
+        Assert.assertEquals(2, files(directory).size());
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS);
+             Checkpointer checkpointer = new Checkpointer(directory)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log, checkpointer);
+            Assert.assertEquals("A=007\na=-9223372036854775808\nb=\u00e9t\u00e9\none=16\nthree=3\ntwo=two", kv.display());
+
+            kv.accept("A=1,a=1");
+            Assert.assertEquals("8", kv.get("A"));
+            Assert.assertEquals("-9223372036854775807", kv.get("a"));
+
+            kv.undo();
+            kv.undo();
+            Assert.assertEquals("A=007\na=-9223372036854775808\nb=\u00e9t\u00e9\none=6\ntwo=two", kv.display());
+
+            /**
+             * The snapshot is the oldest state.
+             */
+            kv.undo();
+            Assert.assertEquals("6", kv.get("one"));
+        }
+    }
+
+    /**
+     * The write-ahead log records the checkpoint itself, so a checkpoint
+     * whose snapshot is never written is replayed with its histories
+     * cleared, and a later undo() does what it did.
+     */
+    @Test
+    public void replayCheckpointWithoutSnapshot() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final Path snapshots = directory.resolve("snapshots");
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS);
+             Checkpointer checkpointer = new Checkpointer(snapshots)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log, checkpointer);
+            kv.accept("a=1");
+            kv.accept("a=2");
+            kv.savepoint("s");
+
+            /**
+             * The snapshot cannot be written where a file is in the way.
+             */
+            Files.delete(snapshots);
+            Files.createFile(snapshots);
+            try {
+                kv.checkpoint().get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+
+            kv.undo();
+            Assert.assertEquals("3", kv.get("a"));
+        }
+
+        Files.delete(snapshots);
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS);
+             Checkpointer checkpointer = new Checkpointer(snapshots)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log, checkpointer);
+            Assert.assertEquals("3", kv.get("a"));
+            Assert.assertEquals(0, kv.undoHistorySize());
+
+            try {
+                kv.rollbackTo("s");
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void checkpointWithoutWriteAheadLog() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+
+        try (Checkpointer checkpointer = new Checkpointer(directory)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, null, checkpointer);
+            kv.accept("one=1");
+            kv.checkpoint().get();
+            kv.accept("two=2");
+            kv.checkpoint().get();
+            kv.accept("three=3");
+        }
+
+        Assert.assertEquals(1, files(directory).size());
+
+        try (Checkpointer checkpointer = new Checkpointer(directory)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, null, checkpointer);
+            Assert.assertEquals("one=1\ntwo=2", kv.display());
+        }
+    }
+
+    @Test
+    public void checkpointOfConcurrentKeysAndValues() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final StringBuilder expected = new StringBuilder();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER);
+             Checkpointer checkpointer = new Checkpointer(directory)) {
+            final ConcurrentKeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 8, log, checkpointer);
+            for (int i = 0; i < 1000; ++i) {
+                kv.accept("key" + i + "=" + (i % 2 == 0 ? String.valueOf(i) : "v" + i));
+            }
+            kv.checkpoint().get();
+            kv.accept("key0=5");
+            expected.append(kv.display());
+        }
+
+        /**
+         * The keys of all stripes are merged into one sorted file, and then
+         * spread over a different number of stripes.
+         */
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER);
+             Checkpointer checkpointer = new Checkpointer(directory)) {
+            final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 4, log, checkpointer);
+            Assert.assertEquals(expected.toString(), kv.display());
+            Assert.assertEquals("5", kv.get("key0"));
+
+            final KeysAndValues sequential = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, null, checkpointer);
+            Assert.assertEquals("0", sequential.get("key0"));
+            Assert.assertEquals("v999", sequential.get("key999"));
+        }
+    }
+
+    private static List<Path> files(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+}
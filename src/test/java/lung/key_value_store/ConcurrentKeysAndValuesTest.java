@@ -0,0 +1,319 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class ConcurrentKeysAndValuesTest {
+
+    private static final ErrorListener FAILING_ERROR_LISTENER = new ErrorListener() {
+        @Override
+        public void onError(String msg) {
+            Assert.fail(msg);
+        }
+
+        @Override
+        public void onError(String msg, Exception e) {
+            Assert.fail(msg);
+        }
+    };
+
+    @Test
+    public void givenExamples() {
+        KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("14=15, 14=7,A=B52, 14 = 4, dry = Don't Repeat Yourself");
+        Assert.assertEquals("14=26\nA=B52\ndry=Don't Repeat Yourself", kv.display());
+
+        kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 4);
+        kv.accept("one=two");
+        kv.accept("Three=four");
+        kv.accept("5=6");
+        kv.accept("14=X");
+        Assert.assertEquals("14=X\n5=6\none=two\nThree=four", kv.display());
+
+        kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 1);
+        kv.accept("18=zzz,441=one,500=three,442=2,442= A,441 =3,35=D,500=ok  ");
+        Assert.assertEquals("18=zzz\n35=D\n441=3\n442=A\n500=ok", kv.display());
+    }
+
+    @Test
+    public void givenExampleForAtomicGroup4() {
+        final List<String> errors = new ArrayList<>();
+
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new ConcurrentKeysAndValues(errorListener);
+        kv.accept("500= three , 6 = 7 ,441= one,442=1,442=4");
+        Assert.assertEquals("441=one\n442=1\n500=three\n6=7", kv.display());
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals("atomic group(441,442,500) missing 441,500", errors.get(0));
+    }
+
+    @Test
+    public void undo() {
+        KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("1=1");
+        kv.accept("A=B, 1=2");
+        kv.accept("A=1, 1=A");
+        Assert.assertEquals("1=A\nA=1", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("1=3\nA=B", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("1=1", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("", kv.display());
+    }
+
+    @Test
+    public void undoAndRedoManySteps() {
+        final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 4);
+        kv.accept("1=1");
+        kv.accept("A=B, 1=2");
+        kv.accept("A=1, 1=A");
+
+        kv.undo(2);
+        Assert.assertEquals("1=1", kv.display());
+
+        kv.redo();
+        Assert.assertEquals("1=3\nA=B", kv.display());
+
+        kv.redo(2);
+        Assert.assertEquals("1=A\nA=1", kv.display());
+
+        kv.undo(3);
+        Assert.assertEquals("", kv.display());
+
+        kv.accept("A=2");
+        kv.redo();
+        Assert.assertEquals("A=2", kv.display());
+    }
+
+    @Test
+    public void streamingDisplay() throws IOException {
+        KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+
+        final StringBuilder kvPairs = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            kvPairs.append("k").append(i).append("=\u00e9t\u00e9 ").append(i).append(",");
+        }
+        kv.accept(kvPairs.toString());
+
+        final StringWriter writer = new StringWriter();
+        kv.display(writer);
+        Assert.assertEquals(kv.display(), writer.toString());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = Channels.newChannel(out)) {
+            kv.display(channel);
+        }
+        Assert.assertEquals(kv.display(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rangeQueries() {
+        KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("apple=1,Apricot=2,banana=3,Blueberry=4,cherry=5,A=6,a=7");
+
+        Assert.assertEquals("A=6\na=7\napple=1\nApricot=2\nbanana=3\nBlueberry=4\ncherry=5", kv.display(null, null));
+        Assert.assertEquals("apple=1\nApricot=2", kv.display("ap", "B"));
+        Assert.assertEquals("banana=3\nBlueberry=4\ncherry=5", kv.display("b", null));
+        Assert.assertEquals("A=6\na=7\napple=1", kv.display(null, "apr"));
+        Assert.assertEquals("", kv.display("c", "b"));
+
+        Assert.assertEquals("apple=1\nApricot=2", kv.display("AP"));
+        Assert.assertEquals("Blueberry=4", kv.display("bl"));
+        Assert.assertEquals("", kv.display("z"));
+        Assert.assertEquals(kv.display(), kv.display(""));
+
+        Assert.assertEquals("A=6\na=7\napple=1", kv.displayPage(null, 3));
+        Assert.assertEquals("Apricot=2\nbanana=3\nBlueberry=4", kv.displayPage("apple", 3));
+        Assert.assertEquals("cherry=5", kv.displayPage("Blueberry", 3));
+        Assert.assertEquals("", kv.displayPage("cherry", 3));
+        Assert.assertEquals("a=7", kv.displayPage("A", 1));
+        Assert.assertEquals("", kv.displayPage(null, 0));
+    }
+
+    @Test
+    public void pointLookups() {
+        KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("one=1,two=two,Three=3");
+        kv.accept("one=5");
+
+        Assert.assertEquals("6", kv.get("one"));
+        Assert.assertEquals("two", kv.get("two"));
+        Assert.assertNull(kv.get("three"));
+        Assert.assertNull(kv.get("four"));
+
+        final Map<String, String> values = kv.multiGet(Arrays.asList("one", "Three", "four", "two"));
+        Assert.assertEquals(3, values.size());
+        Assert.assertEquals("6", values.get("one"));
+        Assert.assertEquals("3", values.get("Three"));
+        Assert.assertEquals("two", values.get("two"));
+        Assert.assertFalse(values.containsKey("four"));
+
+        kv.undo();
+        Assert.assertEquals("1", kv.get("one"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void numberOfStripesMustBeAPowerOf2() {
+        new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 3);
+    }
+
+    /**
+     * Many threads accumulate the same counters and their own counters, while
+     * another thread checks that every batch is seen as a whole.
+     */
+    @Test
+    public void parallelAccept() throws InterruptedException {
+        final int numberOfThreads = 8;
+        final int numberOfBatches = 5000;
+
+        final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+        final AtomicBoolean isDone = new AtomicBoolean();
+        final AtomicBoolean isTorn = new AtomicBoolean();
+
+        final Thread reader = new Thread(() -> {
+            while (!isDone.get()) {
+                /**
+                 * "x" and "y" are always changed in the same batch.
+                 */
+                String x = null;
+                String y = null;
+                for (final String line : kv.display().split("\n")) {
+                    if (line.startsWith("x=")) x = line.substring(2);
+                    if (line.startsWith("y=")) y = line.substring(2);
+                }
+                if (x != null && !x.equals(y)) {
+                    isTorn.set(true);
+                }
+            }
+        });
+        reader.start();
+
+        final List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; ++t) {
+            final String ownKey = "t" + t;
+            final Thread writer = new Thread(() -> {
+                for (int i = 0; i < numberOfBatches; ++i) {
+                    kv.accept("x=1," + ownKey + "=2,y=1,441=a,442=b,500=c");
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+        isDone.set(true);
+        reader.join();
+
+        Assert.assertFalse(isTorn.get());
+
+        final StringBuilder expected = new StringBuilder("441=a\n442=b\n500=c\n");
+        for (int t = 0; t < numberOfThreads; ++t) {
+            expected.append("t").append(t).append("=").append(2 * numberOfBatches).append("\n");
+        }
+        expected.append("x=").append(numberOfThreads * numberOfBatches).append("\n");
+        expected.append("y=").append(numberOfThreads * numberOfBatches);
+        Assert.assertEquals(expected.toString(), kv.display());
+    }
+
+    /**
+     * undo() runs while many threads accept, and each undo step is still one
+     * whole batch, however many snapshots are queued.
+     */
+    @Test
+    public void undoWhileParallelAccept() throws InterruptedException {
+        final int numberOfThreads = 4;
+        final int numberOfBatches = 2 * ConcurrentKeysAndValues.PENDING_SNAPSHOTS_TO_SAVE;
+
+        final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; ++t) {
+            final String ownKey = "t" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < numberOfBatches; ++i) {
+                    kv.accept("c=1," + ownKey + "=1");
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < numberOfBatches; ++i) {
+                kv.undo();
+                Thread.yield();
+            }
+        }));
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertCountsMatch(kv.display());
+
+        kv.undo(KeysAndValuesImpl.UNDO_HISTORY_SIZE / 2);
+        assertCountsMatch(kv.display());
+        kv.redo(KeysAndValuesImpl.UNDO_HISTORY_SIZE / 4);
+        assertCountsMatch(kv.display());
+
+        /**
+         * The Redo History is cleared by the next accept().
+         */
+        final String beforeAccept = kv.display();
+        kv.accept("d=1");
+        kv.redo();
+        Assert.assertEquals(beforeAccept.replaceFirst("\n", "\nd=1\n"), kv.display());
+    }
+
+    /**
+     * "c" is counted by every batch, and "t0".."t3" by those of one thread.
+     */
+    private static void assertCountsMatch(final String display) {
+        long c = 0L;
+        long sum = 0L;
+        for (final String line : display.split("\n")) {
+            if (line.startsWith("c=")) {
+                c = Long.parseLong(line.substring(2));
+            } else if (line.startsWith("t")) {
+                sum += Long.parseLong(line.substring(line.indexOf('=') + 1));
+            }
+        }
+        Assert.assertEquals(display, c, sum);
+    }
+}
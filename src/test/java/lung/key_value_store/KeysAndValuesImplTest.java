@@ -4,6 +4,19 @@ import lung.key_value_store.api.ErrorListener;
 import lung.key_value_store.api.KeysAndValues;
 import org.junit.Assert;
 import org.junit.Test;
+import org.slf4j.Logger;
+
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Modified in Technical Test Round 2
@@ -709,7 +722,7 @@ public class KeysAndValuesImplTest {
         };
 
         KeysAndValues kv = new KeysAndValuesImpl(errorListener);
-        kv.accept("A=0,A=" + Integer.MAX_VALUE + "0");
+        kv.accept("A=0,A=" + Long.MAX_VALUE + "0");
         Assert.assertEquals("A=0", kv.display());
 
         /**
@@ -909,4 +922,1161 @@ public class KeysAndValuesImplTest {
          */
         Assert.assertTrue(isOnErrorCalled[0]);
     }
-}
\ No newline at end of file
+
+    /**
+     * An empty value does not count as the key of an atomic group found.
+     */
+    @Test
+    public void customTestForAtomicGroupEmptyValue() {
+        final List<String> errors = new ArrayList<>();
+        final KeysAndValues kv = new KeysAndValuesImpl(errorCollector(errors));
+
+        kv.accept("441= ,442=1,500=2");
+        Assert.assertEquals("", kv.display());
+        Assert.assertEquals(Collections.singletonList("atomic group(441,442,500) missing 441"), errors);
+
+        errors.clear();
+        kv.accept("441= ,441=3");
+        Assert.assertEquals("", kv.display());
+        Assert.assertEquals(Collections.singletonList("atomic group(441,442,500) missing 442,500"), errors);
+
+        errors.clear();
+        kv.accept("441= ,441=3,442=4,500=5");
+        Assert.assertEquals("441=3\n442=4\n500=5", kv.display());
+        Assert.assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void customTestTrailingDelimiters() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept(",,,");
+        kv.accept("a=1,,,");
+        kv.accept("b=2==, c = x y ");
+        kv.accept("a=-3");
+        Assert.assertEquals("a=-2\nb=2\nc=x y", kv.display());
+    }
+
+    @Test
+    public void customTestEmptyPartInTheMiddle() {
+        /**
+         * As a wrapper of an Integer to be modified in the anonymous inner class.
+         */
+        final int[] onErrorCount = new int[1];
+
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.assertEquals("Invalid format.", msg);
+                ++onErrorCount[0];
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept(",a=1,,b=2, ,c=1=2");
+        Assert.assertEquals("a=1\nb=2", kv.display());
+        Assert.assertEquals(4, onErrorCount[0]);
+    }
+
+    @Test
+    public void customTestIntegerValueLargerThanInt() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("A=" + Integer.MAX_VALUE + ",A=1");
+        Assert.assertEquals("A=2147483648", kv.display());
+
+        kv.accept("A=-4294967296");
+        Assert.assertEquals("A=-2147483648", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("A=2147483648", kv.display());
+    }
+
+    @Test
+    public void customTestIntegerSumOverflows() {
+        /**
+         * As a wrapper of a Boolean to be modified in the anonymous inner class.
+         */
+        final Boolean[] isOnErrorCalled = new Boolean[1];
+        isOnErrorCalled[0] = false;
+
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.assertEquals("The integer value overflows.", msg);
+                Assert.assertNotNull(e);
+                isOnErrorCalled[0] = true;
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("A=" + Long.MAX_VALUE + ",A=1");
+        Assert.assertEquals("A=" + Long.MAX_VALUE, kv.display());
+
+        /**
+         * To make sure ErrorListener.onError(String,Exception) has been called.
+         */
+        Assert.assertTrue(isOnErrorCalled[0]);
+    }
+
+    @Test
+    public void customTestIntegerTextIsKept() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("a=007,b=-0,c=99999999999999999999");
+        Assert.assertEquals("a=007\nb=-0\nc=99999999999999999999", kv.display());
+
+        kv.accept("a=1,b=-1");
+        Assert.assertEquals("a=8\nb=-1\nc=99999999999999999999", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("a=007\nb=-0\nc=99999999999999999999", kv.display());
+    }
+
+    @Test
+    public void customTestKeysOnlyDifferentInCase() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("a=1,b=2");
+        kv.accept("A=3");
+        Assert.assertEquals("A=3\na=1\nb=2", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("a=1\nb=2", kv.display());
+
+        kv.accept("A=4,B=x");
+        kv.undo();
+        kv.accept("c=5");
+        Assert.assertEquals("a=1\nb=2\nc=5", kv.display());
+    }
+
+    /**
+     * Compare with a TreeMap for many random accept() and undo() calls.
+     */
+    @Test
+    public void customTestManyKeys() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        final Random random = new Random(42);
+        final Deque<TreeMap<String, Long>> expected = new ArrayDeque<>();
+        expected.push(new TreeMap<String, Long>(DataStore.KEY_ORDER));
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        for (int i = 0; i < 2000; ++i) {
+            if (random.nextInt(4) == 0 && expected.size() > 1) {
+                kv.undo();
+                expected.pop();
+            } else {
+                final TreeMap<String, Long> next = new TreeMap<>(expected.peek());
+                final StringBuilder kvPairs = new StringBuilder();
+                for (int j = 0, n = random.nextInt(8); j < n; ++j) {
+                    final String key = (random.nextBoolean() ? "k" : "K") + random.nextInt(500);
+                    final long value = random.nextInt(100);
+                    kvPairs.append(key).append('=').append(value).append(',');
+                    next.merge(key, value, Long::sum);
+                }
+                kv.accept(kvPairs.toString());
+                expected.push(next);
+            }
+
+            if (i % 50 == 0) {
+                final StringBuilder display = new StringBuilder();
+                for (final Map.Entry<String, Long> entry : expected.peek().entrySet()) {
+                    display.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+                }
+                if (display.length() > 0) {
+                    display.setLength(display.length() - 1);
+                }
+                Assert.assertEquals(display.toString(), kv.display());
+            }
+        }
+    }
+
+    @Test
+    public void customTestStreamingDisplay() throws IOException {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+
+        StringWriter writer = new StringWriter();
+        kv.display(writer);
+        Assert.assertEquals("", writer.toString());
+
+        /**
+         * Many more chars than one chunk, with non-ASCII chars.
+         */
+        final StringBuilder kvPairs = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            kvPairs.append("k").append(i).append("=\u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00 ").append(i).append(",");
+        }
+        kv.accept(kvPairs.toString());
+        kv.accept("n=1,n=2");
+
+        writer = new StringWriter();
+        kv.display(writer);
+        Assert.assertEquals(kv.display(), writer.toString());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = Channels.newChannel(out)) {
+            kv.display(channel);
+        }
+        Assert.assertEquals(kv.display(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void customTestRangeQueries() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("apple=1,Apricot=2,banana=3,Blueberry=4,cherry=5,A=6,a=7");
+
+        Assert.assertEquals("A=6\na=7\napple=1\nApricot=2\nbanana=3\nBlueberry=4\ncherry=5", kv.display(null, null));
+        Assert.assertEquals("apple=1\nApricot=2", kv.display("ap", "B"));
+        Assert.assertEquals("banana=3\nBlueberry=4\ncherry=5", kv.display("b", null));
+        Assert.assertEquals("A=6\na=7\napple=1", kv.display(null, "apr"));
+        Assert.assertEquals("", kv.display("c", "b"));
+
+        Assert.assertEquals("apple=1\nApricot=2", kv.display("AP"));
+        Assert.assertEquals("Blueberry=4", kv.display("bl"));
+        Assert.assertEquals("", kv.display("z"));
+        Assert.assertEquals(kv.display(), kv.display(""));
+
+        Assert.assertEquals("A=6\na=7\napple=1", kv.displayPage(null, 3));
+        Assert.assertEquals("Apricot=2\nbanana=3\nBlueberry=4", kv.displayPage("apple", 3));
+        Assert.assertEquals("cherry=5", kv.displayPage("Blueberry", 3));
+        Assert.assertEquals("", kv.displayPage("cherry", 3));
+        Assert.assertEquals("a=7", kv.displayPage("A", 1));
+        Assert.assertEquals("", kv.displayPage(null, 0));
+    }
+
+    @Test
+    public void customTestPointLookups() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("one=1,two=two,Three=3");
+        kv.accept("one=5");
+
+        Assert.assertEquals("6", kv.get("one"));
+        Assert.assertEquals("two", kv.get("two"));
+        Assert.assertNull(kv.get("three"));
+        Assert.assertNull(kv.get("four"));
+
+        final Map<String, String> values = kv.multiGet(Arrays.asList("one", "Three", "four", "two"));
+        Assert.assertEquals(3, values.size());
+        Assert.assertEquals("6", values.get("one"));
+        Assert.assertEquals("3", values.get("Three"));
+        Assert.assertEquals("two", values.get("two"));
+        Assert.assertFalse(values.containsKey("four"));
+
+        kv.undo();
+        Assert.assertEquals("1", kv.get("one"));
+    }
+
+    @Test
+    public void customTestConfigurableAtomicGroups() {
+        final List<String> errors = new ArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        final AtomicGroups atomicGroups = new AtomicGroups(Arrays.asList(
+                Arrays.asList("x", "y"),
+                Arrays.asList("from", "to", "amount")));
+
+        KeysAndValues kv = new KeysAndValuesImpl(errorListener, atomicGroups);
+        kv.accept("y=2,441=1,x=1,amount=5,from=a");
+        Assert.assertEquals("441=1\nx=1\ny=2", kv.display());
+        Assert.assertEquals(Arrays.asList("atomic group(from,to,amount) missing to"), errors);
+
+        errors.clear();
+        kv.accept("to=b,amount=5,x=3,amount=6,from=a,y=4,x=5");
+        Assert.assertEquals("441=1\namount=5\nfrom=a\nto=b\nx=4\ny=6", kv.display());
+        Assert.assertEquals(Arrays.asList(
+                "Key amount is overlapping in the atomic group (from, to, amount).",
+                "atomic group(x,y) missing y"), errors);
+
+        /**
+         * A group can be completed again in the same batch.
+         */
+        errors.clear();
+        kv.accept("x=1,y=1,y=1,x=1");
+        Assert.assertEquals("441=1\namount=5\nfrom=a\nto=b\nx=6\ny=8", kv.display());
+        Assert.assertTrue(errors.isEmpty());
+
+        kv = new KeysAndValuesImpl(errorListener, AtomicGroups.NONE);
+        kv.accept("441=1,500=2");
+        Assert.assertEquals("441=1\n500=2", kv.display());
+        Assert.assertTrue(errors.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void customTestKeyInTwoAtomicGroups() {
+        new AtomicGroups(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("b", "c")));
+    }
+
+    @Test
+    public void customTestUndoHistoryLimits() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        /**
+         * Limited by the number of entries.
+         */
+        KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener, 2, Long.MAX_VALUE);
+        kv.accept("a=1");
+        kv.accept("a=2");
+        kv.accept("a=3");
+        Assert.assertEquals(2, kv.undoHistorySize());
+        kv.undo();
+        kv.undo();
+        kv.undo();
+        Assert.assertEquals("a=1", kv.display());
+        Assert.assertEquals(0L, kv.undoHistoryFootprint());
+
+        /**
+         * Limited by the byte budget: a large batch evicts the oldest
+         * snapshots first.
+         */
+        kv = new KeysAndValuesImpl(errorListener, KeysAndValuesImpl.UNDO_HISTORY_SIZE, 2400L);
+        kv.accept("a=1");
+        kv.accept("b=1");
+        final long footprintOfTwo = kv.undoHistoryFootprint();
+        Assert.assertTrue(footprintOfTwo > 0L);
+
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 40; ++i) {
+            large.append("k").append(i).append("=").append(i).append(",");
+        }
+        kv.accept(large.toString());
+        Assert.assertTrue(kv.undoHistoryFootprint() <= 2400L);
+        Assert.assertEquals(2, kv.undoHistorySize());
+
+        kv.undo();
+        Assert.assertEquals("a=1\nb=1", kv.display());
+        kv.undo();
+        Assert.assertEquals("a=1", kv.display());
+        kv.undo();
+        Assert.assertEquals("a=1", kv.display());
+
+        /**
+         * A batch larger than the whole budget clears the Undo History.
+         */
+        for (int i = 0; i < 200; ++i) {
+            large.append("m").append(i).append("=").append(i).append(",");
+        }
+        kv.accept(large.toString());
+        Assert.assertEquals(0, kv.undoHistorySize());
+        Assert.assertEquals(0L, kv.undoHistoryFootprint());
+        kv.undo();
+        Assert.assertEquals(241, kv.display().split("\n").length);
+    }
+
+    @Test
+    public void customTestUndoOfIntegerAccumulations() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("a=1,b=007,c=x,max=9223372036854775806");
+
+        /**
+         * Accumulated several times in a batch, turned into a text, turned
+         * into an integer, and accumulated up to Long.MAX_VALUE.
+         */
+        kv.accept("a=5,a=-2,a=10,b=1,c=3,max=1,new=1,new=2");
+        Assert.assertEquals("a=14\nb=8\nc=3\nmax=9223372036854775807\nnew=3", kv.display());
+
+        kv.accept("a=y,a=4,b=0,c=-3,max=-9223372036854775807");
+        Assert.assertEquals("a=4\nb=8\nc=0\nmax=0\nnew=3", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("a=14\nb=8\nc=3\nmax=9223372036854775807\nnew=3", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("a=1\nb=007\nc=x\nmax=9223372036854775806", kv.display());
+
+        /**
+         * Integers which are still integers keep neither a key copy nor a
+         * value String in the snapshot.
+         */
+        final long footprintOfTexts = kv.undoHistoryFootprint();
+        kv.accept("a=1,b=1,max=1");
+        kv.undo();
+        Assert.assertEquals("a=1\nb=007\nc=x\nmax=9223372036854775806", kv.display());
+        Assert.assertEquals(footprintOfTexts, kv.undoHistoryFootprint());
+    }
+
+    @Test
+    public void customTestUndoAndRedoManySteps() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("one=1,two=two");
+        kv.accept("one=5,three=3");
+        kv.accept("one=x,two=2,three=4");
+        kv.accept("one=7,four=4");
+
+        kv.undo(3);
+        Assert.assertEquals("one=1\ntwo=two", kv.display());
+        Assert.assertEquals(1, kv.undoHistorySize());
+
+        kv.redo();
+        Assert.assertEquals("one=6\nthree=3\ntwo=two", kv.display());
+        kv.redo(5);
+        Assert.assertEquals("four=4\none=7\nthree=7\ntwo=2", kv.display());
+
+        /**
+         * Nothing more to redo.
+         */
+        kv.redo();
+        Assert.assertEquals("four=4\none=7\nthree=7\ntwo=2", kv.display());
+
+        kv.undo(2);
+        Assert.assertEquals("one=6\nthree=3\ntwo=two", kv.display());
+
+        /**
+         * A new accept() clears the Redo History.
+         */
+        kv.accept("one=1");
+        kv.redo();
+        Assert.assertEquals("one=7\nthree=3\ntwo=two", kv.display());
+
+        kv.undo(10);
+        Assert.assertEquals("", kv.display());
+        kv.redo(10);
+        Assert.assertEquals("one=7\nthree=3\ntwo=two", kv.display());
+    }
+
+    @Test
+    public void customTestUndoManyStepsIsTheSameAsUndoOneByOne() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+            }
+        };
+
+        final Random random = new Random(11);
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+        final KeysAndValuesImpl expected = new KeysAndValuesImpl(errorListener);
+
+        for (int i = 0; i < 3000; ++i) {
+            final int action = random.nextInt(6);
+            final int n = random.nextInt(5);
+            if (action == 0) {
+                kv.undo(n);
+                for (int j = 0; j < n; ++j) {
+                    expected.undo();
+                }
+            } else if (action == 1) {
+                kv.redo(n);
+                for (int j = 0; j < n; ++j) {
+                    expected.redo();
+                }
+            } else {
+                final StringBuilder sb = new StringBuilder();
+                for (int j = random.nextInt(6); j >= 0; --j) {
+                    final int value = random.nextInt(8);
+                    sb.append("k").append(random.nextInt(20)).append("=")
+                            .append(value == 0 ? "v" + random.nextInt(10) : value == 1 ? "9223372036854775807" : String.valueOf(value - 4))
+                            .append(",");
+                }
+                kv.accept(sb.toString());
+                expected.accept(sb.toString());
+            }
+            Assert.assertEquals(expected.display(), kv.display());
+            Assert.assertEquals(expected.undoHistorySize(), kv.undoHistorySize());
+        }
+    }
+
+    @Test
+    public void customTestSavepoints() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("one=1,two=two");
+        kv.savepoint("before load");
+
+        /**
+         * Far more calls than the Undo History can undo.
+         */
+        String atHalf = null;
+        for (int i = 0; i < 1000; ++i) {
+            kv.accept("one=1,k" + (i % 10) + "=" + i + ",two=" + (i % 3 == 0 ? "x" : "1"));
+            if (i == 500) {
+                atHalf = kv.display();
+                kv.savepoint("half");
+                kv.undo(3);
+            }
+        }
+        final String afterLoad = kv.display();
+
+        kv.rollbackTo("half");
+        Assert.assertEquals(atHalf, kv.display());
+
+        kv.rollbackTo("before load");
+        Assert.assertEquals("one=1\ntwo=two", kv.display());
+
+        /**
+         * The later savepoint is released, and a rollback can be undone.
+         */
+        try {
+            kv.rollbackTo("half");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Savepoint half does not exist.", e.getMessage());
+        }
+        kv.undo();
+        Assert.assertEquals(atHalf, kv.display());
+        kv.undo();
+        Assert.assertEquals(afterLoad, kv.display());
+
+        /**
+         * The savepoint is kept after a rollback.
+         */
+        kv.rollbackTo("before load");
+        kv.accept("three=3,one=5");
+        kv.rollbackTo("before load");
+        Assert.assertEquals("one=1\ntwo=two", kv.display());
+
+        kv.releaseSavepoint("before load");
+        try {
+            kv.rollbackTo("before load");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Savepoint before load does not exist.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void customTestRollbackToSavepointsWithUndoAndRedo() {
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+            }
+        };
+
+        final Random random = new Random(5);
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+        final List<String> names = new ArrayList<>();
+        final List<String> displays = new ArrayList<>();
+
+        for (int i = 0; i < 3000; ++i) {
+            final int action = random.nextInt(20);
+            if (action == 0) {
+                names.add("s" + i);
+                displays.add(kv.display());
+                kv.savepoint("s" + i);
+            } else if (action == 1 && !names.isEmpty()) {
+                final int k = random.nextInt(names.size());
+                kv.rollbackTo(names.get(k));
+                Assert.assertEquals(displays.get(k), kv.display());
+                names.subList(k + 1, names.size()).clear();
+                displays.subList(k + 1, displays.size()).clear();
+            } else if (action == 2 && !names.isEmpty()) {
+                final int k = random.nextInt(names.size());
+                kv.releaseSavepoint(names.get(k));
+                names.subList(k, names.size()).clear();
+                displays.subList(k, displays.size()).clear();
+            } else if (action < 5) {
+                kv.undo(random.nextInt(3));
+            } else if (action < 7) {
+                kv.redo(random.nextInt(3));
+            } else {
+                final StringBuilder sb = new StringBuilder();
+                for (int j = random.nextInt(4); j >= 0; --j) {
+                    sb.append("k").append(random.nextInt(15)).append("=")
+                            .append(random.nextInt(4) == 0 ? "v" + random.nextInt(10) : String.valueOf(random.nextInt(9) - 4))
+                            .append(",");
+                }
+                kv.accept(sb.toString());
+            }
+        }
+    }
+
+    @Test
+    public void customTestRedoRollbackOfKeyJournaledTwice() {
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(null);
+        kv.savepoint("s");
+        kv.accept("k=007");
+
+        /**
+         * k is journaled as a new key, and again when undo() removes it.
+         */
+        kv.undo();
+        kv.accept("k=1");
+        kv.rollbackTo("s");
+        Assert.assertEquals("", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("k=1", kv.display());
+        kv.redo();
+        Assert.assertEquals("", kv.display());
+        kv.undo();
+        Assert.assertEquals("k=1", kv.display());
+    }
+
+    @Test
+    public void customTestAcceptAllAsOneUndoStep() {
+        final List<String> batches = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            batches.add("k" + (i % 10) + "=" + i + ",text" + (i % 3) + "=v" + i + (i % 100 == 0 ? ",441=a" : ""));
+        }
+
+        final List<String> errors = new ArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+
+        final KeysAndValuesImpl expected = new KeysAndValuesImpl(errorListener);
+        expected.accept("k1=5,text1=old");
+        for (final String batch : batches) {
+            expected.accept(batch);
+        }
+        final int errorsOfAccept = errors.size();
+        errors.clear();
+
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+        kv.accept("k1=5,text1=old");
+        kv.acceptAll(batches, KeysAndValuesImpl.BulkUndo.ONE_STEP);
+
+        /**
+         * Each batch is still validated on its own.
+         */
+        Assert.assertEquals(10, errorsOfAccept);
+        Assert.assertEquals(errorsOfAccept, errors.size());
+        Assert.assertEquals(expected.display(), kv.display());
+        Assert.assertEquals(2, kv.undoHistorySize());
+
+        kv.undo();
+        Assert.assertEquals("k1=5\ntext1=old", kv.display());
+        kv.redo();
+        Assert.assertEquals(expected.display(), kv.display());
+    }
+
+    @Test
+    public void customTestAcceptAllWithoutUndo() {
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(null);
+        kv.accept("a=1");
+        kv.accept("b=2");
+        kv.undo();
+        kv.savepoint("before load");
+
+        kv.acceptAll(Arrays.asList("18=zzz,441=one,500=three,442=2,442= A,441 =3,35=D,500=ok  ").stream()
+                .flatMap(line -> Arrays.stream(line.split("(?<=zzz),"))), KeysAndValuesImpl.BulkUndo.NONE);
+        Assert.assertEquals("18=zzz\n35=D\n441=3\n442=A\n500=ok\na=1", kv.display());
+
+        /**
+         * Neither the bulk load nor the calls before it can be undone or
+         * redone, but a savepoint still works.
+         */
+        Assert.assertEquals(0, kv.undoHistorySize());
+        kv.undo();
+        kv.redo();
+        Assert.assertEquals("18=zzz\n35=D\n441=3\n442=A\n500=ok\na=1", kv.display());
+
+        kv.rollbackTo("before load");
+        Assert.assertEquals("a=1", kv.display());
+        kv.undo();
+        Assert.assertEquals("18=zzz\n35=D\n441=3\n442=A\n500=ok\na=1", kv.display());
+    }
+
+    @Test
+    public void customTestAcceptParallel() {
+        final List<String> errors = new ArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorListener);
+            kv.accept("14=3,A=x");
+
+            /**
+             * Chunks of at least 8 chars split the atomic group and the
+             * integers of each key across chunks.
+             */
+            kv.acceptParallel("14=15, 14=7,A=B52, 441=one,500=three, 14 = 4,invalid, dry = Don't Repeat Yourself,"
+                    + "442=2,442= A,A=007,441 =3,,500=ok,A=1,,,", pool, 8);
+            Assert.assertEquals("14=29\n441=3\n442=A\n500=ok\nA=8\ndry=Don't Repeat Yourself", kv.display());
+            Assert.assertEquals(Arrays.asList("Invalid format.", "Invalid format."), errors);
+
+            kv.undo();
+            Assert.assertEquals("14=3\nA=x", kv.display());
+            kv.redo();
+            Assert.assertEquals("14=29\n441=3\n442=A\n500=ok\nA=8\ndry=Don't Repeat Yourself", kv.display());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void customTestMetrics() throws Exception {
+        final List<String> errors = new ArrayList<>();
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorCollector(errors));
+        kv.accept("a=1");
+
+        final StoreMetrics metrics = new StoreMetrics();
+        kv.setMetrics(metrics);
+        Assert.assertSame(metrics, kv.metrics());
+        Assert.assertEquals(1, metrics.snapshot().undoDepth());
+
+        /**
+         * a accumulates twice, b is inserted and then overwritten, and the
+         * atomic group completes once and is left incomplete once.
+         */
+        kv.accept("a=2,b=x,a=3,b=4,441=1,442=2,500=3,441=5,invalid");
+        kv.accept("a=1");
+        kv.display();
+        kv.display("a");
+        kv.undo();
+        kv.redo();
+
+        final StoreMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(2, snapshot.acceptCount());
+        Assert.assertEquals(8, snapshot.pairCount());
+        Assert.assertEquals(3, snapshot.accumulateCount());
+        Assert.assertEquals(5, snapshot.overwriteCount());
+        Assert.assertEquals(1, snapshot.atomicGroupCompletions());
+        Assert.assertEquals(1, snapshot.atomicGroupFailures());
+        Assert.assertEquals(errors.size(), snapshot.errorCount());
+        Assert.assertEquals(2, snapshot.errorCount());
+        Assert.assertEquals(2, snapshot.displayCount());
+        Assert.assertEquals(1, snapshot.undoCount());
+        Assert.assertEquals(1, snapshot.redoCount());
+        Assert.assertEquals(3, snapshot.undoDepth());
+        Assert.assertEquals(kv.undoHistoryFootprint(), snapshot.undoBytes());
+        Assert.assertEquals(2, snapshot.pairsPerBatch().count());
+        Assert.assertEquals(7, snapshot.pairsPerBatch().max());
+        Assert.assertEquals(2, snapshot.acceptLatency().count());
+        Assert.assertEquals(1, snapshot.undoLatency().count());
+
+        final ObjectName objectName = metrics.registerMBean("customTestMetrics");
+        try {
+            Assert.assertEquals(8L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "PairCount"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+
+        /**
+         * Without metrics, nothing is recorded.
+         */
+        kv.setMetrics(null);
+        kv.accept("a=1");
+        Assert.assertEquals(2, metrics.snapshot().acceptCount());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.snapshot().pairCount());
+    }
+
+    /**
+     * The Redo History takes the limits of the Undo History given, so it
+     * holds more than the default 256 steps.
+     */
+    @Test
+    public void customTestRedoBeyondDefaultUndoHistorySize() {
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(null, AtomicGroups.DEFAULT,
+                new UndoHistoryImpl(1000, KeysAndValuesImpl.UNDO_HISTORY_BUDGET), null, null);
+        for (int i = 0; i < 1000; ++i) {
+            kv.accept("k=1");
+        }
+
+        kv.undo(500);
+        Assert.assertEquals("500", kv.get("k"));
+        kv.redo(500);
+        Assert.assertEquals("1000", kv.get("k"));
+
+        kv.undo(1000);
+        Assert.assertEquals(null, kv.get("k"));
+        kv.redo(1000);
+        Assert.assertEquals("1000", kv.get("k"));
+    }
+
+    @Test
+    public void customTestTrace() {
+        final List<Object[]> traced = new ArrayList<>();
+        final boolean[] isDebugEnabled = {true};
+        final Logger logger = (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[]{Logger.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("isDebugEnabled") && method.getParameterCount() == 0) {
+                        return isDebugEnabled[0];
+                    }
+                    if (method.getName().equals("debug")) {
+                        traced.add(args);
+                    }
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                });
+
+        final List<String> errors = new ArrayList<>();
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorCollector(errors));
+
+        try {
+            kv.setTrace(logger, -1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        /**
+         * One of every 3 batches is traced, with the batch truncated.
+         */
+        kv.setTrace(logger, 3);
+        final StringBuilder longBatch = new StringBuilder("a=1");
+        while (longBatch.length() <= 300) {
+            longBatch.append(",a=1");
+        }
+        for (int i = 0; i < 5; ++i) {
+            kv.accept("b=1");
+        }
+        kv.accept(longBatch.toString());
+        Assert.assertEquals(2, traced.size());
+        final Object[] params = (Object[]) traced.get(1)[1];
+        Assert.assertEquals(longBatch.length(), params[1]);
+        Assert.assertEquals(256, ((String) params[3]).length());
+
+        /**
+         * So is a batch parsed in parallel.
+         */
+        kv.setTrace(logger, 1);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            kv.acceptParallel(longBatch.toString(), pool, 16);
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(3, traced.size());
+        Assert.assertEquals(longBatch.length(), ((Object[]) traced.get(2)[1])[1]);
+
+        /**
+         * Nothing is logged when DEBUG is disabled, nor when the trace is
+         * stopped, and the batches are still applied.
+         */
+        isDebugEnabled[0] = false;
+        for (int i = 0; i < 3; ++i) {
+            kv.accept("b=1");
+        }
+        isDebugEnabled[0] = true;
+        kv.setTrace(0);
+        for (int i = 0; i < 3; ++i) {
+            kv.accept("b=1");
+        }
+        Assert.assertEquals(3, traced.size());
+        Assert.assertEquals("a=" + (longBatch.length() + 1) / 2 + "\nb=11", kv.display());
+        Assert.assertTrue(errors.isEmpty());
+    }
+
+    /**
+     * accept() and acceptParallel() fold a batch into one update per key,
+     * which must give the same values, errors and undo as putting the pairs
+     * one by one, which acceptAll() does.
+     */
+    @Test
+    public void customTestAggregatedBatchesSameAsPairByPair() {
+        final String[] values = {"1", "-2", "40", "007", "-0", "x", "B52", " 9 ", "", String.valueOf(Long.MAX_VALUE - 1), "-" + Long.MAX_VALUE};
+        final String[] keys = {"a", "b", "c", "d", "441", "442", "500"};
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final Random random = new Random(42L);
+            for (int round = 0; round < 300; ++round) {
+                final List<List<String>> errors = new ArrayList<>();
+                final List<KeysAndValuesImpl> stores = new ArrayList<>();
+                for (int i = 0; i < 3; ++i) {
+                    errors.add(new ArrayList<>());
+                    stores.add(new KeysAndValuesImpl(errorCollector(errors.get(i))));
+                }
+
+                /**
+                 * Some existing values, and a savepoint to roll back to.
+                 */
+                final String before = "a=5,b=text,c=" + (round % 2 == 0 ? "007" : String.valueOf(Long.MIN_VALUE + 1));
+                for (final KeysAndValuesImpl kv : stores) {
+                    kv.accept(before);
+                    kv.savepoint("before");
+                    kv.setMetrics(new StoreMetrics());
+                }
+
+                /**
+                 * Overflows are only mixed in some rounds, since they make
+                 * the whole batch applied pair by pair.
+                 */
+                final int numberOfValues = round % 4 == 0 ? values.length : values.length - 2;
+                final StringBuilder kvPairs = new StringBuilder();
+                final int n = random.nextInt(60);
+                for (int i = 0; i < n; ++i) {
+                    final int r = random.nextInt(20);
+                    if (r == 0) {
+                        kvPairs.append("invalid");
+                    } else if (r != 1) {
+                        kvPairs.append(keys[random.nextInt(keys.length)]).append('=').append(values[random.nextInt(numberOfValues)]);
+                    }
+                    kvPairs.append(',');
+                }
+
+                /**
+                 * Half of the batches are aggregated by accept() however
+                 * short they are.
+                 */
+                if (round % 2 == 1) {
+                    stores.get(1).setMinPairsToAggregate(0);
+                }
+
+                final String input = kvPairs.toString();
+                stores.get(0).acceptAll(Collections.singletonList(input), KeysAndValuesImpl.BulkUndo.ONE_STEP);
+                stores.get(1).accept(input);
+                Assert.assertEquals(input, round % 2, stores.get(1).aggregatedBatches());
+                stores.get(2).acceptParallel(input, pool, 1 + random.nextInt(16));
+
+                final String expected = stores.get(0).display();
+                for (int i = 1; i < 3; ++i) {
+                    final KeysAndValuesImpl kv = stores.get(i);
+                    Assert.assertEquals(input, expected, kv.display());
+                    Assert.assertEquals(input, errors.get(0), errors.get(i));
+                }
+
+                final StoreMetrics.Snapshot expectedMetrics = stores.get(0).metrics().snapshot();
+                Assert.assertEquals(input, errors.get(0).size(), expectedMetrics.errorCount());
+                for (int i = 1; i < 3; ++i) {
+                    final StoreMetrics.Snapshot metrics = stores.get(i).metrics().snapshot();
+                    Assert.assertEquals(input, expectedMetrics.pairCount(), metrics.pairCount());
+                    Assert.assertEquals(input, expectedMetrics.accumulateCount(), metrics.accumulateCount());
+                    Assert.assertEquals(input, expectedMetrics.overwriteCount(), metrics.overwriteCount());
+                    Assert.assertEquals(input, expectedMetrics.errorCount(), metrics.errorCount());
+                    Assert.assertEquals(input, expectedMetrics.atomicGroupCompletions(), metrics.atomicGroupCompletions());
+                    Assert.assertEquals(input, expectedMetrics.atomicGroupFailures(), metrics.atomicGroupFailures());
+                }
+
+                for (final KeysAndValuesImpl kv : stores) {
+                    kv.undo();
+                    Assert.assertEquals(input, before.replace(',', '\n'), kv.display());
+                    kv.redo();
+                    Assert.assertEquals(input, expected, kv.display());
+                    kv.rollbackTo("before");
+                    Assert.assertEquals(input, before.replace(',', '\n'), kv.display());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A small burst of counters is aggregated once allowed by
+     * setMinPairsToAggregate(), and is undone and redone in one step.
+     */
+    @Test
+    public void customTestAggregatedBurst() {
+        final List<String> errors = new ArrayList<>();
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(errorCollector(errors));
+
+        kv.accept("14=1,15=text");
+        kv.accept("14=15,14=7,14=4");
+        Assert.assertEquals(0L, kv.aggregatedBatches());
+        Assert.assertEquals("14=27\n15=text", kv.display());
+
+        kv.setMinPairsToAggregate(2);
+        kv.accept("14=15,14=7,14=4,15=1,16=2,15=x,15=9");
+        Assert.assertEquals(1L, kv.aggregatedBatches());
+        Assert.assertEquals("14=53\n15=9\n16=2", kv.display());
+
+        kv.undo();
+        Assert.assertEquals("14=27\n15=text", kv.display());
+        kv.redo();
+        Assert.assertEquals("14=53\n15=9\n16=2", kv.display());
+        kv.undo(2);
+        Assert.assertEquals("14=1\n15=text", kv.display());
+
+        /**
+         * A single pair is below the minimum.
+         */
+        kv.accept("14=1");
+        Assert.assertEquals(1L, kv.aggregatedBatches());
+        Assert.assertEquals(Collections.emptyList(), errors);
+
+        try {
+            kv.setMinPairsToAggregate(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("The number of pairs to aggregate cannot be negative.", e.getMessage());
+        }
+    }
+
+    private static ErrorListener errorCollector(final List<String> errors) {
+        return new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+package lung.key_value_store;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContinuousAndWithinThreePercent() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; ++value) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue(bucket == previous || bucket == previous + 1);
+            Assert.assertTrue(LatencyHistogram.highestValueOf(bucket) >= value);
+            Assert.assertTrue(LatencyHistogram.highestValueOf(bucket) - value <= value / 32);
+            previous = bucket;
+        }
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0L, histogram.snapshot().percentile(99.0));
+
+        for (long value = 1; value <= 1000; ++value) {
+            histogram.record(value * 1000);
+        }
+        histogram.record(-1L);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1001, snapshot.count());
+        Assert.assertEquals(1000000L, snapshot.max());
+        Assert.assertEquals(0L, snapshot.percentile(0.0));
+        Assert.assertEquals(500000.0, snapshot.percentile(50.0), 500000.0 / 32);
+        Assert.assertEquals(990000.0, snapshot.percentile(99.0), 990000.0 / 32);
+        Assert.assertEquals(1000000L, snapshot.percentile(100.0));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.snapshot().count());
+        Assert.assertEquals(0L, histogram.snapshot().max());
+    }
+}
@@ -0,0 +1,143 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.UndoSnapshot;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class OffHeapUndoHistoryTest {
+
+    private static final ErrorListener FAILING_ERROR_LISTENER = new ErrorListener() {
+        @Override
+        public void onError(String msg) {
+            Assert.fail(msg);
+        }
+
+        @Override
+        public void onError(String msg, Exception e) {
+            Assert.fail(msg);
+        }
+    };
+
+    @Test
+    public void snapshotsAreLoadedInReverseOrder() {
+        final OffHeapUndoHistory undoHistory = new OffHeapUndoHistory(16, 1 << 10);
+        final UndoSnapshot snapshot = new UndoSnapshot();
+        Assert.assertFalse(undoHistory.hasSnapshot());
+        Assert.assertFalse(undoHistory.loadSnapshot(snapshot));
+
+        snapshot.addRestore("one", "1");
+        snapshot.addDelete("Three");
+        snapshot.addDelta("four", Long.MIN_VALUE);
+        snapshot.addRestore("five", -5L);
+        undoHistory.saveSnapshot(snapshot);
+
+        snapshot.clear();
+        snapshot.addRestore("\u00e9t\u00e9", "\ud83d\ude00");
+        snapshot.addRestore("", "");
+        undoHistory.saveSnapshot(snapshot);
+
+        Assert.assertEquals(2, undoHistory.size());
+        Assert.assertTrue(undoHistory.footprint() > 0);
+
+        Assert.assertTrue(undoHistory.loadSnapshot(snapshot));
+        Assert.assertEquals("RESTORE \u00e9t\u00e9 \ud83d\ude00\nRESTORE  \n", toString(snapshot));
+        Assert.assertTrue(undoHistory.loadSnapshot(snapshot));
+        Assert.assertEquals("RESTORE one 1\nDELETE Three\nDELTA four -9223372036854775808\nRESTORE five -5\n", toString(snapshot));
+        Assert.assertFalse(undoHistory.loadSnapshot(snapshot));
+        Assert.assertEquals(0, snapshot.size());
+        Assert.assertEquals(0L, undoHistory.footprint());
+    }
+
+    @Test
+    public void oldestSnapshotsAreEvictedAcrossTheEndOfTheRing() {
+        final OffHeapUndoHistory undoHistory = new OffHeapUndoHistory(1 << 10, 104);
+        final UndoSnapshot snapshot = new UndoSnapshot();
+
+        for (int i = 0; i < 100; ++i) {
+            snapshot.clear();
+            snapshot.addRestore("key", String.valueOf(i));
+            undoHistory.saveSnapshot(snapshot);
+            Assert.assertTrue(undoHistory.footprint() <= 104);
+        }
+
+        /**
+         * Each record of a 2-digit value is 26 bytes, so only the latest 4
+         * fit.
+         */
+        Assert.assertEquals(4, undoHistory.size());
+        for (int i = 99; i >= 96; --i) {
+            Assert.assertTrue(undoHistory.loadSnapshot(snapshot));
+            Assert.assertEquals("RESTORE key " + i + "\n", toString(snapshot));
+        }
+        Assert.assertFalse(undoHistory.hasSnapshot());
+
+        /**
+         * A snapshot larger than the whole ring clears the history.
+         */
+        snapshot.clear();
+        snapshot.addRestore("key", "0");
+        undoHistory.saveSnapshot(snapshot);
+        snapshot.addRestore("large", new String(new char[100]));
+        undoHistory.saveSnapshot(snapshot);
+        Assert.assertFalse(undoHistory.hasSnapshot());
+    }
+
+    @Test
+    public void undoWithOffHeapUndoHistory() {
+        final Random random = new Random(7);
+        final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, AtomicGroups.NONE,
+                new OffHeapUndoHistory(KeysAndValuesImpl.UNDO_HISTORY_SIZE, 1 << 12), null, null);
+        final KeysAndValuesImpl expected = new KeysAndValuesImpl(FAILING_ERROR_LISTENER);
+
+        for (int i = 0; i < 2000; ++i) {
+            if (random.nextInt(4) == 0) {
+                /**
+                 * The small ring keeps fewer snapshots, so only undo what
+                 * both can undo.
+                 */
+                if (kv.undoHistorySize() > 0) {
+                    kv.undo();
+                    expected.undo();
+                }
+            } else {
+                final StringBuilder sb = new StringBuilder();
+                for (int j = random.nextInt(5); j >= 0; --j) {
+                    sb.append("k").append(random.nextInt(50)).append("=")
+                            .append(random.nextBoolean() ? String.valueOf(random.nextInt(100)) : "v" + random.nextInt(100))
+                            .append(",");
+                }
+                kv.accept(sb.toString());
+                expected.accept(sb.toString());
+            }
+            Assert.assertEquals(expected.display(), kv.display());
+        }
+    }
+
+    private static String toString(final UndoSnapshot snapshot) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < snapshot.size(); ++i) {
+            switch (snapshot.type(i)) {
+                case UndoSnapshot.DELETE:
+                    sb.append("DELETE ").append(snapshot.key(i));
+                    break;
+                case UndoSnapshot.RESTORE:
+                    sb.append("RESTORE ").append(snapshot.key(i)).append(' ')
+                            .append(snapshot.text(i) != null ? snapshot.text(i) : String.valueOf(snapshot.longValue(i)));
+                    break;
+                default:
+                    sb.append("DELTA ").append(snapshot.key(i)).append(' ').append(snapshot.longValue(i));
+                    break;
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,229 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class PersistentKeysAndValuesTest {
+
+    private static final ErrorListener FAILING_ERROR_LISTENER = new ErrorListener() {
+        @Override
+        public void onError(String msg) {
+            Assert.fail(msg);
+        }
+
+        @Override
+        public void onError(String msg, Exception e) {
+            Assert.fail(msg);
+        }
+    };
+
+    @Test
+    public void givenExamples() {
+        KeysAndValues kv = new PersistentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("14=15, 14=7,A=B52, 14 = 4, dry = Don't Repeat Yourself");
+        Assert.assertEquals("14=26\nA=B52\ndry=Don't Repeat Yourself", kv.display());
+
+        kv = new PersistentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("18=zzz,441=one,500=three,442=2,442= A,441 =3,35=D,500=ok  ");
+        Assert.assertEquals("18=zzz\n35=D\n441=3\n442=A\n500=ok", kv.display());
+    }
+
+    @Test
+    public void snapshotNeverChanges() {
+        final PersistentKeysAndValues kv = new PersistentKeysAndValues(FAILING_ERROR_LISTENER);
+        kv.accept("one=1,two=two");
+        final StoreSnapshot snapshot = kv.snapshot();
+
+        kv.accept("one=5,three=3");
+        kv.undo();
+        kv.accept("one=x");
+
+        Assert.assertEquals("one=1\ntwo=two", snapshot.display());
+        Assert.assertEquals("1", snapshot.get("one"));
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertEquals("one=x\ntwo=two", kv.display());
+    }
+
+    @Test
+    public void sameResultsAsKeysAndValuesImpl() throws Exception {
+        final List<String> errors = new ArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+
+        final Random random = new Random(3);
+        final PersistentKeysAndValues kv = new PersistentKeysAndValues(errorListener);
+        final KeysAndValuesImpl expected = new KeysAndValuesImpl(errorListener);
+        final List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < 5000; ++i) {
+            final int action = random.nextInt(30);
+            if (action == 0) {
+                names.add("s" + i);
+                kv.savepoint("s" + i);
+                expected.savepoint("s" + i);
+            } else if (action == 1 && !names.isEmpty()) {
+                final int k = random.nextInt(names.size());
+                kv.rollbackTo(names.get(k));
+                expected.rollbackTo(names.get(k));
+                names.subList(k + 1, names.size()).clear();
+            } else if (action < 5) {
+                final int n = random.nextInt(3);
+                kv.undo(n);
+                expected.undo(n);
+            } else if (action < 7) {
+                final int n = random.nextInt(3);
+                kv.redo(n);
+                expected.redo(n);
+            } else {
+                final StringBuilder sb = new StringBuilder();
+                for (int j = random.nextInt(6); j >= 0; --j) {
+                    final int value = random.nextInt(8);
+                    sb.append(random.nextBoolean() ? "k" : "K").append(random.nextInt(300)).append("=")
+                            .append(value == 0 ? "v" + random.nextInt(10) : value == 1 ? "007" : value == 2 ? "9223372036854775807" : String.valueOf(value - 5))
+                            .append(",");
+                }
+                if (random.nextInt(10) == 0) {
+                    sb.append("441=a,442=b,");
+                }
+                final int before = errors.size();
+                kv.accept(sb.toString());
+                final int reported = errors.size() - before;
+                expected.accept(sb.toString());
+                Assert.assertEquals(reported, errors.size() - before - reported);
+            }
+
+            Assert.assertEquals(expected.display(), kv.display());
+            Assert.assertEquals(expected.undoHistorySize(), kv.undoHistorySize());
+        }
+
+        Assert.assertEquals(expected.display("k1", "K2"), kv.display("k1", "K2"));
+        Assert.assertEquals(expected.display("K10"), kv.display("K10"));
+        Assert.assertEquals(expected.displayPage("k150", 7), kv.displayPage("k150", 7));
+        Assert.assertEquals(expected.displayPage(null, 3), kv.displayPage(null, 3));
+        Assert.assertEquals(expected.multiGet(Arrays.asList("k1", "K1", "none")), kv.multiGet(Arrays.asList("k1", "K1", "none")));
+
+        final StringWriter out = new StringWriter();
+        kv.display(out);
+        Assert.assertEquals(expected.display(), out.toString());
+    }
+
+    @Test
+    public void readersNeverSeeHalfOfABatch() throws Exception {
+        final PersistentKeysAndValues kv = new PersistentKeysAndValues(FAILING_ERROR_LISTENER);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        final Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; ++t) {
+            readers[t] = new Thread(() -> {
+                while (!done.get()) {
+                    final StoreSnapshot snapshot = kv.snapshot();
+                    final String a = snapshot.get("a");
+                    final String b = snapshot.get("b");
+                    final long sum = (a == null ? 0 : Long.parseLong(a)) + (b == null ? 0 : Long.parseLong(b));
+                    if (sum != 0 || (snapshot.size() != 0 && snapshot.size() != 2)) {
+                        failure.compareAndSet(null, snapshot.display());
+                    }
+                }
+            });
+            readers[t].start();
+        }
+
+        for (int i = 0; i < 20000; ++i) {
+            kv.accept("a=" + i + ",b=-" + i);
+            if (i % 7 == 0) {
+                kv.undo();
+            }
+        }
+        done.set(true);
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+
+        Assert.assertNull(failure.get());
+    }
+
+    @Test(timeout = 10000)
+    public void slowReaderNeverBlocksTheWriter() throws Exception {
+        final PersistentKeysAndValues kv = new PersistentKeysAndValues(FAILING_ERROR_LISTENER);
+        for (int i = 0; i < 10000; ++i) {
+            kv.accept("k" + i + "=" + i);
+        }
+
+        /**
+         * The reader stops in the middle of its display() until the writer
+         * has finished.
+         */
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final StringBuilder out = new StringBuilder();
+        final Thread reader = new Thread(() -> {
+            try {
+                kv.display(new Appendable() {
+                    @Override
+                    public Appendable append(final CharSequence csq) {
+                        return append(csq, 0, csq.length());
+                    }
+
+                    @Override
+                    public Appendable append(final CharSequence csq, final int start, final int end) {
+                        reading.countDown();
+                        try {
+                            written.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        out.append(csq, start, end);
+                        return this;
+                    }
+
+                    @Override
+                    public Appendable append(final char c) {
+                        return append(String.valueOf(c));
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        final String expected = kv.display();
+        reader.start();
+        reading.await();
+
+        kv.accept("k1=1,new=1");
+        kv.undo();
+        kv.accept("k2=x");
+        written.countDown();
+        reader.join();
+
+        Assert.assertEquals(expected, out.toString());
+        Assert.assertEquals("x", kv.get("k2"));
+    }
+}
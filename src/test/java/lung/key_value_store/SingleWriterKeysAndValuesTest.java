@@ -0,0 +1,210 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class SingleWriterKeysAndValuesTest {
+
+    private static final ErrorListener FAILING_ERROR_LISTENER = new ErrorListener() {
+        @Override
+        public void onError(String msg) {
+            Assert.fail(msg);
+        }
+
+        @Override
+        public void onError(String msg, Exception e) {
+            Assert.fail(msg);
+        }
+    };
+
+    @Test
+    public void givenExamples() throws Exception {
+        try (SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(FAILING_ERROR_LISTENER)) {
+            kv.accept("14=15, 14=7,A=B52, 14 = 4, dry = Don't Repeat Yourself");
+            Assert.assertEquals("14=26\nA=B52\ndry=Don't Repeat Yourself", kv.display());
+
+            kv.accept("18=zzz,441=one,500=three,442=2,442= A,441 =3,35=D,500=ok  ");
+            Assert.assertEquals("A=B52", kv.display("a"));
+            Assert.assertEquals("zzz", kv.get("18"));
+            Assert.assertEquals(Collections.singletonMap("441", "3"), kv.multiGet(Arrays.asList("441", "none")));
+
+            final StringWriter out = new StringWriter();
+            kv.display(out);
+            Assert.assertEquals(kv.display(), out.toString());
+
+            kv.undo();
+            Assert.assertEquals("14=26\nA=B52\ndry=Don't Repeat Yourself", kv.display());
+            kv.redo();
+            Assert.assertEquals(2, kv.undoHistorySize());
+        }
+    }
+
+    @Test
+    public void asyncBatchesAreAppliedInOrder() throws Exception {
+        try (SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(FAILING_ERROR_LISTENER)) {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10000; ++i) {
+                futures.add(kv.acceptAsync("text=v" + i + ",counter=1"));
+            }
+
+            /**
+             * A read goes through the ring, so it sees all the batches before
+             * it without waiting for their futures.
+             */
+            Assert.assertEquals("counter=10000\ntext=v9999", kv.display());
+            for (final CompletableFuture<Void> future : futures) {
+                Assert.assertTrue(future.isDone());
+            }
+        }
+    }
+
+    @Test
+    public void manyProducersWithBackpressure() throws Exception {
+        for (final SingleWriterKeysAndValues.WaitStrategy waitStrategy : SingleWriterKeysAndValues.WaitStrategy.values()) {
+            /**
+             * The spinning threads starve the writer thread when there are
+             * fewer cores than threads, so BUSY_SPIN gets fewer batches.
+             */
+            final int batches = waitStrategy == SingleWriterKeysAndValues.WaitStrategy.BUSY_SPIN ? 50 : 2000;
+
+            try (SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(new KeysAndValuesImpl(FAILING_ERROR_LISTENER), 2, waitStrategy)) {
+                final Thread[] producers = new Thread[4];
+                for (int t = 0; t < producers.length; ++t) {
+                    final int thread = t;
+                    producers[t] = new Thread(() -> {
+                        CompletableFuture<Void> last = null;
+                        for (int i = 0; i < batches; ++i) {
+                            last = kv.acceptAsync("total=1,t" + thread + "=1,last" + thread + "=x" + i);
+                        }
+                        last.join();
+                    });
+                    producers[t].start();
+                }
+                for (final Thread producer : producers) {
+                    producer.join();
+                }
+
+                Assert.assertEquals(waitStrategy.name(), String.valueOf(batches * producers.length), kv.get("total"));
+                for (int t = 0; t < producers.length; ++t) {
+                    Assert.assertEquals(String.valueOf(batches), kv.get("t" + t));
+                    Assert.assertEquals("x" + (batches - 1), kv.get("last" + t));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void exceptionsAndErrorsReachTheCaller() throws Exception {
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+
+        try (SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(errorListener)) {
+            try {
+                kv.rollbackTo("missing");
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                Assert.assertEquals("Savepoint missing does not exist.", e.getMessage());
+            }
+
+            try {
+                kv.checkpoint();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("No Checkpointer is given.", e.getMessage());
+            }
+
+            kv.acceptAsync("441=1").join();
+            Assert.assertEquals(1, errors.size());
+            Assert.assertEquals("", kv.display());
+        }
+    }
+
+    @Test
+    public void callsAfterCloseAreRejected() {
+        final SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(FAILING_ERROR_LISTENER);
+        final CompletableFuture<Void> future = kv.acceptAsync("a=1");
+        kv.close();
+        Assert.assertTrue(future.isDone());
+
+        try {
+            kv.acceptAsync("a=2");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("The single writer is closed.", e.getMessage());
+        }
+        kv.close();
+    }
+
+    /**
+     * Each call finds the writer thread parked or about to park, so a lost
+     * wake up hangs the test.
+     */
+    @Test(timeout = 60000L)
+    public void callsWakeUpTheParkedWriter() throws Exception {
+        try (SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(FAILING_ERROR_LISTENER)) {
+            for (int i = 0; i < 20000; ++i) {
+                kv.accept("a=1");
+            }
+            Assert.assertEquals("a=20000", kv.display());
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void concurrentClosesPutOneStop() throws Exception {
+        for (int round = 0; round < 100; ++round) {
+            final SingleWriterKeysAndValues kv = new SingleWriterKeysAndValues(FAILING_ERROR_LISTENER);
+            kv.acceptAsync("a=1");
+
+            final Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i] = new Thread(kv::close);
+                threads[i].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            kv.close();
+
+            try {
+                kv.acceptAsync("a=2");
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("The single writer is closed.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void ringSizeMustBeAPowerOf2() {
+        try {
+            new SingleWriterKeysAndValues(new KeysAndValuesImpl(FAILING_ERROR_LISTENER), 3, SingleWriterKeysAndValues.WaitStrategy.PARK);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("The capacity of the ring must be a positive power of 2.", e.getMessage());
+        }
+    }
+}
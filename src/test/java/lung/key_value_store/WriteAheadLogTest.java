@@ -0,0 +1,514 @@
+package lung.key_value_store;
+
+import lung.key_value_store.api.ErrorListener;
+import lung.key_value_store.api.KeysAndValues;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Developed with Java Version: Oracle Java JDK 1.8.0_181
+ *
+ * @Author WAN, Kwok Lung
+ */
+public class WriteAheadLogTest {
+
+    private static final ErrorListener FAILING_ERROR_LISTENER = new ErrorListener() {
+        @Override
+        public void onError(String msg) {
+            Assert.fail(msg);
+        }
+
+        @Override
+        public void onError(String msg, Exception e) {
+            Assert.fail(msg);
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayRebuildsDataStoreAndUndoHistory() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final List<String> errors = new ArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(errorListener, log);
+            kv.accept("one=1,two=two");
+            kv.accept("one=5,441=a");
+            kv.accept("three=3");
+            kv.undo();
+            kv.accept("two=2,h\u00e9llo=w\u00f6rld");
+        }
+        Assert.assertEquals(1, errors.size());
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(errorListener, log);
+
+            /**
+             * The error in the log is not reported again.
+             */
+            Assert.assertEquals(1, errors.size());
+            Assert.assertEquals("h\u00e9llo=w\u00f6rld\none=6\ntwo=2", kv.display());
+
+            kv.undo();
+            Assert.assertEquals("one=6\ntwo=two", kv.display());
+        }
+
+        /**
+         * The undo is logged as well.
+         */
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("one=6\ntwo=two", kv.display());
+
+            kv.undo();
+            kv.undo();
+            Assert.assertEquals("", kv.display());
+
+            kv.redo(2);
+            kv.undo();
+            Assert.assertEquals("one=1\ntwo=two", kv.display());
+        }
+
+        /**
+         * So are undo(n) and redo(n), including the Redo History.
+         */
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("one=1\ntwo=two", kv.display());
+
+            kv.redo();
+            Assert.assertEquals("one=6\ntwo=two", kv.display());
+        }
+    }
+
+    @Test
+    public void replaySavepoints() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 4, log, null);
+            kv.accept("one=1,two=two");
+            kv.savepoint("a");
+            kv.accept("one=5,three=3");
+            kv.savepoint("b");
+            kv.accept("two=2");
+            kv.rollbackTo("a");
+            kv.accept("four=4");
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 2, log, null);
+            Assert.assertEquals("four=4\none=1\ntwo=two", kv.display());
+
+            kv.rollbackTo("a");
+            Assert.assertEquals("one=1\ntwo=two", kv.display());
+
+            kv.undo(3);
+            Assert.assertEquals("one=6\nthree=3\ntwo=2", kv.display());
+            kv.releaseSavepoint("a");
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("one=6\nthree=3\ntwo=2", kv.display());
+            kv.savepoint("a");
+        }
+    }
+
+    @Test
+    public void replayBulkLoads() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.GROUP_COMMIT)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            kv.accept("one=1");
+            kv.acceptAll(Arrays.asList("one=1,two=two", "one=1", "three=3"), KeysAndValuesImpl.BulkUndo.ONE_STEP);
+            kv.acceptAll(Arrays.asList("four=4", "one=1"), KeysAndValuesImpl.BulkUndo.ONE_STEP);
+            kv.undo();
+            kv.accept("five=5");
+            kv.acceptAll(Collections.<String>emptyList(), KeysAndValuesImpl.BulkUndo.ONE_STEP);
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("five=5\none=3\nthree=3\ntwo=two", kv.display());
+            Assert.assertEquals(4, kv.undoHistorySize());
+
+            kv.undo(2);
+            Assert.assertEquals("one=3\nthree=3\ntwo=two", kv.display());
+            kv.undo();
+            Assert.assertEquals("one=1", kv.display());
+            kv.redo(3);
+
+            kv.acceptAll(Arrays.asList("six=6"), KeysAndValuesImpl.BulkUndo.NONE);
+            kv.accept("seven=7");
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValuesImpl kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("five=5\none=3\nseven=7\nsix=6\nthree=3\ntwo=two", kv.display());
+            Assert.assertEquals(1, kv.undoHistorySize());
+        }
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsTruncated() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            kv.accept("a=1");
+            kv.accept("b=2");
+        }
+
+        /**
+         * Cut the last record in the middle.
+         */
+        final Path segment = segments(directory).get(0);
+        final long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("a=1", kv.display());
+            kv.accept("c=3");
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("a=1\nc=3", kv.display());
+        }
+    }
+
+    /**
+     * A record which fails to be written, or forced, is removed, so it's
+     * not replayed and the records after it are not lost.
+     */
+    @Test
+    public void failedRecordIsRemoved() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final List<String> errors = new ArrayList<>();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override
+            public void onError(String msg) {
+                errors.add(msg);
+            }
+
+            @Override
+            public void onError(String msg, Exception e) {
+                errors.add(msg);
+            }
+        };
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(errorListener, log);
+            kv.accept("a=1");
+
+            final FailingChannel channel = FailingChannel.install(log);
+            channel.isWriteFailing = true;
+            kv.accept("b=2");
+            channel.isWriteFailing = false;
+            channel.isForceFailing = true;
+            kv.accept("c=3");
+            channel.isForceFailing = false;
+            kv.accept("d=4");
+
+            Assert.assertEquals(Arrays.asList("Failed to write the write-ahead log.", "Failed to write the write-ahead log."), errors);
+            Assert.assertEquals("a=1\nd=4", kv.display());
+
+            /**
+             * When the failed record cannot be removed either, nothing is
+             * appended any more.
+             */
+            channel.isWriteFailing = true;
+            channel.isTruncateFailing = true;
+            kv.accept("e=5");
+            channel.isWriteFailing = false;
+            kv.accept("f=6");
+            Assert.assertEquals(4, errors.size());
+            Assert.assertEquals("a=1\nd=4", kv.display());
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.ALWAYS)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("a=1\nd=4", kv.display());
+        }
+    }
+
+    /**
+     * The buffer grown for a large batch is released once the batch is
+     * written, and the batches after it are still logged.
+     */
+    @Test
+    public void largeRecordBufferIsReleased() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final Field field = WriteAheadLog.class.getDeclaredField("recordBuffer");
+        field.setAccessible(true);
+
+        final StringBuilder large = new StringBuilder("a=1");
+        while (large.length() < WriteAheadLog.MAX_KEPT_RECORD_BUFFER_SIZE) {
+            large.append(",a=1");
+        }
+        final StringBuilder medium = new StringBuilder("b=1");
+        while (medium.length() < WriteAheadLog.INITIAL_RECORD_BUFFER_SIZE) {
+            medium.append(",b=1");
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            kv.accept(medium.toString());
+            final int grown = ((ByteBuffer) field.get(log)).capacity();
+            Assert.assertTrue(grown > WriteAheadLog.INITIAL_RECORD_BUFFER_SIZE);
+            Assert.assertTrue(grown <= WriteAheadLog.MAX_KEPT_RECORD_BUFFER_SIZE);
+
+            kv.accept(large.toString());
+            Assert.assertEquals(WriteAheadLog.INITIAL_RECORD_BUFFER_SIZE, ((ByteBuffer) field.get(log)).capacity());
+            kv.accept("c=1");
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("a=" + (large.length() + 1) / 4 + "\nb=" + (medium.length() + 1) / 4 + "\nc=1", kv.display());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void brokenRecordInTheMiddleIsReported() throws Throwable {
+        final Path directory = folder.getRoot().toPath();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER, 1L, 1L)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            kv.accept("a=1");
+            kv.accept("b=2");
+        }
+
+        final Path segment = segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'x'}), 6);
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER)) {
+            new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+        } catch (java.io.UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void segmentsAreRolled() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER, 1L, 64L)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            for (int i = 0; i < 100; ++i) {
+                kv.accept("k" + (i % 10) + "=" + i);
+            }
+        }
+        Assert.assertTrue(segments(directory).size() > 1);
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.NEVER)) {
+            final KeysAndValues kv = new KeysAndValuesImpl(FAILING_ERROR_LISTENER, log);
+            Assert.assertEquals("k0=450", kv.display("k0"));
+            Assert.assertEquals("k9=540", kv.display("k9"));
+        }
+    }
+
+    @Test
+    public void groupCommitWithConcurrentAccept() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final int numberOfThreads = 4;
+        final int numberOfBatches = 50;
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.GROUP_COMMIT, 2L, WriteAheadLog.DEFAULT_SEGMENT_SIZE)) {
+            final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 8, log);
+
+            final Thread[] threads = new Thread[numberOfThreads];
+            for (int t = 0; t < numberOfThreads; ++t) {
+                final int id = t;
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < numberOfBatches; ++i) {
+                        kv.accept("count=1,t" + id + "=" + i);
+                    }
+                });
+                threads[t].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            kv.undo();
+        }
+
+        try (WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.FsyncPolicy.GROUP_COMMIT)) {
+            final KeysAndValues kv = new ConcurrentKeysAndValues(FAILING_ERROR_LISTENER, 8, log);
+            Assert.assertEquals(String.valueOf(numberOfThreads * numberOfBatches - 1), kv.get("count"));
+
+            kv.undo();
+            Assert.assertEquals(String.valueOf(numberOfThreads * numberOfBatches - 2), kv.get("count"));
+        }
+    }
+
+    /**
+     * Replaces the segment of a log, to write half of a record and then
+     * fail, or fail to force or truncate it.
+     */
+    private static final class FailingChannel extends FileChannel {
+
+        private final FileChannel channel;
+
+        volatile boolean isWriteFailing;
+        volatile boolean isForceFailing;
+        volatile boolean isTruncateFailing;
+
+        private FailingChannel(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static FailingChannel install(final WriteAheadLog log) throws ReflectiveOperationException {
+            final Field field = WriteAheadLog.class.getDeclaredField("channel");
+            field.setAccessible(true);
+            final FailingChannel failingChannel = new FailingChannel((FileChannel) field.get(log));
+            field.set(log, failingChannel);
+            return failingChannel;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (isWriteFailing) {
+                final ByteBuffer half = src.duplicate();
+                half.limit(src.position() + src.remaining() / 2);
+                channel.write(half);
+                throw new IOException("Failed to write.");
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            if (isForceFailing) {
+                throw new IOException("Failed to force.");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            if (isTruncateFailing) {
+                throw new IOException("Failed to truncate.");
+            }
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static List<Path> segments(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+}